@@ -0,0 +1,73 @@
+package se.scouterna.keycloak;
+
+import se.scouterna.keycloak.testkit.MockScoutnetServer;
+import se.scouterna.keycloak.testkit.ScoutnetCorpus;
+import se.scouterna.keycloak.testkit.ScoutnetCorpus.IntDistribution;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Raw Scoutnet responses for the benchmarks, as they arrive from the API.
+ */
+final class BenchmarkInputs {
+
+    private static final String FIXTURES = "/fixtures/buildMembershipsJson/";
+    private static final long SEED = 42;
+
+    record Responses(String profileJson, String rolesJson) {
+    }
+
+    private BenchmarkInputs() {
+    }
+
+    /**
+     * small: a single membership without roles; typical: the unit test fixtures; leader: the
+     * largest of 1000 members of the realistic {@link ScoutnetCorpus}, the long tail that hits
+     * the slow paths; extreme: 300 group memberships, each with a troop, a patrol and roles.
+     */
+    static Responses forSize(String size) {
+        return switch (size) {
+            case "small" -> synthetic(1, 0);
+            case "typical" -> new Responses(fixture("profile_input.json"), fixture("roles_input.json"));
+            case "leader" -> largestOf(1000);
+            case "extreme" -> synthetic(300, 4);
+            default -> throw new IllegalArgumentException("Unknown input size: " + size);
+        };
+    }
+
+    /**
+     * The member with the largest profile among the first {@code members} of the realistic corpus.
+     */
+    static Responses largestOf(int members) {
+        ScoutnetCorpus corpus = new ScoutnetCorpus(SEED, ScoutnetCorpus.Shape.realistic());
+        MockScoutnetServer.Responses largest = null;
+        for (int memberNo = 3_000_000; memberNo < 3_000_000 + members; memberNo++) {
+            MockScoutnetServer.Responses candidate = corpus.responses(memberNo);
+            if (largest == null || candidate.profileJson().length() > largest.profileJson().length()) {
+                largest = candidate;
+            }
+        }
+        return new Responses(largest.profileJson(), largest.rolesJson());
+    }
+
+    static Responses synthetic(int memberships, int rolesPerMembership) {
+        ScoutnetCorpus.Shape shape = new ScoutnetCorpus.Shape(IntDistribution.fixed(memberships),
+            IntDistribution.fixed(rolesPerMembership), IntDistribution.fixed(memberships > 1 ? 1 : 0),
+            memberships > 1 ? 1 : 0, memberships > 1 ? 1 : 0, IntDistribution.parse("8-24"), 0.3,
+            Math.max(memberships, 1));
+        MockScoutnetServer.Responses responses = new ScoutnetCorpus(SEED, shape).responses(3_000_001);
+        return new Responses(responses.profileJson(), responses.rolesJson());
+    }
+
+    private static String fixture(String name) {
+        try (InputStream in = BenchmarkInputs.class.getResourceAsStream(FIXTURES + name)) {
+            if (in == null) throw new IllegalStateException("Missing fixture: " + name);
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
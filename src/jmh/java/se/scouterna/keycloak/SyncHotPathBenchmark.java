@@ -0,0 +1,94 @@
+package se.scouterna.keycloak;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.scouterna.keycloak.client.ScoutnetJson;
+import se.scouterna.keycloak.client.dto.Profile;
+import se.scouterna.keycloak.client.dto.Roles;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-login work of a profile sync that doesn't touch the database: parsing the Scoutnet
+ * responses, hashing the sync sections, building the memberships claim and chunk-encoding it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SyncHotPathBenchmark {
+
+    @Param({"small", "typical", "leader", "extreme"})
+    public String size;
+
+    private String profileJson;
+    private String rolesJson;
+    private Profile profile;
+    private Roles roles;
+    private String membershipsJson;
+    private List<String> membershipsChunks;
+
+    @Setup
+    public void setUp() throws IOException {
+        BenchmarkInputs.Responses responses = BenchmarkInputs.forSize(size);
+        profileJson = responses.profileJson();
+        rolesJson = responses.rolesJson();
+        profile = ScoutnetJson.PROFILE_READER.readValue(profileJson);
+        roles = ScoutnetJson.ROLES_READER.readValue(rolesJson);
+        membershipsJson = ScoutnetProfileSync.buildMembershipsJson(profile, roles);
+        membershipsChunks = ChunkedAttributeCodec.encode(membershipsJson);
+    }
+
+    @Benchmark
+    public Profile parseProfile() throws IOException {
+        return ScoutnetJson.PROFILE_READER.readValue(profileJson);
+    }
+
+    @Benchmark
+    public Roles parseRoles() throws IOException {
+        return ScoutnetJson.ROLES_READER.readValue(rolesJson);
+    }
+
+    @Benchmark
+    public String buildMembershipsJson() {
+        return ScoutnetProfileSync.buildMembershipsJson(profile, roles);
+    }
+
+    @Benchmark
+    public String identityHash() {
+        return ScoutnetProfileSync.generateIdentityHash(profile);
+    }
+
+    @Benchmark
+    public String groupsHash() {
+        return ScoutnetProfileSync.generateGroupsHash(profile, roles);
+    }
+
+    @Benchmark
+    public String rolesHash() {
+        return ScoutnetProfileSync.generateRolesHash(profile, rolesJson);
+    }
+
+    @Benchmark
+    public List<String> encodeMemberships() {
+        return ChunkedAttributeCodec.encode(membershipsJson);
+    }
+
+    @Benchmark
+    public String decodeMemberships() {
+        return ChunkedAttributeCodec.decode(membershipsChunks);
+    }
+}
@@ -0,0 +1,136 @@
+package se.scouterna.keycloak;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs Scoutnet profile refreshes off the login request path, each in its own
+ * KeycloakSession and transaction.
+ *
+ * Jobs are submitted only after the scheduling request has committed, at most one job per
+ * user is in flight on this node, and the queue is bounded: when it is full the refresh is
+ * dropped and simply happens on a later login. Jobs run under the scheduling request's
+ * correlation ID.
+ */
+public class AsyncProfileRefresher {
+
+    private static final Logger log = Logger.getLogger(AsyncProfileRefresher.class);
+    private static final int QUEUE_CAPACITY = 1000;
+
+    /**
+     * The refresh to run inside the background transaction.
+     */
+    @FunctionalInterface
+    public interface RefreshJob {
+        boolean refresh(KeycloakSession session, RealmModel realm, UserModel user);
+    }
+
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+    private final ThreadPoolExecutor executor;
+
+    public AsyncProfileRefresher(int threads) {
+        this(threads, QUEUE_CAPACITY);
+    }
+
+    AsyncProfileRefresher(int threads, int queueCapacity) {
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(queueCapacity),
+            runnable -> {
+                Thread thread = new Thread(runnable, "scoutnet-refresh-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            },
+            new ThreadPoolExecutor.AbortPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Schedules a refresh of the user once the current request's transaction has committed.
+     *
+     * @return false if a refresh for this user is already in flight on this node
+     */
+    public boolean scheduleAfterCommit(KeycloakSession session, RealmModel realm, UserModel user, RefreshJob job) {
+        String userId = user.getId();
+        if (!inFlight.add(userId)) {
+            return false;
+        }
+
+        KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
+        String realmId = realm.getId();
+        // Captured now: the request's correlation scope has ended by the time it commits
+        String correlationId = CorrelationContext.current();
+        Runnable refresh = CorrelationContext.propagate(() -> run(sessionFactory, realmId, userId, job));
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                submit(refresh, userId, correlationId);
+            }
+
+            @Override
+            protected void rollbackImpl() {
+                inFlight.remove(userId);
+            }
+        });
+        return true;
+    }
+
+    boolean isInFlight(String userId) {
+        return inFlight.contains(userId);
+    }
+
+    private void submit(Runnable refresh, String userId, String correlationId) {
+        try {
+            executor.execute(refresh);
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(userId);
+            log.debugf("[%s] Background Scoutnet refresh queue full, skipping refresh", correlationId);
+        }
+    }
+
+    private void run(KeycloakSessionFactory sessionFactory, String realmId, String userId, RefreshJob job) {
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                RealmModel realm = session.realms().getRealm(realmId);
+                UserModel user = realm != null ? session.users().getUserById(realm, userId) : null;
+                if (user == null) return;
+                session.getContext().setRealm(realm);
+                boolean refreshed = job.refresh(session, realm, user);
+                log.debugf("[%s] Background Scoutnet refresh %s for user: %s",
+                    CorrelationContext.current(), refreshed ? "completed" : "failed", user.getUsername());
+            });
+        } catch (RuntimeException e) {
+            log.warnf("[%s] Background Scoutnet refresh failed: %s", CorrelationContext.current(), e.getClass().getSimpleName());
+        } finally {
+            inFlight.remove(userId);
+        }
+    }
+
+    /**
+     * Stops accepting jobs and waits briefly for running refreshes to finish.
+     */
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package se.scouterna.keycloak;
+
+import org.keycloak.models.UserModel;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Stores values larger than Keycloak's 2048-char attribute limit as deflate + base64,
+ * split across numbered attributes: {@code <name>_z0}, {@code <name>_z1}, ...
+ *
+ * The plain {@code <name>} attribute always holds a value that fits the limit, so mappers
+ * reading it directly keep working; {@link ScoutnetMembershipsProtocolMapper} prefers the
+ * chunks when present and reassembles the lossless value.
+ */
+public final class ChunkedAttributeCodec {
+
+    // Keycloak's default USER_ATTRIBUTE.VALUE column is VARCHAR(2048); values beyond this get truncated/rejected.
+    public static final int MAX_VALUE_LENGTH = 2048;
+    // Caps the lossless payload at 64 KiB of base64, far beyond any realistic membership list
+    static final int MAX_CHUNKS = 32;
+    private static final String CHUNK_INFIX = "_z";
+
+    private ChunkedAttributeCodec() {
+    }
+
+    /**
+     * Writes {@code value} as the plain attribute if it fits, otherwise writes {@code plainFallback}
+     * to the plain attribute and the compressed value to the chunk attributes.
+     *
+     * @return false if the value was too large even compressed and only the fallback was stored
+     */
+    public static boolean write(UserModel user, String name, String value, String plainFallback) {
+        List<String> chunks = value.length() <= MAX_VALUE_LENGTH ? List.of() : encode(value);
+        boolean stored = chunks.size() <= MAX_CHUNKS;
+        if (!stored) chunks = List.of();
+
+        user.setSingleAttribute(name, chunks.isEmpty() && stored ? value : plainFallback);
+        for (int i = 0; i < chunks.size(); i++) {
+            user.setSingleAttribute(name + CHUNK_INFIX + i, chunks.get(i));
+        }
+        removeChunks(user, name, chunks.size());
+        return stored;
+    }
+
+    /**
+     * Reads the lossless value: the reassembled chunks if present, otherwise the plain attribute.
+     */
+    public static String read(UserModel user, String name) {
+        Map<String, List<String>> attributes = user.getAttributes();
+        List<String> chunks = new ArrayList<>();
+        for (int i = 0; ; i++) {
+            List<String> values = attributes.get(name + CHUNK_INFIX + i);
+            if (values == null || values.isEmpty()) break;
+            chunks.add(values.get(0));
+        }
+        if (!chunks.isEmpty()) {
+            return decode(chunks);
+        }
+        List<String> plain = attributes.get(name);
+        return plain == null || plain.isEmpty() ? null : plain.get(0);
+    }
+
+    /**
+     * Removes the plain attribute and all chunks.
+     */
+    public static void remove(UserModel user, String name) {
+        user.removeAttribute(name);
+        removeChunks(user, name, 0);
+    }
+
+    static List<String> encode(String value) {
+        byte[] input = value.getBytes(StandardCharsets.UTF_8);
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 4 + 64);
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            deflater.end();
+        }
+
+        String encoded = Base64.getEncoder().encodeToString(out.toByteArray());
+        List<String> chunks = new ArrayList<>(encoded.length() / MAX_VALUE_LENGTH + 1);
+        for (int start = 0; start < encoded.length(); start += MAX_VALUE_LENGTH) {
+            chunks.add(encoded.substring(start, Math.min(encoded.length(), start + MAX_VALUE_LENGTH)));
+        }
+        return chunks;
+    }
+
+    static String decode(List<String> chunks) {
+        byte[] compressed = Base64.getDecoder().decode(String.join("", chunks));
+        Inflater inflater = new Inflater(true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 4);
+        try {
+            inflater.setInput(compressed);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated chunked attribute value");
+                }
+                out.write(buffer, 0, n);
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt chunked attribute value", e);
+        } finally {
+            inflater.end();
+        }
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    private static void removeChunks(UserModel user, String name, int fromIndex) {
+        Map<String, List<String>> attributes = user.getAttributes();
+        for (int i = fromIndex; attributes.containsKey(name + CHUNK_INFIX + i); i++) {
+            user.removeAttribute(name + CHUNK_INFIX + i);
+        }
+    }
+}
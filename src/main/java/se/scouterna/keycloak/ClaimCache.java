@@ -0,0 +1,63 @@
+package se.scouterna.keycloak;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Bounded, node-local LRU cache of parsed JSON claims, keyed by user and attribute and
+ * validated against the user's scoutnet_profile_hash. A new hash after a profile sync
+ * simply misses and replaces the entry, so no cross-node invalidation is needed.
+ *
+ * Cached trees are shared between tokens and must not be modified.
+ */
+class ClaimCache {
+
+    private final int maxEntries;
+    private final Map<String, Entry> entries;
+
+    ClaimCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<>(Math.min(maxEntries, 1024), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > ClaimCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached tree for this user/attribute if it was parsed under the same profile hash,
+     * otherwise loads, caches and returns it. Null results are not cached.
+     */
+    JsonNode get(String userId, String attribute, String profileHash, Supplier<JsonNode> loader) {
+        if (profileHash == null) {
+            return loader.get();
+        }
+        String key = userId + ':' + attribute;
+        synchronized (entries) {
+            Entry cached = entries.get(key);
+            if (cached != null && cached.profileHash.equals(profileHash)) {
+                return cached.claim;
+            }
+        }
+        JsonNode claim = loader.get();
+        if (claim != null) {
+            synchronized (entries) {
+                entries.put(key, new Entry(profileHash, claim));
+            }
+        }
+        return claim;
+    }
+
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private record Entry(String profileHash, JsonNode claim) {
+    }
+}
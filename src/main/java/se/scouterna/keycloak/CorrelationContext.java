@@ -0,0 +1,90 @@
+package se.scouterna.keycloak;
+
+import org.jboss.logging.MDC;
+
+import java.util.HexFormat;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Correlation IDs for a login or a background job, kept in the JBoss Logging MDC under
+ * {@value #MDC_KEY} for the duration of the unit of work and sent to Scoutnet as the
+ * {@value #HEADER} header.
+ *
+ * IDs are 8 hex digits from {@link ThreadLocalRandom}: they only need to be unique enough to
+ * grep for, not unguessable, so they skip the SecureRandom behind {@code UUID.randomUUID()}.
+ */
+public final class CorrelationContext {
+
+    public static final String MDC_KEY = "scoutnet.correlation";
+    public static final String HEADER = "X-Correlation-ID";
+
+    private static final HexFormat HEX = HexFormat.of();
+
+    private CorrelationContext() {
+    }
+
+    static String newId() {
+        return HEX.toHexDigits(ThreadLocalRandom.current().nextInt());
+    }
+
+    /**
+     * The ID of the unit of work on this thread, or null outside one.
+     */
+    public static String current() {
+        Object id = MDC.get(MDC_KEY);
+        return id != null ? id.toString() : null;
+    }
+
+    /**
+     * Starts a unit of work with a new ID.
+     */
+    public static Scope begin() {
+        return open(newId());
+    }
+
+    /**
+     * Continues a unit of work under an existing ID, e.g. on another thread.
+     */
+    public static Scope open(String id) {
+        return new Scope(id, MDC.put(MDC_KEY, id));
+    }
+
+    /**
+     * Wraps a task so it runs under this thread's current ID, wherever it is executed.
+     */
+    public static Runnable propagate(Runnable task) {
+        String id = current();
+        if (id == null) return task;
+        return () -> {
+            try (Scope scope = open(id)) {
+                task.run();
+            }
+        };
+    }
+
+    /**
+     * An ID in the MDC; closing it restores whatever the thread had before.
+     */
+    public static final class Scope implements AutoCloseable {
+        private final String id;
+        private final Object previous;
+
+        private Scope(String id, Object previous) {
+            this.id = id;
+            this.previous = previous;
+        }
+
+        public String id() {
+            return id;
+        }
+
+        @Override
+        public void close() {
+            if (previous != null) {
+                MDC.put(MDC_KEY, previous);
+            } else {
+                MDC.remove(MDC_KEY);
+            }
+        }
+    }
+}
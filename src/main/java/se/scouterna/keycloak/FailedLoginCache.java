@@ -0,0 +1,127 @@
+package se.scouterna.keycloak;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Node-local, size-bounded memory of recent failed password logins, so retried typos, scripts
+ * and credential-stuffing bursts don't each cost a call to Scoutnet's /api/authenticate.
+ *
+ * An identical (username, password) pair that failed within {@link #ATTEMPT_TTL_MILLIS} is
+ * rejected without asking Scoutnet again. After {@link #FREE_FAILURES} failures for a username,
+ * further attempts are rejected outright until an exponentially growing delay has passed,
+ * rather than holding a login thread while waiting.
+ *
+ * Keys are SHA-256 hashes salted with a per-node random value; neither usernames nor passwords
+ * are kept in memory.
+ */
+class FailedLoginCache {
+
+    static final long ATTEMPT_TTL_MILLIS = 5 * 60_000L;
+    static final long USERNAME_TTL_MILLIS = 15 * 60_000L;
+    static final int FREE_FAILURES = 3;
+    static final long MAX_DELAY_MILLIS = 60_000L;
+
+    enum Decision { ALLOW, KNOWN_FAILURE, THROTTLED }
+
+    private final byte[] salt = new byte[32];
+    private final LongSupplier clock;
+    private final Map<String, Long> failedAttempts;
+    private final Map<String, UsernameState> usernames;
+
+    FailedLoginCache(int maxEntries) {
+        this(maxEntries, System::currentTimeMillis);
+    }
+
+    FailedLoginCache(int maxEntries, LongSupplier clock) {
+        new SecureRandom().nextBytes(salt);
+        this.clock = clock;
+        this.failedAttempts = boundedMap(maxEntries);
+        this.usernames = boundedMap(maxEntries);
+    }
+
+    Decision check(String username, String password) {
+        long now = clock.getAsLong();
+        synchronized (this) {
+            Long expires = failedAttempts.get(attemptKey(username, password));
+            if (expires != null && expires > now) {
+                return Decision.KNOWN_FAILURE;
+            }
+            UsernameState state = usernames.get(usernameKey(username));
+            if (state != null && state.isActive(now) && now < state.lastFailure + delayMillis(state.failures)) {
+                return Decision.THROTTLED;
+            }
+        }
+        return Decision.ALLOW;
+    }
+
+    void recordFailure(String username, String password) {
+        long now = clock.getAsLong();
+        synchronized (this) {
+            failedAttempts.put(attemptKey(username, password), now + ATTEMPT_TTL_MILLIS);
+            String key = usernameKey(username);
+            UsernameState state = usernames.get(key);
+            int failures = state != null && state.isActive(now) ? state.failures + 1 : 1;
+            usernames.put(key, new UsernameState(failures, now));
+        }
+    }
+
+    void recordSuccess(String username) {
+        synchronized (this) {
+            usernames.remove(usernameKey(username));
+        }
+    }
+
+    /**
+     * How long after the latest of {@code failures} failures the next attempt is accepted.
+     */
+    static long delayMillis(int failures) {
+        if (failures < FREE_FAILURES) return 0;
+        int doublings = Math.min(failures - FREE_FAILURES, 16);
+        return Math.min(1000L << doublings, MAX_DELAY_MILLIS);
+    }
+
+    private String attemptKey(String username, String password) {
+        return hash(normalize(username) + '\0' + password);
+    }
+
+    private String usernameKey(String username) {
+        return hash(normalize(username));
+    }
+
+    private static String normalize(String username) {
+        return username.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private String hash(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(salt);
+            return Base64.getEncoder().encodeToString(digest.digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private static <V> Map<String, V> boundedMap(int maxEntries) {
+        return new LinkedHashMap<>(Math.min(maxEntries, 1024), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    private record UsernameState(int failures, long lastFailure) {
+        boolean isActive(long now) {
+            return now - lastFailure < USERNAME_TTL_MILLIS;
+        }
+    }
+}
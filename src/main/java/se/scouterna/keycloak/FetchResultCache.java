@@ -0,0 +1,149 @@
+package se.scouterna.keycloak;
+
+import org.keycloak.models.KeycloakSession;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Short-lived cache of Scoutnet profile+roles fetch results keyed by member number, so a
+ * password login followed by a cookie re-auth on another node, or a second device minutes
+ * later, doesn't fetch the same data again.
+ *
+ * The raw JSON and its hash are shared across nodes through Keycloak's replicated single-use
+ * object cache with a TTL. That cache has no size limit of its own, so results are stored in a
+ * fixed number of slots, {@code maxEntries}, picked by member number; a member whose slot is
+ * taken replaces the previous occupant, and the shared tier never holds more than
+ * {@code maxEntries} results however many members log in within the TTL. Each node keeps a
+ * bounded LRU of parsed results in front of it; a local entry is reused while the shared entry
+ * carries the same hash, so a result is parsed at most once per node.
+ */
+public class FetchResultCache {
+
+    private static final String KEY_PREFIX = "scoutnet-fetch.";
+    private static final String NOTE_MEMBER_NO = "member_no";
+    private static final String NOTE_PROFILE = "profile";
+    private static final String NOTE_ROLES = "roles";
+    private static final String NOTE_HASH = "hash";
+
+    private final int maxEntries;
+    private final long ttlSeconds;
+    private final Map<String, Entry> entries;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder sharedHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public FetchResultCache(int maxEntries, long ttlSeconds) {
+        this.maxEntries = maxEntries;
+        this.ttlSeconds = ttlSeconds;
+        this.entries = new LinkedHashMap<>(Math.min(maxEntries, 1024), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                boolean evict = size() > FetchResultCache.this.maxEntries;
+                if (evict) evictions.increment();
+                return evict;
+            }
+        };
+    }
+
+    /**
+     * Returns a fetch result for the member no older than the TTL, or null.
+     */
+    public ScoutnetProfileSync.FetchResult get(KeycloakSession session, String memberNo) {
+        if (memberNo == null) return null;
+
+        Map<String, String> shared = session.singleUseObjects().get(slotKey(memberNo));
+        if (shared == null || !memberNo.equals(shared.get(NOTE_MEMBER_NO)) || shared.get(NOTE_PROFILE) == null) {
+            remove(memberNo);
+            misses.increment();
+            return null;
+        }
+
+        String hash = shared.get(NOTE_HASH);
+        synchronized (entries) {
+            Entry local = entries.get(memberNo);
+            if (local != null && local.hash.equals(hash)) {
+                hits.increment();
+                return local.result;
+            }
+        }
+
+        ScoutnetProfileSync.FetchResult result = ScoutnetProfileSync.parseFetchResult(
+            shared.get(NOTE_PROFILE), shared.get(NOTE_ROLES));
+        if (result == null) {
+            misses.increment();
+            return null;
+        }
+        putLocal(memberNo, hash, result);
+        sharedHits.increment();
+        return result;
+    }
+
+    /**
+     * Caches a fresh result, provided it actually belongs to the member no.
+     */
+    public void put(KeycloakSession session, String memberNo, ScoutnetProfileSync.FetchResult result) {
+        if (memberNo == null || result == null || result.getProfileJson() == null
+                || !memberNo.equals(String.valueOf(result.getProfile().getMemberNo()))) {
+            return;
+        }
+        String hash = hash(result.getProfileJson(), result.getRolesJson());
+        Map<String, String> notes = new HashMap<>(8);
+        notes.put(NOTE_MEMBER_NO, memberNo);
+        notes.put(NOTE_PROFILE, result.getProfileJson());
+        if (result.getRolesJson() != null) notes.put(NOTE_ROLES, result.getRolesJson());
+        notes.put(NOTE_HASH, hash);
+        session.singleUseObjects().put(slotKey(memberNo), ttlSeconds, notes);
+        putLocal(memberNo, hash, result);
+    }
+
+    public long getHitCount() { return hits.sum(); }
+    public long getSharedHitCount() { return sharedHits.sum(); }
+    public long getMissCount() { return misses.sum(); }
+    public long getEvictionCount() { return evictions.sum(); }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private void putLocal(String memberNo, String hash, ScoutnetProfileSync.FetchResult result) {
+        synchronized (entries) {
+            entries.put(memberNo, new Entry(hash, result));
+        }
+    }
+
+    private void remove(String memberNo) {
+        synchronized (entries) {
+            entries.remove(memberNo);
+        }
+    }
+
+    private String slotKey(String memberNo) {
+        return KEY_PREFIX + Math.floorMod(memberNo.hashCode(), maxEntries);
+    }
+
+    static String hash(String profileJson, String rolesJson) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(profileJson.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            if (rolesJson != null) digest.update(rolesJson.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private record Entry(String hash, ScoutnetProfileSync.FetchResult result) {
+    }
+}
@@ -0,0 +1,47 @@
+package se.scouterna.keycloak;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.SingleUseObjectProvider;
+import org.keycloak.models.UserModel;
+
+import java.util.Map;
+
+/**
+ * Records when a user's profile was last fetched from Scoutnet, for the cookie authenticator's
+ * fetch throttle and the pre-refresh job.
+ *
+ * The timestamp lives in Keycloak's cluster-replicated single-use object cache keyed by user ID,
+ * so recording a fetch is a cache put rather than a user attribute write that would hit the
+ * database and evict the user from every node's user cache. The {@code scoutnet_last_fetch}
+ * attribute written by earlier versions is only read as a fallback until the user's first fetch
+ * is recorded in the cache, which removes it; after that a cache miss just means a fetch.
+ */
+public final class FetchThrottle {
+
+    public static final String LAST_FETCH_ATTRIBUTE = "scoutnet_last_fetch";
+    static final String KEY_PREFIX = "scoutnet-last-fetch.";
+    private static final String NOTE_LAST_FETCH = "lastFetch";
+    // Outlives any sensible fetch interval or staleness ceiling; an expired entry just means one extra fetch
+    static final long LIFESPAN_SECONDS = 7 * 24 * 60 * 60;
+
+    private FetchThrottle() {
+    }
+
+    /**
+     * Returns the last fetch time in epoch millis as a string, or null if unknown.
+     */
+    public static String getLastFetch(KeycloakSession session, UserModel user) {
+        Map<String, String> notes = session.singleUseObjects().get(KEY_PREFIX + user.getId());
+        String lastFetch = notes != null ? notes.get(NOTE_LAST_FETCH) : null;
+        return lastFetch != null ? lastFetch : user.getFirstAttribute(LAST_FETCH_ATTRIBUTE);
+    }
+
+    public static void recordFetch(KeycloakSession session, UserModel user, long timestamp) {
+        SingleUseObjectProvider cache = session.singleUseObjects();
+        cache.put(KEY_PREFIX + user.getId(), LIFESPAN_SECONDS, Map.of(NOTE_LAST_FETCH, String.valueOf(timestamp)));
+        // A one-time write per migrated user; a stale fallback would otherwise outlive every cache loss
+        if (user.getFirstAttribute(LAST_FETCH_ATTRIBUTE) != null) {
+            user.removeAttribute(LAST_FETCH_ATTRIBUTE);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package se.scouterna.keycloak;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import se.scouterna.keycloak.client.ScoutnetJson;
+import se.scouterna.keycloak.client.dto.Group;
+import se.scouterna.keycloak.client.dto.GroupMembership;
+import se.scouterna.keycloak.client.dto.Patrol;
+import se.scouterna.keycloak.client.dto.Profile;
+import se.scouterna.keycloak.client.dto.RoleSummaryEntry;
+import se.scouterna.keycloak.client.dto.Roles;
+import se.scouterna.keycloak.client.dto.Troop;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Streams the memberships claim straight from the Scoutnet {@link Profile}/{@link Roles} DTOs
+ * to JSON, without building an intermediate object graph for reflection-based serialization.
+ *
+ * Output order is fixed: groups, troops, patrols, organisations, regions, districts, corps,
+ * networks, projects. Every section is always present so integrators see a consistent shape.
+ * Entries keep Scoutnet's order; roles within an entry are sorted by key.
+ */
+final class MembershipsJsonWriter {
+
+    private static final Comparator<RoleItem> BY_KEY = Comparator.comparing(RoleItem::key,
+        Comparator.nullsLast(Comparator.naturalOrder()));
+
+    private MembershipsJsonWriter() {
+    }
+
+    /**
+     * The serialized memberships and the offset where the groups section ends, so a groups-only
+     * payload can be cut out of it without serializing a second time.
+     */
+    record Result(String json, int groupsEnd) {
+
+        /**
+         * Returns the full JSON if it fits {@code maxLength}, otherwise groups only with an error
+         * marker, or just the error marker if even the groups don't fit.
+         */
+        String withinBudget(int maxLength, String error) {
+            if (json.length() <= maxLength) return json;
+            String quotedError = ",\"error\":\"" + new String(JsonStringEncoder.getInstance().quoteAsString(error)) + "\"}";
+            if (groupsEnd + quotedError.length() <= maxLength) {
+                return json.substring(0, groupsEnd) + quotedError;
+            }
+            return "{" + quotedError.substring(1);
+        }
+    }
+
+    static Result write(Profile profile, Roles roles) {
+        Map<String, GroupMembership> memberships = profile.getMemberships() != null
+            ? profile.getMemberships().getGroup()
+            : null;
+
+        StringWriter out = new StringWriter(1024);
+        try (JsonGenerator gen = ScoutnetJson.FACTORY.createGenerator(out)) {
+            gen.writeStartObject();
+
+            gen.writeObjectFieldStart("groups");
+            if (memberships != null) {
+                Map<String, String> roleNames = roleNamesByKey(profile.getRoleSummary());
+                for (Map.Entry<String, GroupMembership> entry : memberships.entrySet()) {
+                    GroupMembership membership = entry.getValue();
+                    Group group = membership.getGroup();
+                    gen.writeObjectFieldStart(entry.getKey());
+                    if (group != null && group.getName() != null) {
+                        gen.writeStringField("name", group.getName());
+                    }
+                    gen.writeBooleanField("is_primary", membership.isPrimary());
+                    writeRoles(gen, membership.getRoles(), roleNames);
+                    gen.writeEndObject();
+                }
+            }
+            gen.writeEndObject();
+            gen.flush();
+            int groupsEnd = out.getBuffer().length();
+
+            if (roles != null) {
+                writeNamedEntries(gen, "troops", roles.getTroop(), memberships, true);
+                writeNamedEntries(gen, "patrols", roles.getPatrol(), memberships, false);
+                writeSimpleEntries(gen, "organisations", roles.getOrganisation());
+                writeSimpleEntries(gen, "regions", roles.getRegion());
+                writeSimpleEntries(gen, "districts", roles.getDistrict());
+                writeSimpleEntries(gen, "corps", roles.getCorps());
+                writeSimpleEntries(gen, "networks", roles.getNetwork());
+                writeSimpleEntries(gen, "projects", roles.getProject());
+            } else {
+                for (String section : new String[]{"troops", "patrols", "organisations", "regions",
+                        "districts", "corps", "networks", "projects"}) {
+                    gen.writeObjectFieldStart(section);
+                    gen.writeEndObject();
+                }
+            }
+
+            gen.writeEndObject();
+            gen.flush();
+            return new Result(out.toString(), groupsEnd);
+        } catch (IOException e) {
+            // StringWriter doesn't throw; only reachable through a generator bug
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Troop/patrol entries get their name and owning group from the profile's group memberships.
+     */
+    private static void writeNamedEntries(JsonGenerator gen, String section, Map<String, Map<String, String>> rolesForType,
+                                          Map<String, GroupMembership> memberships, boolean troops) throws IOException {
+        gen.writeObjectFieldStart(section);
+        if (rolesForType != null && !rolesForType.isEmpty()) {
+            Map<String, Owner> owners = ownersById(memberships, troops);
+            for (Map.Entry<String, Map<String, String>> entry : rolesForType.entrySet()) {
+                String entityId = entry.getKey();
+                Owner owner = owners.get(entityId);
+
+                gen.writeObjectFieldStart(entityId);
+                if (owner != null && owner.name() != null) {
+                    gen.writeStringField("name", owner.name());
+                }
+                gen.writeFieldName("groupId");
+                if (owner != null) {
+                    gen.writeNumber(Integer.parseInt(owner.groupId()));
+                } else {
+                    gen.writeNull();
+                }
+                writeRoles(gen, entry.getValue(), Collections.emptyMap());
+                gen.writeEndObject();
+            }
+        }
+        gen.writeEndObject();
+    }
+
+    /**
+     * Troop or patrol id to its name and the group membership it belongs to. Later memberships
+     * win when several list the same troop or patrol.
+     */
+    private static Map<String, Owner> ownersById(Map<String, GroupMembership> memberships, boolean troops) {
+        if (memberships == null || memberships.isEmpty()) return Collections.emptyMap();
+        Map<String, Owner> owners = new HashMap<>(memberships.size() * 2);
+        for (Map.Entry<String, GroupMembership> membership : memberships.entrySet()) {
+            if (!isInteger(membership.getKey())) continue;
+            if (troops) {
+                Troop troop = membership.getValue().getTroop();
+                if (troop != null) {
+                    owners.put(String.valueOf(troop.getId()), new Owner(troop.getName(), membership.getKey()));
+                }
+            } else {
+                Patrol patrol = membership.getValue().getPatrol();
+                if (patrol != null) {
+                    owners.put(String.valueOf(patrol.getId()), new Owner(patrol.getName(), membership.getKey()));
+                }
+            }
+        }
+        return owners;
+    }
+
+    private static void writeSimpleEntries(JsonGenerator gen, String section,
+                                           Map<String, Map<String, String>> rolesForType) throws IOException {
+        gen.writeObjectFieldStart(section);
+        if (rolesForType != null) {
+            for (Map.Entry<String, Map<String, String>> entry : rolesForType.entrySet()) {
+                gen.writeObjectFieldStart(entry.getKey());
+                writeRoles(gen, entry.getValue(), Collections.emptyMap());
+                gen.writeEndObject();
+            }
+        }
+        gen.writeEndObject();
+    }
+
+    private static void writeRoles(JsonGenerator gen, Map<String, String> rolesMap,
+                                   Map<String, String> roleNames) throws IOException {
+        gen.writeArrayFieldStart("roles");
+        if (rolesMap != null && !rolesMap.isEmpty()) {
+            RoleItem[] items = new RoleItem[rolesMap.size()];
+            int count = 0;
+            for (Map.Entry<String, String> entry : rolesMap.entrySet()) {
+                if (!isInteger(entry.getKey())) continue;
+                String key = entry.getValue();
+                items[count++] = new RoleItem(Integer.parseInt(entry.getKey()), key, key != null ? roleNames.get(key) : null);
+            }
+            if (count > 1) {
+                Arrays.sort(items, 0, count, BY_KEY);
+            }
+            for (int i = 0; i < count; i++) {
+                RoleItem item = items[i];
+                gen.writeStartObject();
+                gen.writeNumberField("id", item.id());
+                if (item.key() != null) {
+                    gen.writeStringField("key", item.key());
+                }
+                if (item.name() != null) {
+                    gen.writeStringField("name", item.name());
+                }
+                gen.writeEndObject();
+            }
+        }
+        gen.writeEndArray();
+    }
+
+    /**
+     * Role display names; role_summary covers group-level roles only.
+     */
+    private static Map<String, String> roleNamesByKey(Map<String, RoleSummaryEntry> roleSummary) {
+        if (roleSummary == null || roleSummary.isEmpty()) return Collections.emptyMap();
+        Map<String, String> names = new HashMap<>(roleSummary.size() * 2);
+        for (RoleSummaryEntry entry : roleSummary.values()) {
+            if (entry.getRoleKey() != null) {
+                names.put(entry.getRoleKey(), entry.getRoleName());
+            }
+        }
+        return names;
+    }
+
+    private static boolean isInteger(String value) {
+        if (value == null || value.isEmpty()) return false;
+        try {
+            Integer.parseInt(value);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private record RoleItem(int id, String key, String name) {
+    }
+
+    private record Owner(String name, String groupId) {
+    }
+}
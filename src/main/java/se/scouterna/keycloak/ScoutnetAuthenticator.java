@@ -15,7 +15,6 @@ import se.scouterna.keycloak.client.dto.AuthResponse;
 import se.scouterna.keycloak.client.dto.Profile;
 
 import java.time.LocalDate;
-import java.util.UUID;
 
 /**
  * Keycloak Authenticator that validates credentials against the Scoutnet API.
@@ -25,12 +24,19 @@ public class ScoutnetAuthenticator implements Authenticator {
 
     private static final Logger log = Logger.getLogger(ScoutnetAuthenticator.class);
     private static final String APP_NAME = "ScoutID";
+    private static final int FAILED_LOGIN_CACHE_SIZE = 10_000;
 
     private final ScoutnetClient scoutnetClient;
     private final ScoutnetProfileSync profileSync;
+    private final FailedLoginCache failedLogins = new FailedLoginCache(FAILED_LOGIN_CACHE_SIZE);
 
-    public ScoutnetAuthenticator() {
-        this.scoutnetClient = new ScoutnetClient();
+    public ScoutnetAuthenticator(ScoutnetComponents components) {
+        this.scoutnetClient = components.scoutnetClient();
+        this.profileSync = components.profileSync();
+    }
+
+    ScoutnetAuthenticator(ScoutnetClient scoutnetClient) {
+        this.scoutnetClient = scoutnetClient;
         this.profileSync = new ScoutnetProfileSync(scoutnetClient, new ScoutnetGroupManager());
     }
 
@@ -42,14 +48,19 @@ public class ScoutnetAuthenticator implements Authenticator {
 
     @Override
     public void action(AuthenticationFlowContext context) {
-        String correlationId = UUID.randomUUID().toString().substring(0, 8);
-        log.debugf("[%s] Processing submitted login form for Scoutnet authentication.", correlationId);
+        try (CorrelationContext.Scope correlation = CorrelationContext.begin()) {
+            processLoginForm(context);
+        }
+    }
+
+    private void processLoginForm(AuthenticationFlowContext context) {
+        log.debugf("[%s] Processing submitted login form for Scoutnet authentication.", CorrelationContext.current());
         MultivaluedMap<String, String> formData = context.getHttpRequest().getDecodedFormParameters();
         String username = formData.getFirst("username");
         String password = formData.getFirst("password");
 
         if (username == null || username.trim().isEmpty() || password == null || password.isEmpty()) {
-            failAuthentication(context, username, "Please provide both a username and a password.", correlationId);
+            failAuthentication(context, username, "Please provide both a username and a password.");
             return;
         }
 
@@ -61,32 +72,50 @@ public class ScoutnetAuthenticator implements Authenticator {
         // Step 1: Authenticate — request persistent token only if "remember me" is checked and enabled
         boolean rememberMe = context.getRealm().isRememberMe() && "on".equals(formData.getFirst("rememberMe"));
         String logUsername = safeLogUsername(username, isPersonnummer);
-        String appId = null;
-        String deviceName = null;
-        if (rememberMe) {
-            appId = "scoutid-keycloak-" + context.getRealm().getName();
-            deviceName = context.getUriInfo().getBaseUri().toString();
+        String appId = rememberMe ? "scoutid-keycloak-" + context.getRealm().getName() : null;
+        String deviceName = rememberMe ? context.getUriInfo().getBaseUri().toString() : null;
+        FailedLoginCache.Decision decision = failedLogins.check(username, password);
+        if (decision != FailedLoginCache.Decision.ALLOW) {
+            log.debugf("[%s] Skipping Scoutnet call for user %s: %s", CorrelationContext.current(), logUsername, decision);
+            String messageKey = decision == FailedLoginCache.Decision.KNOWN_FAILURE ? "invalidUserMessage" : "loginTimeout";
+            ScoutnetMetrics.INSTANCE.login(context.getRealm().getName(), decision);
+            failAuthentication(context, logUsername, messageKey);
+            return;
         }
-        AuthResult authResult = scoutnetClient.authenticate(username, password, logUsername, appId, APP_NAME, deviceName, correlationId);
+
+        String scoutnetUsername = username;
+        AuthResult authResult = ScoutnetTracing.call(context.getSession(), ScoutnetAuthenticator.class, "scoutnetAuthenticate", span -> {
+            AuthResult result = scoutnetClient.authenticate(scoutnetUsername, password, logUsername, appId, APP_NAME,
+                deviceName);
+            span.setAttribute("scoutnet.auth.result", result.isSuccess() ? "success" : result.getError().name());
+            return result;
+        });
         if (!authResult.isSuccess()) {
-            String messageKey = authResult.getError() == AuthResult.AuthError.INVALID_CREDENTIALS
-                ? "invalidUserMessage"
-                : "loginTimeout";
-            failAuthentication(context, logUsername, messageKey, correlationId);
+            ScoutnetMetrics.INSTANCE.login(context.getRealm().getName(), authResult.getError());
+            boolean invalidCredentials = authResult.getError() == AuthResult.AuthError.INVALID_CREDENTIALS;
+            if (invalidCredentials) {
+                failedLogins.recordFailure(username, password);
+            }
+            failAuthentication(context, logUsername, invalidCredentials ? "invalidUserMessage" : "loginTimeout");
             return;
         }
+        failedLogins.recordSuccess(username);
 
         AuthResponse authResponse = authResult.getAuthResponse();
         if (authResponse.getToken() == null || authResponse.getToken().isEmpty()) {
-            failAuthentication(context, logUsername, "loginTimeout", correlationId);
+            ScoutnetMetrics.INSTANCE.login(context.getRealm().getName(), AuthResult.AuthError.SERVICE_UNAVAILABLE);
+            failAuthentication(context, logUsername, "loginTimeout");
             return;
         }
 
-        // Step 2: Fetch profile and roles
-        ScoutnetProfileSync.FetchResult fetchResult = profileSync.fetchProfileAndRoles(authResponse.getToken(), correlationId);
+        // Step 2: Fetch profile and roles, unless another node fetched them for this member moments ago
+        String memberNo = authResponse.getMember() != null ? String.valueOf(authResponse.getMember().getMemberNo()) : null;
+        ScoutnetProfileSync.FetchResult fetchResult = profileSync.fetchProfileAndRoles(
+            context.getSession(), memberNo, authResponse.getToken());
         if (fetchResult == null) {
-            log.errorf("[%s] Could not retrieve user profile from Scoutnet for user: %s", correlationId, logUsername);
-            failAuthentication(context, logUsername, "loginTimeout", correlationId);
+            log.errorf("[%s] Could not retrieve user profile from Scoutnet for user: %s", CorrelationContext.current(), logUsername);
+            ScoutnetMetrics.INSTANCE.login(context.getRealm().getName(), AuthResult.AuthError.SERVICE_UNAVAILABLE);
+            failAuthentication(context, logUsername, "loginTimeout");
             return;
         }
 
@@ -94,34 +123,39 @@ public class ScoutnetAuthenticator implements Authenticator {
 
         // Step 3: Find or create the Keycloak user
         String keycloakUsername = "scoutnet|" + profile.getMemberNo();
-        UserModel user = KeycloakModelUtils.findUserByNameOrEmail(context.getSession(), context.getRealm(), keycloakUsername);
-
-        if (user == null) {
-            log.infof("[%s] First time login for Scoutnet user: %d. Creating new Keycloak user: %s.", correlationId, profile.getMemberNo(), keycloakUsername);
-            user = context.getSession().users().addUser(context.getRealm(), keycloakUsername);
-            user.setEnabled(true);
-        } else {
-            log.debugf("[%s] Found existing Keycloak user: %s, checking for profile updates.", correlationId, keycloakUsername);
-        }
+        UserModel user = ScoutnetTracing.call(context.getSession(), ScoutnetAuthenticator.class, "findOrCreateUser", span -> {
+            UserModel found = KeycloakModelUtils.findUserByNameOrEmail(context.getSession(), context.getRealm(), keycloakUsername);
+            span.setAttribute("scoutnet.user.created", found == null);
+            if (found == null) {
+                log.infof("[%s] First time login for Scoutnet user: %d. Creating new Keycloak user: %s.", CorrelationContext.current(), profile.getMemberNo(), keycloakUsername);
+                found = context.getSession().users().addUser(context.getRealm(), keycloakUsername);
+                found.setEnabled(true);
+            } else {
+                log.debugf("[%s] Found existing Keycloak user: %s, checking for profile updates.", CorrelationContext.current(), keycloakUsername);
+            }
+            return found;
+        });
 
         // Step 4: Sync profile data
-        profileSync.syncUserProfile(context.getSession(), context.getRealm(), user, fetchResult, correlationId);
+        profileSync.syncUserProfile(context.getSession(), context.getRealm(), user, fetchResult);
 
         // Step 5: Store persistent token securely (only if remember-me was checked)
         if (rememberMe) {
-            ScoutnetTokenCredentialProvider.storeToken(user, authResponse.getToken(), appId);
+            ScoutnetTracing.run(context.getSession(), ScoutnetAuthenticator.class, "storeToken", span ->
+                ScoutnetTokenCredentialProvider.storeToken(context.getSession(), user, authResponse.getToken(), appId));
             context.getAuthenticationSession().setAuthNote("remember_me", "true");
-            log.debugf("[%s] Stored persistent Scoutnet token for user: %s", correlationId, keycloakUsername);
+            log.debugf("[%s] Stored persistent Scoutnet token for user: %s", CorrelationContext.current(), keycloakUsername);
         }
 
         context.setUser(user);
         context.getAuthenticationSession().removeAuthNote("username");
-        log.infof("[%s] Authentication successful for user: %s (rememberMe=%s)", correlationId, keycloakUsername, rememberMe);
+        log.infof("[%s] Authentication successful for user: %s (rememberMe=%s)", CorrelationContext.current(), keycloakUsername, rememberMe);
+        ScoutnetMetrics.INSTANCE.login(context.getRealm().getName(), "success");
         context.success();
     }
 
-    private void failAuthentication(AuthenticationFlowContext context, String logUsername, String messageKey, String correlationId) {
-        log.warnf("[%s] Authentication failed for user %s: %s", correlationId, logUsername, messageKey);
+    private void failAuthentication(AuthenticationFlowContext context, String logUsername, String messageKey) {
+        log.warnf("[%s] Authentication failed for user %s: %s", CorrelationContext.current(), logUsername, messageKey);
         context.getEvent().user(logUsername).error("invalid_grant");
         context.failureChallenge(AuthenticationFlowError.INVALID_CREDENTIALS,
             context.form().setError(messageKey).createLoginUsernamePassword());
@@ -134,7 +168,7 @@ public class ScoutnetAuthenticator implements Authenticator {
         return username;
     }
 
-    private String normalizePersonnummer(String input) {
+    static String normalizePersonnummer(String input) {
         String digits = input.replaceAll("-", "");
 
         if (digits.matches("\\d{10}")) {
@@ -14,7 +14,10 @@ import java.util.List;
 public class ScoutnetAuthenticatorFactory implements AuthenticatorFactory {
 
     public static final String PROVIDER_ID = "scoutnet-authenticator";
-    private static final ScoutnetAuthenticator SINGLETON = new ScoutnetAuthenticator();
+    private ScoutnetCleanupTask.Settings cleanupSettings;
+    private KeycloakSessionFactory sessionFactory;
+    private ScoutnetComponents components;
+    private ScoutnetAuthenticator authenticator;
 
     @Override
     public String getId() {
@@ -58,18 +61,36 @@ public class ScoutnetAuthenticatorFactory implements AuthenticatorFactory {
 
     @Override
     public Authenticator create(KeycloakSession session) {
-        return SINGLETON;
+        return authenticator;
     }
 
     @Override
     public void init(org.keycloak.Config.Scope config) {
+        cleanupSettings = ScoutnetCleanupTask.Settings.fromConfig(config);
     }
 
     @Override
     public void postInit(KeycloakSessionFactory factory) {
+        sessionFactory = factory;
+        components = ScoutnetComponents.acquire();
+        authenticator = new ScoutnetAuthenticator(components);
+
+        ScoutnetTasks.schedule(factory, new ScoutnetRootGroupMigrationTask(), ScoutnetRootGroupMigrationTask.INTERVAL_MILLIS);
+        if (cleanupSettings.enabled()) {
+            ScoutnetTasks.schedule(factory, new ScoutnetCleanupTask(cleanupSettings), cleanupSettings.intervalMillis());
+        }
     }
 
     @Override
     public void close() {
+        if (sessionFactory != null) {
+            ScoutnetTasks.cancel(sessionFactory, ScoutnetRootGroupMigrationTask.TASK_NAME);
+            if (cleanupSettings.enabled()) {
+                ScoutnetTasks.cancel(sessionFactory, ScoutnetCleanupTask.TASK_NAME);
+            }
+        }
+        if (components != null) {
+            components.release();
+        }
     }
 }
\ No newline at end of file
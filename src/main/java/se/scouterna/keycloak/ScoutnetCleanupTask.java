@@ -0,0 +1,290 @@
+package se.scouterna.keycloak;
+
+import jakarta.persistence.EntityManager;
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.timer.ScheduledTask;
+import se.scouterna.keycloak.client.ScoutnetJson;
+import se.scouterna.keycloak.jpa.GroupEmailReservationStore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+/**
+ * Periodic maintenance of the Scoutnet data in each realm:
+ * <ul>
+ *   <li>subgroups under {@code scoutnet} without members are marked with {@link #EMPTY_SINCE_ATTRIBUTE}
+ *   and removed once they have stayed empty for the grace period; groups with a configured
+ *   {@code domain} and groups from the group catalog import are kept</li>
+ *   <li>{@code group_email_*} attributes of groups the user is no longer a member of are removed,
+ *   together with their reservations, and the user gets a new {@code scoutnet_profile_hash} so
+ *   cached group email claims are re-read</li>
+ *   <li>the legacy {@code scoutnet_definitions}, {@code scoutnet_troops} and {@code roles} attributes
+ *   are removed from {@code scoutnet|*} users</li>
+ * </ul>
+ * Scheduled through the TimerProvider with a ClusterAwareScheduledTaskRunner, so only one node
+ * runs it per interval. Work is done in pages, each in its own transaction.
+ */
+public class ScoutnetCleanupTask implements ScheduledTask {
+
+    private static final Logger log = Logger.getLogger(ScoutnetCleanupTask.class);
+    public static final String TASK_NAME = "scoutnet-cleanup";
+    public static final String EMPTY_SINCE_ATTRIBUTE = "scoutnet_empty_since";
+    private static final List<String> LEGACY_ATTRIBUTES = List.of("scoutnet_definitions", "scoutnet_troops", "roles");
+
+    /**
+     * Provider-level settings, read from {@code spi-authenticator--scoutnet-authenticator--cleanup-*}.
+     */
+    public record Settings(boolean enabled, long intervalMillis, long graceMillis, int batchSize) {
+
+        public static Settings fromConfig(Config.Scope config) {
+            return new Settings(
+                config.getBoolean("cleanupEnabled", false),
+                Math.max(60, config.getInt("cleanupIntervalSeconds", 86_400)) * 1000L,
+                Math.max(0, config.getInt("cleanupGraceDays", 30)) * 86_400_000L,
+                Math.max(1, config.getInt("cleanupBatchSize", 500)));
+        }
+    }
+
+    public record RunStats(int groupsMarked, int groupsUnmarked, int groupsRemoved, int usersPruned,
+                           int attributesRemoved) {
+
+        RunStats plus(RunStats other) {
+            return new RunStats(groupsMarked + other.groupsMarked, groupsUnmarked + other.groupsUnmarked,
+                groupsRemoved + other.groupsRemoved, usersPruned + other.usersPruned,
+                attributesRemoved + other.attributesRemoved);
+        }
+    }
+
+    private final Settings settings;
+
+    public ScoutnetCleanupTask(Settings settings) {
+        this.settings = settings;
+    }
+
+    @Override
+    public String getTaskName() {
+        return TASK_NAME;
+    }
+
+    @Override
+    public void run(KeycloakSession session) {
+        long started = System.currentTimeMillis();
+        KeycloakSessionFactory factory = session.getKeycloakSessionFactory();
+        RunStats total = new RunStats(0, 0, 0, 0, 0);
+        for (String realmId : session.realms().getRealmsStream().map(RealmModel::getId).toList()) {
+            String parentId = KeycloakModelUtils.runJobInTransactionWithResult(factory, jobSession ->
+                jobSession.groups().getTopLevelGroupsStream(jobSession.realms().getRealm(realmId))
+                    .filter(group -> ScoutnetGroupManager.PARENT_GROUP_NAME.equals(group.getName()))
+                    .map(GroupModel::getId)
+                    .findFirst()
+                    .orElse(null));
+            if (parentId == null) continue;
+
+            RunStats stats = cleanupGroups(factory, realmId, parentId, started)
+                .plus(pruneUserAttributes(factory, realmId, parentId));
+            if (stats.groupsRemoved() + stats.usersPruned() > 0) {
+                log.infof("Scoutnet cleanup in realm %s: %s", realmId, stats);
+            }
+            total = total.plus(stats);
+        }
+        log.infof("Scoutnet cleanup finished in %d ms: %d empty groups marked, %d unmarked, %d removed; "
+                + "%d attributes removed from %d users",
+            System.currentTimeMillis() - started, total.groupsMarked(), total.groupsUnmarked(),
+            total.groupsRemoved(), total.attributesRemoved(), total.usersPruned());
+    }
+
+    private RunStats cleanupGroups(KeycloakSessionFactory factory, String realmId, String parentId, long now) {
+        int[] counts = new int[3];
+        // Groups that got members back since they were marked
+        KeycloakModelUtils.runJobInTransaction(factory, session -> {
+            RealmModel realm = session.realms().getRealm(realmId);
+            for (String groupId : markedGroupsWithMembers(session, realmId, parentId)) {
+                GroupModel group = realm.getGroupById(groupId);
+                if (group != null) {
+                    group.removeAttribute(EMPTY_SINCE_ATTRIBUTE);
+                    counts[1]++;
+                }
+            }
+        });
+
+        String after = "";
+        while (true) {
+            String cursor = after;
+            List<String> groupIds = KeycloakModelUtils.runJobInTransactionWithResult(factory, session ->
+                emptySubgroups(session, realmId, parentId, cursor));
+            if (groupIds.isEmpty()) break;
+
+            KeycloakModelUtils.runJobInTransaction(factory, session -> {
+                RealmModel realm = session.realms().getRealm(realmId);
+                for (String groupId : groupIds) {
+                    GroupModel group = realm.getGroupById(groupId);
+                    if (group == null || hasDomain(group) || ScoutnetGroupCatalogImporter.isCatalogGroup(group)) continue;
+                    String emptySince = group.getFirstAttribute(EMPTY_SINCE_ATTRIBUTE);
+                    if (emptySince == null) {
+                        group.setSingleAttribute(EMPTY_SINCE_ATTRIBUTE, String.valueOf(now));
+                        counts[0]++;
+                    } else if (now - parseLong(emptySince, now) >= settings.graceMillis()) {
+                        // The page was read in an earlier transaction; a login may have joined the group since
+                        if (session.users().getGroupMembersStream(realm, group, 0, 1).findAny().isPresent()) {
+                            group.removeAttribute(EMPTY_SINCE_ATTRIBUTE);
+                            counts[1]++;
+                        } else {
+                            session.groups().removeGroup(realm, group);
+                            counts[2]++;
+                        }
+                    }
+                }
+            });
+            after = groupIds.get(groupIds.size() - 1);
+        }
+        return new RunStats(counts[0], counts[1], counts[2], 0, 0);
+    }
+
+    private List<String> emptySubgroups(KeycloakSession session, String realmId, String parentId, String after) {
+        return entityManager(session).createQuery(
+                "select g.id from GroupEntity g where g.realm = :realmId and g.parentId = :parentId and g.id > :after"
+                    + " and not exists (select m from UserGroupMembershipEntity m where m.groupId = g.id)"
+                    + " and not exists (select c from GroupEntity c where c.parentId = g.id)"
+                    + " order by g.id", String.class)
+            .setParameter("realmId", realmId)
+            .setParameter("parentId", parentId)
+            .setParameter("after", after)
+            .setMaxResults(settings.batchSize())
+            .getResultList();
+    }
+
+    private List<String> markedGroupsWithMembers(KeycloakSession session, String realmId, String parentId) {
+        return entityManager(session).createQuery(
+                "select g.id from GroupEntity g join g.attributes a where g.realm = :realmId and g.parentId = :parentId"
+                    + " and a.name = :name"
+                    + " and exists (select m from UserGroupMembershipEntity m where m.groupId = g.id)", String.class)
+            .setParameter("realmId", realmId)
+            .setParameter("parentId", parentId)
+            .setParameter("name", EMPTY_SINCE_ATTRIBUTE)
+            .getResultList();
+    }
+
+    private RunStats pruneUserAttributes(KeycloakSessionFactory factory, String realmId, String parentId) {
+        int users = 0;
+        int[] removed = new int[1];
+        String after = "";
+        while (true) {
+            String cursor = after;
+            List<String> userIds = KeycloakModelUtils.runJobInTransactionWithResult(factory, session ->
+                usersWithStaleAttributes(session, realmId, parentId, cursor));
+            if (userIds.isEmpty()) break;
+
+            KeycloakModelUtils.runJobInTransaction(factory, session -> {
+                RealmModel realm = session.realms().getRealm(realmId);
+                GroupModel parent = realm.getGroupById(parentId);
+                GroupEmailReservationStore reservations = new GroupEmailReservationStore(session);
+                for (String userId : userIds) {
+                    UserModel user = session.users().getUserById(realm, userId);
+                    if (user != null) {
+                        removed[0] += pruneUser(realm, user, parent, reservations);
+                    }
+                }
+            });
+            users += userIds.size();
+            after = userIds.get(userIds.size() - 1);
+        }
+        return new RunStats(0, 0, 0, users, removed[0]);
+    }
+
+    private List<String> usersWithStaleAttributes(KeycloakSession session, String realmId, String parentId, String after) {
+        return entityManager(session).createQuery(
+                "select distinct a.user.id from UserAttributeEntity a where a.user.realmId = :realmId"
+                    + " and a.user.username like 'scoutnet|%' and a.user.id > :after"
+                    + " and (a.name in :legacy or (a.name like 'group!_email!_%' escape '!'"
+                    + " and not exists (select m from UserGroupMembershipEntity m, GroupEntity g"
+                    + " where m.user = a.user and m.groupId = g.id and g.parentId = :parentId"
+                    + " and concat('group_email_', g.name) = a.name)))"
+                    + " order by a.user.id", String.class)
+            .setParameter("realmId", realmId)
+            .setParameter("parentId", parentId)
+            .setParameter("legacy", LEGACY_ATTRIBUTES)
+            .setParameter("after", after)
+            .setMaxResults(settings.batchSize())
+            .getResultList();
+    }
+
+    static int pruneUser(RealmModel realm, UserModel user, GroupModel parent,
+                         GroupEmailReservationStore reservations) {
+        int removed = 0;
+        Set<String> memberOf = parent == null ? Set.of() : user.getGroupsStream()
+            .filter(group -> parent.getId().equals(group.getParentId()))
+            .map(GroupModel::getName)
+            .collect(Collectors.toSet());
+        Map<String, String> remainingEmails = new TreeMap<>();
+        List<String> releasedGroupIds = new ArrayList<>();
+        for (Map.Entry<String, List<String>> attribute : new TreeMap<>(user.getAttributes()).entrySet()) {
+            String name = attribute.getKey();
+            if (LEGACY_ATTRIBUTES.contains(name)) {
+                user.removeAttribute(name);
+                removed++;
+            } else if (name.startsWith("group_email_")) {
+                String groupId = name.substring("group_email_".length());
+                if (memberOf.contains(groupId)) {
+                    if (!attribute.getValue().isEmpty()) remainingEmails.put(groupId, attribute.getValue().get(0));
+                } else {
+                    releasedGroupIds.add(groupId);
+                    user.removeAttribute(name);
+                    removed++;
+                }
+            }
+        }
+
+        if (releasedGroupIds.isEmpty()) return removed;
+        reservations.release(realm, user, releasedGroupIds);
+
+        // Keep group_emails_json in line with the remaining group_email_* attributes
+        String emailsJson = null;
+        if (user.getFirstAttribute("group_emails_json") != null) {
+            try {
+                if (remainingEmails.isEmpty()) {
+                    user.removeAttribute("group_emails_json");
+                } else {
+                    emailsJson = ScoutnetJson.WRITER.writeValueAsString(remainingEmails);
+                    user.setSingleAttribute("group_emails_json", emailsJson);
+                }
+            } catch (Exception e) {
+                log.errorf("Failed to serialize group_emails_json for user %s: %s", user.getUsername(), e.getMessage());
+            }
+        }
+        // The released addresses may already belong to someone else; claims cached under the old hash must not be served
+        String profileHash = user.getFirstAttribute("scoutnet_profile_hash");
+        if (profileHash != null) {
+            user.setSingleAttribute("scoutnet_profile_hash", ScoutnetProfileSync.rotateProfileHash(profileHash, emailsJson));
+        }
+        return removed;
+    }
+
+    private static boolean hasDomain(GroupModel group) {
+        String domain = group.getFirstAttribute("domain");
+        return domain != null && !domain.isBlank();
+    }
+
+    private static long parseLong(String value, long fallback) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    private static EntityManager entityManager(KeycloakSession session) {
+        return session.getProvider(JpaConnectionProvider.class).getEntityManager();
+    }
+}
@@ -0,0 +1,131 @@
+package se.scouterna.keycloak;
+
+import org.jboss.logging.Logger;
+import se.scouterna.keycloak.client.ScoutnetClient;
+
+import java.net.http.HttpClient;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The provider's long-lived components, shared by all its factories on this node: the Scoutnet
+ * HTTP client, the profile sync with its fetch result cache, the background refresh executor, the
+ * bounded executor that runs pre-refresh and bulk resync work, and the memberships mapper's claim
+ * cache.
+ *
+ * Each factory acquires the container in {@code postInit} and releases it in {@code close};
+ * the first acquire creates it and the last release drains both executors and closes the HTTP
+ * client, so nothing outlives Keycloak's shutdown. Factories cancel their scheduled
+ * tasks and wait for their jobs before releasing. Components only hold node-wide
+ * state; realm-specific state (configs, app IDs, metric tags) is looked up per call from the
+ * realm at hand. {@link ScoutnetMetrics} records to Micrometer's global registry, as it is
+ * recorded from code that has no container at hand.
+ */
+public final class ScoutnetComponents {
+
+    private static final Logger log = Logger.getLogger(ScoutnetComponents.class);
+    private static final int ASYNC_REFRESH_THREADS = 2;
+    private static final int CLAIM_CACHE_SIZE = 10_000;
+    private static final int BACKGROUND_THREADS = 16;
+    private static final int BACKGROUND_QUEUE_CAPACITY = 1000;
+
+    private static ScoutnetComponents shared;
+    private static int references;
+
+    private final HttpClient httpClient;
+    private final ScoutnetClient scoutnetClient;
+    private final ScoutnetProfileSync profileSync;
+    private final AsyncProfileRefresher asyncRefresher;
+    private final ThreadPoolExecutor backgroundExecutor;
+    private final ClaimCache claimCache = new ClaimCache(CLAIM_CACHE_SIZE);
+    private final Runnable unbindMetrics;
+
+    private ScoutnetComponents() {
+        this.httpClient = ScoutnetClient.newHttpClient();
+        this.scoutnetClient = new ScoutnetClient(httpClient);
+        this.profileSync = new ScoutnetProfileSync(scoutnetClient, new ScoutnetGroupManager());
+        this.asyncRefresher = new AsyncProfileRefresher(ASYNC_REFRESH_THREADS);
+        this.backgroundExecutor = newBackgroundExecutor();
+        this.unbindMetrics = ScoutnetMetrics.INSTANCE.bindFetchResultCache(profileSync.fetchResultCache());
+    }
+
+    /**
+     * The node's container, created on the first call; pair each call with {@link #release()}.
+     */
+    public static synchronized ScoutnetComponents acquire() {
+        if (shared == null) {
+            shared = new ScoutnetComponents();
+            log.debug("Created Scoutnet provider components");
+        }
+        references++;
+        return shared;
+    }
+
+    /**
+     * Closes the container once every factory that acquired it has released it.
+     */
+    public void release() {
+        synchronized (ScoutnetComponents.class) {
+            if (shared != this || --references > 0) return;
+            shared = null;
+        }
+        asyncRefresher.close();
+        drain(backgroundExecutor);
+        httpClient.close();
+        unbindMetrics.run();
+        log.debug("Closed Scoutnet provider components");
+    }
+
+    public ScoutnetClient scoutnetClient() {
+        return scoutnetClient;
+    }
+
+    public ScoutnetProfileSync profileSync() {
+        return profileSync;
+    }
+
+    public AsyncProfileRefresher asyncRefresher() {
+        return asyncRefresher;
+    }
+
+    /**
+     * Runs the pre-refresh task's and bulk resync jobs' per-user work; rejects tasks once its queue
+     * is full or the container is closed.
+     */
+    public ExecutorService backgroundExecutor() {
+        return backgroundExecutor;
+    }
+
+    ClaimCache claimCache() {
+        return claimCache;
+    }
+
+    private static ThreadPoolExecutor newBackgroundExecutor() {
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(BACKGROUND_THREADS, BACKGROUND_THREADS, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(BACKGROUND_QUEUE_CAPACITY),
+            runnable -> {
+                Thread thread = new Thread(runnable, "scoutnet-background-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            },
+            new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static void drain(ExecutorService executor) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -13,8 +13,6 @@ import se.scouterna.keycloak.client.ScoutnetClient;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
-import java.util.Map;
-import java.util.UUID;
 
 /**
  * Authenticator that validates the Keycloak SSO cookie and, if valid,
@@ -27,55 +25,76 @@ import java.util.UUID;
  *
  * If anything fails (no cookie, no token, token revoked, refresh failed),
  * it falls through to the password authenticator via context.attempted().
+ *
+ * In the opt-in stale-while-revalidate mode an expired interval doesn't block the
+ * login: it succeeds with the data already on the user and the fetch and sync run in
+ * the background, so the fresh data lands for the next token. Once the data is older
+ * than the configured staleness ceiling the fetch is synchronous again.
  */
 public class ScoutnetCookieAuthenticator implements Authenticator {
 
     private static final Logger log = Logger.getLogger(ScoutnetCookieAuthenticator.class);
-    private static final String LAST_FETCH_ATTRIBUTE = "scoutnet_last_fetch";
 
-    private final ScoutnetClient scoutnetClient;
     private final ScoutnetProfileSync profileSync;
+    private final AsyncProfileRefresher asyncRefresher;
+
+    public ScoutnetCookieAuthenticator(ScoutnetComponents components) {
+        this.profileSync = components.profileSync();
+        this.asyncRefresher = components.asyncRefresher();
+    }
 
-    public ScoutnetCookieAuthenticator() {
-        this.scoutnetClient = new ScoutnetClient();
+    ScoutnetCookieAuthenticator(AsyncProfileRefresher asyncRefresher, ScoutnetClient scoutnetClient) {
         this.profileSync = new ScoutnetProfileSync(scoutnetClient, new ScoutnetGroupManager());
+        this.asyncRefresher = asyncRefresher;
     }
 
     @Override
     public void authenticate(AuthenticationFlowContext context) {
+        try (CorrelationContext.Scope correlation = CorrelationContext.begin()) {
+            ScoutnetTracing.run(context.getSession(), ScoutnetCookieAuthenticator.class, "authenticate", span -> {
+                String outcome = authenticateWithCookie(context);
+                span.setAttribute("scoutnet.cookie.outcome", outcome);
+                ScoutnetMetrics.INSTANCE.cookieLogin(context.getRealm().getName(), outcome);
+            });
+        }
+    }
+
+    /**
+     * @return how the login ended, for traces and metrics: {@code no_cookie}, {@code throttled},
+     *         {@code no_token}, {@code served_stale}, {@code refresh_failed} or {@code fetched}
+     */
+    private String authenticateWithCookie(AuthenticationFlowContext context) {
         // Step 1: Validate SSO cookie
-        AuthenticationManager.AuthResult authResult = AuthenticationManager.authenticateIdentityCookie(
-            context.getSession(), context.getRealm(), true);
+        AuthenticationManager.AuthResult authResult = authenticateIdentityCookie(context);
 
         if (authResult == null) {
             context.attempted();
-            return;
+            return "no_cookie";
         }
 
         UserModel user = authResult.user();
         if (user == null) {
             context.attempted();
-            return;
+            return "no_cookie";
         }
 
-        String correlationId = UUID.randomUUID().toString().substring(0, 8);
         boolean isRememberMe = authResult.session().isRememberMe();
-        log.debugf("[%s] SSO cookie valid for user: %s (rememberMe=%s)", correlationId, user.getUsername(), isRememberMe);
+        log.debugf("[%s] SSO cookie valid for user: %s (rememberMe=%s)", CorrelationContext.current(), user.getUsername(), isRememberMe);
 
         // Step 2: Check if fetch is needed based on throttle interval
         int fetchIntervalMinutes = getFetchIntervalMinutes(context);
-        String lastFetchStr = user.getFirstAttribute(LAST_FETCH_ATTRIBUTE);
+        String lastFetchStr = FetchThrottle.getLastFetch(context.getSession(), user);
         if (!isFetchNeeded(lastFetchStr, fetchIntervalMinutes)) {
             if (log.isDebugEnabled()) {
                 long lastFetch = Long.parseLong(lastFetchStr);
                 long elapsedSec = (System.currentTimeMillis() - lastFetch) / 1000;
                 log.debugf("[%s] Scoutnet fetch skipped for user: %s (last fetch %ds ago, interval %dm, rememberMe=%s)",
-                    correlationId, user.getUsername(), elapsedSec, fetchIntervalMinutes, isRememberMe);
+                    CorrelationContext.current(), user.getUsername(), elapsedSec, fetchIntervalMinutes, isRememberMe);
             }
             context.setUser(user);
             context.attachUserSession(authResult.session());
             context.success();
-            return;
+            return "throttled";
         }
 
         if (log.isDebugEnabled()) {
@@ -85,70 +104,88 @@ public class ScoutnetCookieAuthenticator implements Authenticator {
                     Instant.ofEpochMilli(lastFetch).atZone(ZoneId.systemDefault()));
                 long elapsedSec = (System.currentTimeMillis() - lastFetch) / 1000;
                 log.debugf("[%s] Scoutnet fetch needed for user: %s (last fetch at %s, %ds ago, interval %dm, rememberMe=%s)",
-                    correlationId, user.getUsername(), lastFetchTime, elapsedSec, fetchIntervalMinutes, isRememberMe);
+                    CorrelationContext.current(), user.getUsername(), lastFetchTime, elapsedSec, fetchIntervalMinutes, isRememberMe);
             } else {
                 log.debugf("[%s] Scoutnet fetch needed for user: %s (no previous fetch, rememberMe=%s)",
-                    correlationId, user.getUsername(), isRememberMe);
+                    CorrelationContext.current(), user.getUsername(), isRememberMe);
             }
         }
 
         // Step 3: Retrieve stored persistent token
-        String token = ScoutnetTokenCredentialProvider.getToken(user);
-        if (token == null) {
-            log.debugf("[%s] No stored Scoutnet token for user: %s, falling through to password auth", correlationId, user.getUsername());
+        ScoutnetTokenCredentialProvider.StoredToken storedToken =
+            ScoutnetTokenCredentialProvider.getStoredToken(context.getSession(), user);
+        if (storedToken == null || storedToken.revoked()) {
+            log.debugf("[%s] No usable Scoutnet token for user: %s (%s), falling through to password auth",
+                CorrelationContext.current(), user.getUsername(), storedToken == null ? "none stored" : "revoked");
             context.attempted();
-            return;
+            return "no_token";
         }
-
-        // Step 4: Fetch fresh profile with stored token
-        ScoutnetProfileSync.FetchResult fetchResult = profileSync.fetchProfileAndRoles(token, correlationId);
-
-        if (fetchResult == null) {
-            log.debugf("[%s] Stored token failed for user: %s, attempting refresh", correlationId, user.getUsername());
-            String newToken = scoutnetClient.refreshToken(token, correlationId);
-
-            if (newToken != null) {
-                fetchResult = profileSync.fetchProfileAndRoles(newToken, correlationId);
-                if (fetchResult != null) {
-                    String appId = "scoutid-keycloak-" + context.getRealm().getName();
-                    ScoutnetTokenCredentialProvider.storeToken(user, newToken, appId);
-                    log.debugf("[%s] Token refreshed and stored for user: %s", correlationId, user.getUsername());
-                }
-            }
-
-            if (fetchResult == null) {
-                log.infof("[%s] Token invalid and refresh failed for user: %s, falling through to password auth", correlationId, user.getUsername());
-                context.attempted();
-                return;
-            }
+        long tokenRefreshAgeMillis = getTokenRefreshAgeDays(context) * 24 * 60 * 60_000L;
+
+        // Step 4a: Stale-while-revalidate — succeed now, fetch and sync in the background
+        if (isStaleWhileRevalidate(context) && !isFetchNeeded(lastFetchStr, getMaxStaleMinutes(context))) {
+            boolean scheduled = asyncRefresher.scheduleAfterCommit(context.getSession(), context.getRealm(), user,
+                (session, realm, refreshUser) -> profileSync.refreshFromScoutnet(session, realm, refreshUser, tokenRefreshAgeMillis));
+            log.debugf("[%s] Serving cached profile for user: %s, background refresh %s",
+                CorrelationContext.current(), user.getUsername(), scheduled ? "scheduled" : "already in flight");
+            context.setUser(user);
+            context.attachUserSession(authResult.session());
+            context.success();
+            return "served_stale";
         }
 
-        // Step 5: Sync profile data (skips if hash unchanged) and update fetch timestamp
-        profileSync.syncUserProfile(context.getSession(), context.getRealm(), user, fetchResult, correlationId);
-        user.setSingleAttribute(LAST_FETCH_ATTRIBUTE, String.valueOf(System.currentTimeMillis()));
+        // Step 4b: Fetch fresh profile with stored token and sync it (skips if hash unchanged)
+        if (!profileSync.refreshFromScoutnet(context.getSession(), context.getRealm(), user, tokenRefreshAgeMillis)) {
+            log.infof("[%s] Token invalid and refresh failed for user: %s, falling through to password auth", CorrelationContext.current(), user.getUsername());
+            context.attempted();
+            return "refresh_failed";
+        }
 
         context.setUser(user);
         context.attachUserSession(authResult.session());
-        log.debugf("[%s] Cookie-based re-auth successful for user: %s (rememberMe=%s)", correlationId, user.getUsername(), isRememberMe);
+        log.debugf("[%s] Cookie-based re-auth successful for user: %s (rememberMe=%s)", CorrelationContext.current(), user.getUsername(), isRememberMe);
         context.success();
+        return "fetched";
+    }
+
+    AuthenticationManager.AuthResult authenticateIdentityCookie(AuthenticationFlowContext context) {
+        return AuthenticationManager.authenticateIdentityCookie(context.getSession(), context.getRealm(), true);
+    }
+
+    private boolean isStaleWhileRevalidate(AuthenticationFlowContext context) {
+        return Boolean.parseBoolean(getConfigValue(context, ScoutnetCookieAuthenticatorFactory.CONFIG_STALE_WHILE_REVALIDATE));
+    }
+
+    private int getMaxStaleMinutes(AuthenticationFlowContext context) {
+        return parseNonNegativeInt(getConfigValue(context, ScoutnetCookieAuthenticatorFactory.CONFIG_MAX_STALE),
+            ScoutnetCookieAuthenticatorFactory.DEFAULT_MAX_STALE_MINUTES);
+    }
+
+    private int getTokenRefreshAgeDays(AuthenticationFlowContext context) {
+        return parseNonNegativeInt(getConfigValue(context, ScoutnetCookieAuthenticatorFactory.CONFIG_TOKEN_REFRESH_AGE),
+            ScoutnetCookieAuthenticatorFactory.DEFAULT_TOKEN_REFRESH_AGE_DAYS);
     }
 
     private int getFetchIntervalMinutes(AuthenticationFlowContext context) {
+        return parseNonNegativeInt(getConfigValue(context, ScoutnetCookieAuthenticatorFactory.CONFIG_FETCH_INTERVAL),
+            ScoutnetCookieAuthenticatorFactory.DEFAULT_FETCH_INTERVAL_MINUTES);
+    }
+
+    private String getConfigValue(AuthenticationFlowContext context, String key) {
         AuthenticatorConfigModel config = context.getAuthenticatorConfig();
-        if (config != null) {
-            Map<String, String> configMap = config.getConfig();
-            if (configMap != null) {
-                String value = configMap.get(ScoutnetCookieAuthenticatorFactory.CONFIG_FETCH_INTERVAL);
-                if (value != null) {
-                    try {
-                        return Math.max(0, Integer.parseInt(value.trim()));
-                    } catch (NumberFormatException e) {
-                        // fall through to default
-                    }
-                }
+        if (config == null || config.getConfig() == null) return null;
+        return config.getConfig().get(key);
+    }
+
+    static int parseNonNegativeInt(String value, int defaultValue) {
+        if (value != null) {
+            try {
+                return Math.max(0, Integer.parseInt(value.trim()));
+            } catch (NumberFormatException e) {
+                // fall through to default
             }
         }
-        return ScoutnetCookieAuthenticatorFactory.DEFAULT_FETCH_INTERVAL_MINUTES;
+        return defaultValue;
     }
 
     boolean isFetchNeeded(String lastFetchStr, int intervalMinutes) {
@@ -1,19 +1,33 @@
 package se.scouterna.keycloak;
 
+import org.keycloak.Config;
 import org.keycloak.authentication.Authenticator;
 import org.keycloak.authentication.AuthenticatorFactory;
 import org.keycloak.models.AuthenticationExecutionModel;
+import org.keycloak.models.AuthenticatorConfigModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
 import org.keycloak.provider.ProviderConfigProperty;
 
 import java.util.List;
+import java.util.Map;
 
 public class ScoutnetCookieAuthenticatorFactory implements AuthenticatorFactory {
 
     public static final String PROVIDER_ID = "scoutnet-cookie-authenticator";
     public static final String CONFIG_FETCH_INTERVAL = "scoutnet.fetch.interval.minutes";
     public static final int DEFAULT_FETCH_INTERVAL_MINUTES = 60;
+    public static final String CONFIG_STALE_WHILE_REVALIDATE = "scoutnet.stale.while.revalidate";
+    public static final String CONFIG_MAX_STALE = "scoutnet.stale.max.minutes";
+    public static final int DEFAULT_MAX_STALE_MINUTES = 24 * 60;
+    public static final String CONFIG_TOKEN_REFRESH_AGE = "scoutnet.token.refresh.age.days";
+    public static final int DEFAULT_TOKEN_REFRESH_AGE_DAYS = 30;
+
+    private ScoutnetPreRefreshTask.Settings preRefreshSettings;
+    private KeycloakSessionFactory sessionFactory;
+    private ScoutnetComponents components;
+    private ScoutnetCookieAuthenticator authenticator;
 
     @Override
     public String getId() {
@@ -62,23 +76,90 @@ public class ScoutnetCookieAuthenticatorFactory implements AuthenticatorFactory
             + "Default: " + DEFAULT_FETCH_INTERVAL_MINUTES + " minutes.");
         fetchInterval.setType(ProviderConfigProperty.STRING_TYPE);
         fetchInterval.setDefaultValue(String.valueOf(DEFAULT_FETCH_INTERVAL_MINUTES));
-        return List.of(fetchInterval);
+
+        ProviderConfigProperty staleWhileRevalidate = new ProviderConfigProperty();
+        staleWhileRevalidate.setName(CONFIG_STALE_WHILE_REVALIDATE);
+        staleWhileRevalidate.setLabel("Stale-while-revalidate");
+        staleWhileRevalidate.setHelpText("When the fetch interval has expired, let the login succeed immediately with the "
+            + "profile data already stored on the user and fetch fresh data from Scoutnet in the background. "
+            + "The fresh data is used from the next token on.");
+        staleWhileRevalidate.setType(ProviderConfigProperty.BOOLEAN_TYPE);
+        staleWhileRevalidate.setDefaultValue("false");
+
+        ProviderConfigProperty maxStale = new ProviderConfigProperty();
+        maxStale.setName(CONFIG_MAX_STALE);
+        maxStale.setLabel("Maximum staleness (minutes)");
+        maxStale.setHelpText("With stale-while-revalidate enabled, profile data older than this is always "
+            + "fetched synchronously before the login succeeds. "
+            + "Default: " + DEFAULT_MAX_STALE_MINUTES + " minutes.");
+        maxStale.setType(ProviderConfigProperty.STRING_TYPE);
+        maxStale.setDefaultValue(String.valueOf(DEFAULT_MAX_STALE_MINUTES));
+
+        ProviderConfigProperty tokenRefreshAge = new ProviderConfigProperty();
+        tokenRefreshAge.setName(CONFIG_TOKEN_REFRESH_AGE);
+        tokenRefreshAge.setLabel("Token refresh age (days)");
+        tokenRefreshAge.setHelpText("Stored Scoutnet tokens older than this are refreshed before they are used for a fetch. "
+            + "Set to 0 to only refresh a token after Scoutnet has rejected it. "
+            + "Default: " + DEFAULT_TOKEN_REFRESH_AGE_DAYS + " days.");
+        tokenRefreshAge.setType(ProviderConfigProperty.STRING_TYPE);
+        tokenRefreshAge.setDefaultValue(String.valueOf(DEFAULT_TOKEN_REFRESH_AGE_DAYS));
+
+        return List.of(fetchInterval, staleWhileRevalidate, maxStale, tokenRefreshAge);
+    }
+
+    /**
+     * The config of this authenticator in the realm's flows (empty if it has none), or null if no flow uses it.
+     */
+    public static Map<String, String> findRealmConfig(RealmModel realm) {
+        return realm.getAuthenticationFlowsStream()
+            .flatMap(flow -> realm.getAuthenticationExecutionsStream(flow.getId()))
+            .filter(execution -> PROVIDER_ID.equals(execution.getAuthenticator()))
+            .findFirst()
+            .map(execution -> {
+                AuthenticatorConfigModel config = execution.getAuthenticatorConfig() != null
+                    ? realm.getAuthenticatorConfigById(execution.getAuthenticatorConfig()) : null;
+                return config != null && config.getConfig() != null ? config.getConfig() : Map.<String, String>of();
+            })
+            .orElse(null);
+    }
+
+    /**
+     * The proactive token refresh age from a cookie authenticator config, in milliseconds.
+     */
+    public static long getTokenRefreshAgeMillis(Map<String, String> config) {
+        return ScoutnetCookieAuthenticator.parseNonNegativeInt(config.get(CONFIG_TOKEN_REFRESH_AGE),
+            DEFAULT_TOKEN_REFRESH_AGE_DAYS) * 24 * 60 * 60_000L;
     }
 
     @Override
     public Authenticator create(KeycloakSession session) {
-        return new ScoutnetCookieAuthenticator();
+        return authenticator;
     }
 
     @Override
-    public void init(org.keycloak.Config.Scope config) {
+    public void init(Config.Scope config) {
+        preRefreshSettings = ScoutnetPreRefreshTask.Settings.fromConfig(config);
     }
 
     @Override
     public void postInit(KeycloakSessionFactory factory) {
+        sessionFactory = factory;
+        components = ScoutnetComponents.acquire();
+        authenticator = new ScoutnetCookieAuthenticator(components);
+        if (!preRefreshSettings.enabled()) return;
+
+        ScoutnetTasks.schedule(factory,
+            new ScoutnetPreRefreshTask(preRefreshSettings, components.profileSync(), components.backgroundExecutor()),
+            preRefreshSettings.intervalMillis());
     }
 
     @Override
     public void close() {
+        if (sessionFactory != null && preRefreshSettings.enabled()) {
+            ScoutnetTasks.cancel(sessionFactory, ScoutnetPreRefreshTask.TASK_NAME);
+        }
+        if (components != null) {
+            components.release();
+        }
     }
 }
@@ -0,0 +1,239 @@
+package se.scouterna.keycloak;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.jboss.logging.Logger;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.ModelDuplicateException;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import se.scouterna.keycloak.client.ScoutnetJson;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Creates or updates the subgroups under {@code scoutnet} from a catalog of Scoutnet groups,
+ * districts etc., so logins find their groups already in place instead of creating them on the
+ * request path.
+ *
+ * A catalog is either a JSON array of {@code {"id", "type", "name"}} objects or CSV with an
+ * {@code id,type,name} header. Entries are applied in batches, each in its own transaction,
+ * and the import is idempotent: an entry matching the existing group counts as unchanged.
+ * Each batch looks up the existing subgroups in its own transaction; if a login creates one of
+ * its groups in the meantime, the sibling-name constraint rolls the batch back and it is
+ * applied once more against the groups as they are then.
+ *
+ * Imported groups are marked with {@link #CATALOG_ATTRIBUTE}, and the cleanup task keeps them
+ * while they have no members.
+ */
+public class ScoutnetGroupCatalogImporter {
+
+    private static final Logger log = Logger.getLogger(ScoutnetGroupCatalogImporter.class);
+    public static final String CATALOG_ATTRIBUTE = "scoutnet_catalog";
+    private static final int BATCH_SIZE = 500;
+    private static final Pattern ID_PATTERN = Pattern.compile("\\d+");
+    private static final Pattern TYPE_PATTERN = Pattern.compile("[a-z_]+");
+
+    public record CatalogEntry(String id, String type, String name) {
+    }
+
+    public record ImportResult(int created, int updated, int unchanged, int invalid) {
+    }
+
+    private final KeycloakSessionFactory sessionFactory;
+
+    public ScoutnetGroupCatalogImporter(KeycloakSessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+    }
+
+    public ImportResult importCatalog(String realmId, List<CatalogEntry> entries) {
+        // Deduplicate by group ID, last entry wins, and drop anything that couldn't be a Scoutnet group
+        Map<String, CatalogEntry> valid = new LinkedHashMap<>();
+        int invalid = 0;
+        for (CatalogEntry entry : entries) {
+            if (entry.id() != null && ID_PATTERN.matcher(entry.id()).matches()
+                    && entry.type() != null && TYPE_PATTERN.matcher(entry.type()).matches()) {
+                valid.put(entry.id(), entry);
+            } else {
+                invalid++;
+            }
+        }
+
+        int[] counts = new int[3];
+        List<CatalogEntry> pending = new ArrayList<>(valid.values());
+        for (int start = 0; start < pending.size(); start += BATCH_SIZE) {
+            List<CatalogEntry> batch = pending.subList(start, Math.min(pending.size(), start + BATCH_SIZE));
+            int[] batchCounts;
+            try {
+                batchCounts = importBatch(realmId, batch);
+            } catch (ModelDuplicateException e) {
+                log.debugf("Scoutnet group catalog batch %d-%d raced a group creation, retrying", start, start + batch.size());
+                batchCounts = importBatch(realmId, batch);
+            }
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += batchCounts[i];
+            }
+            log.debugf("Imported Scoutnet group catalog batch %d-%d", start, start + batch.size());
+        }
+
+        ImportResult result = new ImportResult(counts[0], counts[1], counts[2], invalid);
+        log.infof("Imported Scoutnet group catalog: %d created, %d updated, %d unchanged, %d invalid",
+            result.created(), result.updated(), result.unchanged(), result.invalid());
+        return result;
+    }
+
+    /**
+     * @return the created, updated and unchanged counts
+     */
+    private int[] importBatch(String realmId, List<CatalogEntry> batch) {
+        return KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+            RealmModel realm = session.realms().getRealm(realmId);
+            GroupModel parent = ScoutnetGroupManager.ensureParentGroup(realm);
+            Map<String, GroupModel> existing = new HashMap<>();
+            parent.getSubGroupsStream().forEach(group -> existing.put(group.getName(), group));
+
+            int[] counts = new int[3];
+            for (CatalogEntry entry : batch) {
+                GroupModel group = existing.get(entry.id());
+                if (group == null) {
+                    group = realm.createGroup(entry.id(), parent);
+                    apply(group, entry);
+                    counts[0]++;
+                } else if (apply(group, entry)) {
+                    counts[1]++;
+                } else {
+                    counts[2]++;
+                }
+            }
+            return counts;
+        });
+    }
+
+    /**
+     * @return whether anything was changed
+     */
+    private static boolean apply(GroupModel group, CatalogEntry entry) {
+        boolean changed = false;
+        if (!isCatalogGroup(group)) {
+            group.setSingleAttribute(CATALOG_ATTRIBUTE, "true");
+            changed = true;
+        }
+        if (!entry.type().equals(group.getFirstAttribute("scoutnet_type"))) {
+            group.setSingleAttribute("scoutnet_type", entry.type());
+            changed = true;
+        }
+        if (entry.name() != null && !entry.name().isBlank() && !entry.name().equals(group.getFirstAttribute("scoutnet_name"))) {
+            group.setSingleAttribute("scoutnet_name", entry.name());
+            changed = true;
+        }
+        for (String attribute : ScoutnetGroupManager.TRACKED_ATTRIBUTES) {
+            if (group.getFirstAttribute(attribute) == null) {
+                group.setSingleAttribute(attribute, "");
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    static boolean isCatalogGroup(GroupModel group) {
+        return group.getFirstAttribute(CATALOG_ATTRIBUTE) != null;
+    }
+
+    /**
+     * Parses a JSON array of {@code {"id", "type", "name"}} objects; numeric IDs are accepted.
+     */
+    public static List<CatalogEntry> parseJson(String json) throws IOException {
+        JsonNode root = ScoutnetJson.TREE_READER.readTree(json);
+        if (root == null || !root.isArray()) {
+            throw new IOException("Group catalog must be a JSON array");
+        }
+        List<CatalogEntry> entries = new ArrayList<>(root.size());
+        for (JsonNode node : root) {
+            entries.add(new CatalogEntry(text(node, "id"), text(node, "type"), text(node, "name")));
+        }
+        return entries;
+    }
+
+    /**
+     * Parses CSV with a header row naming the {@code id}, {@code type} and (optional) {@code name} columns.
+     * Fields may be double-quoted, with {@code ""} for a literal quote.
+     */
+    public static List<CatalogEntry> parseCsv(String csv) throws IOException {
+        List<List<String>> rows = csvRows(csv);
+        if (rows.isEmpty()) return List.of();
+
+        List<String> header = rows.get(0).stream().map(column -> column.trim().toLowerCase(Locale.ROOT)).toList();
+        int id = header.indexOf("id");
+        int type = header.indexOf("type");
+        int name = header.indexOf("name");
+        if (id < 0 || type < 0) {
+            throw new IOException("Group catalog CSV needs id and type columns");
+        }
+
+        List<CatalogEntry> entries = new ArrayList<>(rows.size() - 1);
+        for (List<String> row : rows.subList(1, rows.size())) {
+            if (row.size() == 1 && row.get(0).isBlank()) continue;
+            entries.add(new CatalogEntry(column(row, id), column(row, type), column(row, name)));
+        }
+        return entries;
+    }
+
+    private static List<List<String>> csvRows(String csv) throws IOException {
+        List<List<String>> rows = new ArrayList<>();
+        List<String> row = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < csv.length(); i++) {
+            char c = csv.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < csv.length() && csv.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                row.add(field.toString());
+                field.setLength(0);
+            } else if (c == '\n' || c == '\r') {
+                if (c == '\r' && i + 1 < csv.length() && csv.charAt(i + 1) == '\n') i++;
+                row.add(field.toString());
+                field.setLength(0);
+                rows.add(row);
+                row = new ArrayList<>();
+            } else {
+                field.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IOException("Unterminated quoted field in group catalog CSV");
+        }
+        if (field.length() > 0 || !row.isEmpty()) {
+            row.add(field.toString());
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    private static String column(List<String> row, int index) {
+        if (index < 0 || index >= row.size()) return null;
+        String value = row.get(index).trim();
+        return value.isEmpty() ? null : value;
+    }
+
+    private static String text(JsonNode node, String field) {
+        JsonNode value = node.get(field);
+        return value == null || value.isNull() ? null : value.asText().trim();
+    }
+}
@@ -21,23 +21,47 @@ import java.util.stream.Collectors;
 public class ScoutnetGroupManager {
 
     private static final Logger log = Logger.getLogger(ScoutnetGroupManager.class);
-    private static final String PARENT_GROUP_NAME = "scoutnet";
+    static final String PARENT_GROUP_NAME = "scoutnet";
     
     // Attributes to track for hash changes - add new ones here
-    private static final List<String> TRACKED_ATTRIBUTES = Arrays.asList("domain");
+    static final List<String> TRACKED_ATTRIBUTES = Arrays.asList("domain");
+
+    public void syncUserGroups(KeycloakSession session, RealmModel realm, UserModel user, Profile profile, Roles roles) {
+        ScoutnetTracing.run(session, ScoutnetGroupManager.class, "syncUserGroups", span -> {
+            ScoutnetSyncEvent event = new ScoutnetSyncEvent();
+            event.begin();
+            int[] changes = syncUserGroups(realm, user, profile, roles);
+            event.end();
+            if (event.shouldCommit()) {
+                event.phase = "group_membership";
+                event.groupsTouched = changes[0] + changes[1];
+                event.commit();
+            }
+            span.setAttribute("scoutnet.groups.joined", changes[0]);
+            span.setAttribute("scoutnet.groups.left", changes[1]);
+            ScoutnetMetrics.INSTANCE.groupChanges(realm.getName(), changes[0], changes[1]);
+        });
+    }
 
-    public void syncUserGroups(KeycloakSession session, RealmModel realm, UserModel user, Profile profile, Roles roles, String correlationId) {
+    /**
+     * @return the number of groups joined and left
+     */
+    private int[] syncUserGroups(RealmModel realm, UserModel user, Profile profile, Roles roles) {
         if (roles == null && (profile == null || profile.getMemberships() == null)) {
-            log.debugf("[%s] No roles or membership data available, skipping group sync for user: %s", correlationId, user.getUsername());
-            return;
+            log.debugf("[%s] No roles or membership data available, skipping group sync for user: %s", CorrelationContext.current(), user.getUsername());
+            return new int[] {0, 0};
         }
 
         GroupModel parentGroup = ensureParentGroup(realm);
-        migrateUserFromRootGroups(user, parentGroup, correlationId);
+        if (!ScoutnetRootGroupMigrationTask.isMigrated(realm)) {
+            migrateUserFromRootGroups(user, parentGroup);
+        }
         
+        int joined = 0;
         if (!user.isMemberOf(parentGroup)) {
             user.joinGroup(parentGroup);
-            log.debugf("[%s] Added user %s to parent group %s", correlationId, user.getUsername(), PARENT_GROUP_NAME);
+            joined++;
+            log.debugf("[%s] Added user %s to parent group %s", CorrelationContext.current(), user.getUsername(), PARENT_GROUP_NAME);
         }
 
         Set<String> targetGroupIds = new HashSet<>();
@@ -53,7 +77,8 @@ public class ScoutnetGroupManager {
                     updateGroupAttributes(group, "organisation");
                     if (!user.isMemberOf(group)) {
                         user.joinGroup(group);
-                        log.debugf("[%s] Added user %s to organisation group %s", correlationId, user.getUsername(), groupId);
+                        joined++;
+                        log.debugf("[%s] Added user %s to organisation group %s", CorrelationContext.current(), user.getUsername(), groupId);
                     }
                 }
             }
@@ -66,7 +91,8 @@ public class ScoutnetGroupManager {
                     updateGroupAttributes(group, "group");
                     if (!user.isMemberOf(group)) {
                         user.joinGroup(group);
-                        log.debugf("[%s] Added user %s to scout group %s", correlationId, user.getUsername(), groupId);
+                        joined++;
+                        log.debugf("[%s] Added user %s to scout group %s", CorrelationContext.current(), user.getUsername(), groupId);
                     }
                 }
             }
@@ -79,7 +105,8 @@ public class ScoutnetGroupManager {
                     updateGroupAttributes(group, "district");
                     if (!user.isMemberOf(group)) {
                         user.joinGroup(group);
-                        log.debugf("[%s] Added user %s to district group %s", correlationId, user.getUsername(), groupId);
+                        joined++;
+                        log.debugf("[%s] Added user %s to district group %s", CorrelationContext.current(), user.getUsername(), groupId);
                     }
                 }
             }
@@ -94,21 +121,24 @@ public class ScoutnetGroupManager {
                 updateGroupAttributes(group, "group");
                 if (!user.isMemberOf(group)) {
                     user.joinGroup(group);
-                    log.debugf("[%s] Added user %s to membership group %s", correlationId, user.getUsername(), groupId);
+                    joined++;
+                    log.debugf("[%s] Added user %s to membership group %s", CorrelationContext.current(), user.getUsername(), groupId);
                 }
             }
         }
 
         // Remove user from scoutnet subgroups they're no longer part of
-        parentGroup.getSubGroupsStream().forEach(subgroup -> {
-            if (!targetGroupIds.contains(subgroup.getName()) && user.isMemberOf(subgroup)) {
-                user.leaveGroup(subgroup);
-                log.debugf("[%s] Removed user %s from group %s", correlationId, user.getUsername(), subgroup.getName());
-            }
-        });
+        List<GroupModel> leftGroups = parentGroup.getSubGroupsStream()
+            .filter(subgroup -> !targetGroupIds.contains(subgroup.getName()) && user.isMemberOf(subgroup))
+            .toList();
+        for (GroupModel subgroup : leftGroups) {
+            user.leaveGroup(subgroup);
+            log.debugf("[%s] Removed user %s from group %s", CorrelationContext.current(), user.getUsername(), subgroup.getName());
+        }
+        return new int[] {joined, leftGroups.size()};
     }
 
-    private GroupModel ensureParentGroup(RealmModel realm) {
+    static GroupModel ensureParentGroup(RealmModel realm) {
         return realm.getGroupsStream()
             .filter(g -> PARENT_GROUP_NAME.equals(g.getName()))
             .findFirst()
@@ -120,18 +150,24 @@ public class ScoutnetGroupManager {
             });
     }
 
-    private void migrateUserFromRootGroups(UserModel user, GroupModel parentGroup, String correlationId) {
+    private void migrateUserFromRootGroups(UserModel user, GroupModel parentGroup) {
         user.getGroupsStream()
             .filter(g -> g.getParent() == null)
-            .filter(g -> g.getFirstAttribute("scoutnet_type") != null)
-            .filter(g -> !PARENT_GROUP_NAME.equals(g.getName()))
+            .filter(ScoutnetGroupManager::isLegacyRootGroup)
             .collect(Collectors.toList())
             .forEach(oldGroup -> {
                 user.leaveGroup(oldGroup);
-                log.infof("[%s] Migrated user %s from root group %s", correlationId, user.getUsername(), oldGroup.getName());
+                log.infof("[%s] Migrated user %s from root group %s", CorrelationContext.current(), user.getUsername(), oldGroup.getName());
             });
     }
 
+    /**
+     * Whether a top-level group is one of the Scoutnet groups created before they moved under {@code scoutnet}.
+     */
+    static boolean isLegacyRootGroup(GroupModel group) {
+        return group.getFirstAttribute("scoutnet_type") != null && !PARENT_GROUP_NAME.equals(group.getName());
+    }
+
     private GroupModel findOrCreateGroup(RealmModel realm, GroupModel parentGroup, String groupId, String displayName) {
         GroupModel group = parentGroup.getSubGroupsStream()
             .filter(g -> groupId.equals(g.getName()))
@@ -0,0 +1,124 @@
+package se.scouterna.keycloak;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.jboss.logging.Logger;
+import org.keycloak.models.ClientSessionContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.protocol.oidc.mappers.AbstractOIDCProtocolMapper;
+import org.keycloak.protocol.oidc.mappers.OIDCAccessTokenMapper;
+import org.keycloak.protocol.oidc.mappers.OIDCAttributeMapperHelper;
+import org.keycloak.protocol.oidc.mappers.OIDCIDTokenMapper;
+import org.keycloak.protocol.oidc.mappers.TokenIntrospectionTokenMapper;
+import org.keycloak.protocol.oidc.mappers.UserInfoTokenMapper;
+import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.representations.IDToken;
+import se.scouterna.keycloak.client.ScoutnetJson;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Maps a JSON-valued Scoutnet user attribute (memberships or group_emails_json) to a real
+ * JSON object claim, reassembling and inflating the compressed chunks written by
+ * {@link ChunkedAttributeCodec} when the payload is larger than a single attribute can hold.
+ *
+ * Parsed trees are kept in the node-local {@link ClaimCache} of {@link ScoutnetComponents},
+ * validated against the user's scoutnet_profile_hash, so token refreshes don't re-read and
+ * re-parse the attribute.
+ */
+public class ScoutnetMembershipsProtocolMapper extends AbstractOIDCProtocolMapper
+        implements OIDCAccessTokenMapper, OIDCIDTokenMapper, UserInfoTokenMapper, TokenIntrospectionTokenMapper {
+
+    public static final String PROVIDER_ID = "scoutnet-memberships-mapper";
+    public static final String CONFIG_USER_ATTRIBUTE = "user.attribute";
+    private static final String MEMBERSHIPS_ATTRIBUTE = "memberships";
+    private static final Logger log = Logger.getLogger(ScoutnetMembershipsProtocolMapper.class);
+    private static final List<ProviderConfigProperty> CONFIG_PROPERTIES = new ArrayList<>();
+
+    private ScoutnetComponents components;
+
+    static {
+        ProviderConfigProperty attribute = new ProviderConfigProperty();
+        attribute.setName(CONFIG_USER_ATTRIBUTE);
+        attribute.setLabel("User Attribute");
+        attribute.setHelpText("JSON-valued user attribute written by the Scoutnet sync.");
+        attribute.setType(ProviderConfigProperty.LIST_TYPE);
+        attribute.setOptions(List.of(MEMBERSHIPS_ATTRIBUTE, "group_emails_json"));
+        attribute.setDefaultValue(MEMBERSHIPS_ATTRIBUTE);
+        CONFIG_PROPERTIES.add(attribute);
+        OIDCAttributeMapperHelper.addTokenClaimNameConfig(CONFIG_PROPERTIES);
+        OIDCAttributeMapperHelper.addIncludeInTokensConfig(CONFIG_PROPERTIES, ScoutnetMembershipsProtocolMapper.class);
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+
+    @Override
+    public String getDisplayType() {
+        return "Scoutnet Memberships";
+    }
+
+    @Override
+    public String getDisplayCategory() {
+        return TOKEN_MAPPER_CATEGORY;
+    }
+
+    @Override
+    public String getHelpText() {
+        return "Maps Scoutnet memberships or group emails of the user to a JSON object claim, including "
+             + "memberships too large for a single user attribute.";
+    }
+
+    @Override
+    public List<ProviderConfigProperty> getConfigProperties() {
+        return CONFIG_PROPERTIES;
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        components = ScoutnetComponents.acquire();
+    }
+
+    @Override
+    public void close() {
+        if (components != null) {
+            components.release();
+        }
+    }
+
+    @Override
+    protected void setClaim(IDToken token, ProtocolMapperModel mappingModel, UserSessionModel userSession,
+                            KeycloakSession keycloakSession, ClientSessionContext clientSessionCtx) {
+        UserModel user = userSession.getUser();
+        String attribute = mappingModel.getConfig().getOrDefault(CONFIG_USER_ATTRIBUTE, MEMBERSHIPS_ATTRIBUTE);
+        JsonNode claim = components.claimCache().get(user.getId(), attribute, user.getFirstAttribute("scoutnet_profile_hash"),
+            () -> readClaim(user, attribute));
+        if (claim != null) {
+            OIDCAttributeMapperHelper.mapClaim(token, mappingModel, claim);
+        }
+    }
+
+    private static JsonNode readClaim(UserModel user, String attribute) {
+        String json;
+        try {
+            json = ChunkedAttributeCodec.read(user, attribute);
+        } catch (IllegalArgumentException e) {
+            log.warnf("Could not reassemble %s for user %s: %s", attribute, user.getUsername(), e.getMessage());
+            json = user.getFirstAttribute(attribute);
+        }
+        if (json == null) return null;
+
+        try {
+            return ScoutnetJson.TREE_READER.readTree(json);
+        } catch (Exception e) {
+            log.warnf("Could not parse %s for user %s: %s", attribute, user.getUsername(), e.getClass().getSimpleName());
+            return null;
+        }
+    }
+}
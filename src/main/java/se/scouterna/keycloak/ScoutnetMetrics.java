@@ -0,0 +1,156 @@
+package se.scouterna.keycloak;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.utils.KeycloakSessionUtil;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Operational metrics for the provider, tagged by realm, on Micrometer's global registry so
+ * they appear in Keycloak's own {@code /metrics} scrape next to its built-in metrics.
+ *
+ * Meters are created on first use; every tag has a small fixed set of values (endpoints,
+ * status classes, outcomes, sections), so the number of series is bounded by the number of
+ * realms. The fetch result cache is shared by all realms on the node and is not tagged by realm.
+ */
+public final class ScoutnetMetrics {
+
+    public static final ScoutnetMetrics INSTANCE = new ScoutnetMetrics(Metrics.globalRegistry);
+
+    static final String CLIENT_DURATION = "scoutnet.client.request.duration";
+    static final String LOGINS = "scoutnet.logins";
+    static final String COOKIE_LOGINS = "scoutnet.cookie.logins";
+    static final String TOKEN_REFRESHES = "scoutnet.token.refreshes";
+    static final String PROFILE_SECTIONS = "scoutnet.profile.sections";
+    static final String GROUP_JOINS = "scoutnet.group.joins";
+    static final String GROUP_LEAVES = "scoutnet.group.leaves";
+    static final String GROUP_EMAIL_RETRIES = "scoutnet.group.email.retries";
+    static final String FETCH_CACHE_LOOKUPS = "scoutnet.fetch.cache.lookups";
+    static final String FETCH_CACHE_EVICTIONS = "scoutnet.fetch.cache.evictions";
+    static final String FETCH_CACHE_SIZE = "scoutnet.fetch.cache.size";
+
+    private static final String REALM = "realm";
+
+    private static final Duration[] LATENCY_BUCKETS = {
+        Duration.ofMillis(25), Duration.ofMillis(50), Duration.ofMillis(100), Duration.ofMillis(250),
+        Duration.ofMillis(500), Duration.ofSeconds(1), Duration.ofMillis(2500), Duration.ofSeconds(5),
+        Duration.ofSeconds(10)};
+
+    private final MeterRegistry registry;
+
+    ScoutnetMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * @param statusClass {@code 2xx}, {@code 4xx}, {@code 5xx}, or {@code timeout}, {@code connect_error}
+     *                    or {@code error} when no response arrived
+     */
+    public void clientRequest(String endpoint, String statusClass, long nanos) {
+        Timer.builder(CLIENT_DURATION)
+            .description("Scoutnet API request latency by endpoint and status class")
+            .tags(REALM, currentRealm(), "endpoint", endpoint, "status", statusClass)
+            .serviceLevelObjectives(LATENCY_BUCKETS)
+            .register(registry)
+            .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public static String statusClass(int statusCode) {
+        return statusCode / 100 + "xx";
+    }
+
+    /**
+     * @param outcome {@code success}, an {@code AuthError} or a {@code FailedLoginCache} decision
+     */
+    void login(String realm, Enum<?> outcome) {
+        login(realm, outcome.name().toLowerCase(Locale.ROOT));
+    }
+
+    void login(String realm, String outcome) {
+        counter(LOGINS, "Password logins by outcome", realm, "outcome", outcome).increment();
+    }
+
+    void cookieLogin(String realm, String outcome) {
+        counter(COOKIE_LOGINS, "Cookie logins by outcome", realm, "outcome", outcome).increment();
+    }
+
+    /**
+     * @param outcome {@code success}, {@code revoked} or {@code failed}
+     */
+    void tokenRefresh(String realm, String outcome) {
+        counter(TOKEN_REFRESHES, "Stored Scoutnet token refreshes by outcome", realm, "outcome", outcome).increment();
+    }
+
+    void profileSection(String realm, SyncSection section, boolean synced) {
+        counter(PROFILE_SECTIONS, "Profile sections skipped on an unchanged hash or synced", realm,
+            "section", section.getLabel(), "result", synced ? "synced" : "skipped").increment();
+    }
+
+    void groupChanges(String realm, int joined, int left) {
+        if (joined > 0) counter(GROUP_JOINS, "Scoutnet groups joined by users", realm).increment(joined);
+        if (left > 0) counter(GROUP_LEAVES, "Scoutnet groups left by users", realm).increment(left);
+    }
+
+    public void groupEmailRetry(String realm) {
+        counter(GROUP_EMAIL_RETRIES, "Group email reservations retried after a concurrent claim", realm).increment();
+    }
+
+    /**
+     * Publishes the cache's lookups by result ({@code hit} in this node's LRU, {@code shared_hit}
+     * from the replicated cache, {@code miss}), its LRU evictions and its size.
+     *
+     * @return removes the meters again, for when the cache is discarded
+     */
+    Runnable bindFetchResultCache(FetchResultCache cache) {
+        String lookupsDescription = "Fetch result cache lookups by result";
+        List<Meter> meters = List.of(
+            FunctionCounter.builder(FETCH_CACHE_LOOKUPS, cache, FetchResultCache::getHitCount)
+                .description(lookupsDescription).tag("result", "hit").register(registry),
+            FunctionCounter.builder(FETCH_CACHE_LOOKUPS, cache, FetchResultCache::getSharedHitCount)
+                .description(lookupsDescription).tag("result", "shared_hit").register(registry),
+            FunctionCounter.builder(FETCH_CACHE_LOOKUPS, cache, FetchResultCache::getMissCount)
+                .description(lookupsDescription).tag("result", "miss").register(registry),
+            FunctionCounter.builder(FETCH_CACHE_EVICTIONS, cache, FetchResultCache::getEvictionCount)
+                .description("Parsed fetch results evicted from this node's LRU").register(registry),
+            Gauge.builder(FETCH_CACHE_SIZE, cache, FetchResultCache::size)
+                .description("Parsed fetch results in this node's LRU").register(registry));
+        return () -> meters.forEach(registry::remove);
+    }
+
+    /**
+     * The count of a counter, or of a timer's observations; 0 if never recorded or if the
+     * registry keeps no values (the global registry before Keycloak adds its own).
+     *
+     * @param tags the meter's tags other than realm, as key/value pairs
+     */
+    long count(String name, String realm, String... tags) {
+        Counter counter = registry.find(name).tag(REALM, realm).tags(tags).counter();
+        if (counter != null) return (long) counter.count();
+        Timer timer = registry.find(name).tag(REALM, realm).tags(tags).timer();
+        return timer != null ? timer.count() : 0;
+    }
+
+    private Counter counter(String name, String description, String realm, String... tags) {
+        return Counter.builder(name).description(description).tag(REALM, realm).tags(tags).register(registry);
+    }
+
+    /**
+     * The realm of the request or job on this thread; Scoutnet calls don't take a realm.
+     */
+    private static String currentRealm() {
+        KeycloakSession session = KeycloakSessionUtil.getKeycloakSession();
+        RealmModel realm = session != null && session.getContext() != null ? session.getContext().getRealm() : null;
+        return realm != null ? realm.getName() : "";
+    }
+}
@@ -0,0 +1,256 @@
+package se.scouterna.keycloak;
+
+import jakarta.persistence.EntityManager;
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.common.util.Time;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.timer.ScheduledTask;
+
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Refreshes the Scoutnet profile of users with an active remember-me session shortly before
+ * their fetch interval expires, so their next cookie login is served from the throttle instead
+ * of waiting for Scoutnet.
+ *
+ * Scheduled through the TimerProvider with a ClusterAwareScheduledTaskRunner, so only one node
+ * runs it per interval. A run refreshes at most {@code batchSize} users, {@code concurrency} at a
+ * time on the provider components' background executor and each in its own transaction, and is
+ * skipped entirely outside the configured quiet hours.
+ *
+ * Candidates come from the persisted online user sessions, which Keycloak keeps in the database
+ * since persistent user sessions became the default in 26. Users whose stored token Scoutnet has
+ * revoked are skipped; that is checked on the loaded credential rather than in the query, as the
+ * flag lives in the credential's JSON data.
+ */
+public class ScoutnetPreRefreshTask implements ScheduledTask {
+
+    private static final Logger log = Logger.getLogger(ScoutnetPreRefreshTask.class);
+    public static final String TASK_NAME = "scoutnet-pre-refresh";
+    private static final int PAGE_SIZE = 200;
+
+    /**
+     * Provider-level settings, read from {@code spi-authenticator--scoutnet-cookie-authenticator--prerefresh-*}.
+     */
+    public record Settings(boolean enabled, long intervalMillis, int batchSize, int concurrency, int leadMinutes,
+                           int quietStartHour, int quietEndHour) {
+
+        public static Settings fromConfig(Config.Scope config) {
+            int[] quietHours = parseQuietHours(config.get("prerefreshQuietHours"));
+            return new Settings(
+                config.getBoolean("prerefreshEnabled", false),
+                Math.max(30, config.getInt("prerefreshIntervalSeconds", 300)) * 1000L,
+                Math.max(1, config.getInt("prerefreshBatchSize", 100)),
+                Math.max(1, config.getInt("prerefreshConcurrency", 2)),
+                Math.max(0, config.getInt("prerefreshLeadMinutes", 10)),
+                quietHours[0], quietHours[1]);
+        }
+
+        /**
+         * Whether the hour falls inside the quiet window; equal start and end hours mean no window.
+         */
+        boolean isQuietHour(int hour) {
+            if (quietStartHour == quietEndHour) return true;
+            if (quietStartHour < quietEndHour) return hour >= quietStartHour && hour < quietEndHour;
+            return hour >= quietStartHour || hour < quietEndHour;
+        }
+    }
+
+    record Candidate(String realmId, String userId, long tokenRefreshAgeMillis) {
+    }
+
+    private final Settings settings;
+    private final ScoutnetProfileSync profileSync;
+    private final ExecutorService executor;
+
+    public ScoutnetPreRefreshTask(Settings settings, ScoutnetProfileSync profileSync, ExecutorService executor) {
+        this.settings = settings;
+        this.profileSync = profileSync;
+        this.executor = executor;
+    }
+
+    @Override
+    public String getTaskName() {
+        return TASK_NAME;
+    }
+
+    @Override
+    public void run(KeycloakSession session) {
+        if (!settings.isQuietHour(LocalTime.now().getHour())) {
+            log.debugf("Scoutnet pre-refresh skipped outside quiet hours %02d-%02d",
+                settings.quietStartHour(), settings.quietEndHour());
+            return;
+        }
+
+        List<Candidate> candidates = new ArrayList<>();
+        session.realms().getRealmsStream().forEach(realm -> {
+            if (candidates.size() < settings.batchSize()) {
+                collectCandidates(session, realm, candidates);
+            }
+        });
+        if (candidates.isEmpty()) return;
+
+        int refreshed = refreshAll(session.getKeycloakSessionFactory(), candidates);
+        log.infof("Scoutnet pre-refresh refreshed %d of %d users nearing their fetch interval",
+            refreshed, candidates.size());
+    }
+
+    private void collectCandidates(KeycloakSession session, RealmModel realm, List<Candidate> candidates) {
+        Map<String, String> config = ScoutnetCookieAuthenticatorFactory.findRealmConfig(realm);
+        if (config == null) return;
+        int intervalMinutes = ScoutnetCookieAuthenticator.parseNonNegativeInt(
+            config.get(ScoutnetCookieAuthenticatorFactory.CONFIG_FETCH_INTERVAL),
+            ScoutnetCookieAuthenticatorFactory.DEFAULT_FETCH_INTERVAL_MINUTES);
+        if (intervalMinutes == 0) return;
+
+        long dueAfterMillis = Math.max(0, intervalMinutes - settings.leadMinutes()) * 60_000L;
+        int idleTimeout = realm.getSsoSessionIdleTimeoutRememberMe() > 0
+            ? realm.getSsoSessionIdleTimeoutRememberMe() : realm.getSsoSessionIdleTimeout();
+        int activeSince = Time.currentTime() - idleTimeout;
+        long tokenRefreshAgeMillis = ScoutnetCookieAuthenticatorFactory.getTokenRefreshAgeMillis(config);
+        long now = System.currentTimeMillis();
+
+        EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+        String after = "";
+        while (candidates.size() < settings.batchSize()) {
+            List<String> userIds = em.createQuery(
+                    "select distinct s.userId from PersistentUserSessionEntity s, CredentialEntity c"
+                        + " where s.realmId = :realmId and s.offline = '0' and s.rememberMe = true"
+                        + " and s.lastSessionRefresh >= :activeSince and c.user.id = s.userId and c.type = :type"
+                        + " and s.userId > :after order by s.userId", String.class)
+                .setParameter("realmId", realm.getId())
+                .setParameter("activeSince", activeSince)
+                .setParameter("type", ScoutnetTokenCredentialProvider.CREDENTIAL_TYPE)
+                .setParameter("after", after)
+                .setMaxResults(PAGE_SIZE)
+                .getResultList();
+
+            for (String userId : userIds) {
+                UserModel user = session.users().getUserById(realm, userId);
+                if (user != null && isDue(FetchThrottle.getLastFetch(session, user), now, dueAfterMillis)
+                        && hasUsableToken(session, user)) {
+                    candidates.add(new Candidate(realm.getId(), userId, tokenRefreshAgeMillis));
+                    if (candidates.size() >= settings.batchSize()) return;
+                }
+            }
+            if (userIds.size() < PAGE_SIZE) return;
+            after = userIds.get(userIds.size() - 1);
+        }
+    }
+
+    /**
+     * Refreshes the candidates with {@code concurrency} workers that take users from a shared
+     * queue. Workers still busy after one interval finish their current user and stop, leaving
+     * room for the next run's cluster lock.
+     */
+    int refreshAll(KeycloakSessionFactory sessionFactory, List<Candidate> candidates) {
+        Queue<Candidate> pending = new ConcurrentLinkedQueue<>(candidates);
+        AtomicInteger refreshed = new AtomicInteger();
+        List<Future<?>> workers = new ArrayList<>();
+        try {
+            for (int i = 0; i < Math.min(settings.concurrency(), candidates.size()); i++) {
+                workers.add(executor.submit(() -> {
+                    Candidate candidate;
+                    while ((candidate = pending.poll()) != null) {
+                        refresh(sessionFactory, candidate, refreshed);
+                    }
+                }));
+            }
+        } catch (RejectedExecutionException e) {
+            if (workers.isEmpty()) {
+                log.warn("Scoutnet pre-refresh skipped, background executor is full or closed");
+                return 0;
+            }
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(settings.intervalMillis());
+        try {
+            for (Future<?> worker : workers) {
+                worker.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            }
+        } catch (TimeoutException e) {
+            pending.clear();
+        } catch (InterruptedException e) {
+            pending.clear();
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            pending.clear();
+            log.warnf(e.getCause(), "Scoutnet pre-refresh worker failed");
+        }
+        return refreshed.get();
+    }
+
+    private void refresh(KeycloakSessionFactory sessionFactory, Candidate candidate, AtomicInteger refreshed) {
+        try (CorrelationContext.Scope correlation = CorrelationContext.begin()) {
+            try {
+                KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                    RealmModel realm = session.realms().getRealm(candidate.realmId());
+                    UserModel user = realm != null ? session.users().getUserById(realm, candidate.userId()) : null;
+                    if (user == null) return;
+                    session.getContext().setRealm(realm);
+                    if (profileSync.refreshFromScoutnet(session, realm, user, candidate.tokenRefreshAgeMillis())) {
+                        refreshed.incrementAndGet();
+                        log.debugf("[%s] Pre-refreshed Scoutnet profile for user: %s", correlation.id(), user.getUsername());
+                    } else {
+                        log.debugf("[%s] Pre-refresh failed for user: %s, token unusable", correlation.id(), user.getUsername());
+                    }
+                });
+            } catch (RuntimeException e) {
+                log.warnf("[%s] Scoutnet pre-refresh failed: %s", correlation.id(), e.getClass().getSimpleName());
+            }
+        }
+    }
+
+    static boolean hasUsableToken(KeycloakSession session, UserModel user) {
+        ScoutnetTokenCredentialProvider.StoredToken stored = ScoutnetTokenCredentialProvider.getStoredToken(session, user);
+        return stored != null && !stored.revoked();
+    }
+
+    static boolean isDue(String lastFetchStr, long now, long dueAfterMillis) {
+        if (lastFetchStr == null) return true;
+        try {
+            return now - Long.parseLong(lastFetchStr) >= dueAfterMillis;
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Parses "start-end" in whole hours (e.g. "1-6" or "22-5"); empty or invalid means no window.
+     */
+    static int[] parseQuietHours(String value) {
+        if (value == null || value.isBlank()) return new int[] {0, 0};
+        String[] parts = value.trim().split("-");
+        try {
+            if (parts.length == 2) {
+                int start = Integer.parseInt(parts[0].trim());
+                int end = Integer.parseInt(parts[1].trim());
+                if (start >= 0 && start < 24 && end >= 0 && end < 24) {
+                    return new int[] {start, end};
+                }
+            }
+        } catch (NumberFormatException e) {
+            // fall through
+        }
+        log.warnf("Invalid Scoutnet pre-refresh quiet hours '%s', running at all hours", value);
+        return new int[] {0, 0};
+    }
+}
@@ -1,25 +1,20 @@
 package se.scouterna.keycloak;
 
-import com.fasterxml.jackson.databind.DeserializationFeature;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import io.opentelemetry.api.trace.Span;
 import org.jboss.logging.Logger;
 import org.keycloak.models.GroupModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
 import se.scouterna.keycloak.client.ScoutnetClient;
+import se.scouterna.keycloak.client.ScoutnetJson;
+import se.scouterna.keycloak.client.dto.AuthResult;
 import se.scouterna.keycloak.client.dto.Group;
 import se.scouterna.keycloak.client.dto.GroupMembership;
-import se.scouterna.keycloak.client.dto.Patrol;
 import se.scouterna.keycloak.client.dto.Profile;
 import se.scouterna.keycloak.client.dto.Roles;
 import se.scouterna.keycloak.client.dto.RoleSummaryEntry;
-import se.scouterna.keycloak.client.dto.Troop;
-import se.scouterna.keycloak.model.ScoutnetMemberships;
-import se.scouterna.keycloak.model.ScoutnetMemberships.GroupEntry;
-import se.scouterna.keycloak.model.ScoutnetMemberships.NamedRoleEntry;
-import se.scouterna.keycloak.model.ScoutnetMemberships.RoleEntry;
-import se.scouterna.keycloak.model.ScoutnetMemberships.RoleItem;
+import se.scouterna.keycloak.jpa.GroupEmailReservationStore;
 
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
@@ -29,21 +24,24 @@ import java.util.*;
 public class ScoutnetProfileSync {
 
     private static final Logger log = Logger.getLogger(ScoutnetProfileSync.class);
-    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper()
-        .configure(DeserializationFeature.ACCEPT_EMPTY_ARRAY_AS_NULL_OBJECT, true);
     private static final String PROVIDER_VERSION = getProviderVersion();
     private static final List<String> TRACKED_ATTRIBUTES = Arrays.asList("domain");
-    // Keycloak's default USER_ATTRIBUTE.VALUE column is VARCHAR(2048); values beyond this get truncated/rejected.
-    private static final int KEYCLOAK_ATTRIBUTE_MAX_LENGTH = 2048;
+    private static final int FETCH_CACHE_MAX_ENTRIES = 10_000;
+    private static final long FETCH_CACHE_TTL_SECONDS = 5 * 60;
 
     private final ScoutnetClient scoutnetClient;
     private final ScoutnetGroupManager groupManager;
+    private final FetchResultCache fetchResultCache = new FetchResultCache(FETCH_CACHE_MAX_ENTRIES, FETCH_CACHE_TTL_SECONDS);
 
     public ScoutnetProfileSync(ScoutnetClient scoutnetClient, ScoutnetGroupManager groupManager) {
         this.scoutnetClient = scoutnetClient;
         this.groupManager = groupManager;
     }
 
+    FetchResultCache fetchResultCache() {
+        return fetchResultCache;
+    }
+
     public static class FetchResult {
         private final Profile profile;
         private final String profileJson;
@@ -63,56 +61,259 @@ public class ScoutnetProfileSync {
         public String getRolesJson() { return rolesJson; }
     }
 
-    public FetchResult fetchProfileAndRoles(String token, String correlationId) {
-        String profileJson = scoutnetClient.getProfileJson(token, correlationId);
+    public FetchResult fetchProfileAndRoles(String token) {
+        String profileJson = scoutnetClient.getProfileJson(token);
         if (profileJson == null) return null;
 
+        String rolesJson = scoutnetClient.getRolesJson(token);
+        if (rolesJson == null) {
+            log.debugf("[%s] Could not retrieve user roles from Scoutnet.", CorrelationContext.current());
+        }
+        return parseFetchResult(profileJson, rolesJson);
+    }
+
+    /**
+     * Like {@link #fetchProfileAndRoles(String, String)}, but serves a recent result for the same
+     * member from {@link #fetchResultCache} and caches a fresh one.
+     */
+    public FetchResult fetchProfileAndRoles(KeycloakSession session, String memberNo, String token) {
+        return ScoutnetTracing.call(session, ScoutnetProfileSync.class, "fetchProfileAndRoles", span -> {
+            FetchResult cached = fetchResultCache.get(session, memberNo);
+            span.setAttribute("scoutnet.fetch.cache", cached != null ? "hit" : "miss");
+            if (cached != null) {
+                log.debugf("[%s] Using cached Scoutnet profile for member: %s", CorrelationContext.current(), memberNo);
+                return cached;
+            }
+            FetchResult fetchResult = fetchProfileAndRoles(token);
+            fetchResultCache.put(session, memberNo, fetchResult);
+            return fetchResult;
+        });
+    }
+
+    static FetchResult parseFetchResult(String profileJson, String rolesJson) {
         Profile profile;
         try {
-            profile = OBJECT_MAPPER.readValue(profileJson, Profile.class);
+            profile = ScoutnetJson.PROFILE_READER.readValue(profileJson);
         } catch (Exception e) {
-            log.errorf("[%s] Could not parse profile JSON: %s", correlationId, e.getClass().getSimpleName());
+            log.errorf("[%s] Could not parse profile JSON: %s", CorrelationContext.current(), e.getClass().getSimpleName());
             return null;
         }
 
-        String rolesJson = scoutnetClient.getRolesJson(token, correlationId);
         Roles roles = null;
         if (rolesJson != null) {
             try {
-                roles = OBJECT_MAPPER.readValue(rolesJson, Roles.class);
+                roles = ScoutnetJson.ROLES_READER.readValue(rolesJson);
             } catch (Exception e) {
-                log.warnf("[%s] Could not parse user roles from Scoutnet: %s", correlationId, e.getMessage());
+                log.warnf("[%s] Could not parse user roles from Scoutnet: %s", CorrelationContext.current(), e.getMessage());
             }
-        } else {
-            log.debugf("[%s] Could not retrieve user roles from Scoutnet.", correlationId);
         }
 
         return new FetchResult(profile, profileJson, roles, rolesJson);
     }
 
+    /**
+     * Fetches profile and roles with the user's stored token, then syncs the user and records
+     * the fetch timestamp.
+     *
+     * A token older than {@code tokenRefreshAgeMillis} is refreshed before it is used; otherwise
+     * it is refreshed once after Scoutnet rejected it. A token whose refresh Scoutnet rejects is
+     * marked revoked and not tried again until the user logs in with their password.
+     *
+     * @param tokenRefreshAgeMillis proactive refresh age, 0 to only refresh after a failure
+     * @return false if no usable token could be obtained
+     */
+    public boolean refreshFromScoutnet(KeycloakSession session, RealmModel realm, UserModel user,
+                                       long tokenRefreshAgeMillis) {
+        return ScoutnetTracing.call(session, ScoutnetProfileSync.class, "refreshFromScoutnet", span ->
+            refreshFromScoutnet(session, realm, user, tokenRefreshAgeMillis, span));
+    }
+
+    private boolean refreshFromScoutnet(KeycloakSession session, RealmModel realm, UserModel user,
+                                        long tokenRefreshAgeMillis, Span span) {
+        ScoutnetTokenCredentialProvider.StoredToken stored = ScoutnetTokenCredentialProvider.getStoredToken(session, user);
+        if (stored == null || stored.revoked()) return false;
+
+        String memberNo = user.getFirstAttribute("scoutnet_member_no");
+        FetchResult fetchResult = fetchResultCache.get(session, memberNo);
+        span.setAttribute("scoutnet.fetch.cache", fetchResult != null ? "hit" : "miss");
+        if (fetchResult == null) {
+            fetchResult = fetchWithStoredToken(session, realm, user, stored, tokenRefreshAgeMillis);
+            if (fetchResult == null) {
+                return false;
+            }
+            fetchResultCache.put(session, memberNo, fetchResult);
+            ScoutnetTokenCredentialProvider.markUsed(session, user);
+        } else {
+            log.debugf("[%s] Using cached Scoutnet profile for member: %s", CorrelationContext.current(), memberNo);
+        }
+
+        syncUserProfile(session, realm, user, fetchResult);
+        FetchThrottle.recordFetch(session, user, System.currentTimeMillis());
+        return true;
+    }
+
+    private FetchResult fetchWithStoredToken(KeycloakSession session, RealmModel realm, UserModel user,
+                                             ScoutnetTokenCredentialProvider.StoredToken stored,
+                                             long tokenRefreshAgeMillis) {
+        String token = stored.token();
+        boolean refreshed = false;
+        if (tokenRefreshAgeMillis > 0 && stored.ageMillis(System.currentTimeMillis()) >= tokenRefreshAgeMillis) {
+            log.debugf("[%s] Stored token for user: %s is due for refresh", CorrelationContext.current(), user.getUsername());
+            String newToken = refreshToken(session, realm, user, token);
+            if (newToken == null && ScoutnetTokenCredentialProvider.getStoredToken(session, user).revoked()) {
+                return null;
+            }
+            // On a transient refresh failure, carry on with the current token
+            if (newToken != null) {
+                token = newToken;
+                refreshed = true;
+            }
+        }
+
+        FetchResult fetchResult = fetchProfileAndRoles(token);
+        if (fetchResult != null || refreshed) {
+            return fetchResult;
+        }
+
+        log.debugf("[%s] Stored token failed for user: %s, attempting refresh", CorrelationContext.current(), user.getUsername());
+        String newToken = refreshToken(session, realm, user, token);
+        return newToken != null ? fetchProfileAndRoles(newToken) : null;
+    }
+
+    /**
+     * Exchanges the token via Scoutnet and stores the new one; marks the stored token revoked
+     * if Scoutnet rejects it.
+     *
+     * @return the new token, or null if the refresh failed
+     */
+    private String refreshToken(KeycloakSession session, RealmModel realm, UserModel user, String token) {
+        AuthResult result = scoutnetClient.refreshToken(token);
+        if (!result.isSuccess()) {
+            boolean revoked = result.getError() == AuthResult.AuthError.INVALID_CREDENTIALS;
+            if (revoked) {
+                ScoutnetTokenCredentialProvider.markRevoked(session, user);
+            }
+            ScoutnetMetrics.INSTANCE.tokenRefresh(realm.getName(), revoked ? "revoked" : "failed");
+            return null;
+        }
+        String newToken = result.getAuthResponse().getToken();
+        String appId = "scoutid-keycloak-" + realm.getName();
+        ScoutnetTokenCredentialProvider.storeToken(session, user, newToken, appId);
+        ScoutnetMetrics.INSTANCE.tokenRefresh(realm.getName(), "success");
+        log.debugf("[%s] Token refreshed and stored for user: %s", CorrelationContext.current(), user.getUsername());
+        return newToken;
+    }
+
     public void syncUserProfile(KeycloakSession session, RealmModel realm, UserModel user,
-                                FetchResult fetchResult, String correlationId) {
+                                FetchResult fetchResult) {
+        ScoutnetTracing.run(session, ScoutnetProfileSync.class, "syncUserProfile", span -> {
+            ScoutnetSyncEvent.WriteCounter writes = ScoutnetSyncEvent.isRecording() ? new ScoutnetSyncEvent.WriteCounter(user) : null;
+            syncUserProfile(session, realm, writes != null ? writes : user, fetchResult, span, writes);
+        });
+    }
+
+    /**
+     * Records on the span whether each section's hash matched (hit) or the section was synced (miss).
+     *
+     * @param writes the user's write counter while {@link ScoutnetSyncEvent} is recording, else null
+     */
+    private void syncUserProfile(KeycloakSession session, RealmModel realm, UserModel user,
+                                 FetchResult fetchResult, Span span,
+                                 ScoutnetSyncEvent.WriteCounter writes) {
         Profile profile = fetchResult.getProfile();
-        String profileJson = fetchResult.getProfileJson();
         Roles roles = fetchResult.getRoles();
-        String rolesJson = fetchResult.getRolesJson();
+        List<SyncSection> changedSections = new ArrayList<>(SyncSection.values().length);
+        String realmName = realm.getName();
+
+        // Groups first: group email allocation depends on the user's resulting subgroups
+        String groupsHash = generateGroupsHash(profile, roles);
+        if (syncSection(span, realmName, user, writes, SyncSection.GROUPS, groupsHash, () ->
+                groupManager.syncUserGroups(session, realm, user, profile, roles))) {
+            changedSections.add(SyncSection.GROUPS);
+        }
+
+        String identityHash = generateIdentityHash(profile);
+        if (syncSection(span, realmName, user, writes, SyncSection.IDENTITY, identityHash, () ->
+                applyIdentity(user, profile))) {
+            changedSections.add(SyncSection.IDENTITY);
+        }
 
-        String newProfileHash = generateProfileHash(realm, user, profileJson, rolesJson);
-        String currentProfileHash = user.getFirstAttribute("scoutnet_profile_hash");
+        String rolesHash = generateRolesHash(profile, fetchResult.getRolesJson());
+        if (syncSection(span, realmName, user, writes, SyncSection.ROLES, rolesHash, () ->
+                applyMemberships(user, profile, roles))) {
+            changedSections.add(SyncSection.ROLES);
+        }
+
+        String firstLast = profile.getFirstLast();
+        List<GroupModel> scoutnetGroups = user.getGroupsStream()
+            .filter(group -> group.getParent() != null && "scoutnet".equals(group.getParent().getName()))
+            .sorted(Comparator.comparing(GroupModel::getName))
+            .toList();
+        String groupEmailsHash = generateGroupEmailsHash(firstLast, scoutnetGroups);
+        boolean[] groupEmailsSkipped = new boolean[1];
+        if (syncSection(span, realmName, user, writes, SyncSection.GROUP_EMAILS, groupEmailsHash, () -> {
+                if (firstLast != null && !firstLast.trim().isEmpty()) {
+                    ScoutnetTracing.run(session, ScoutnetProfileSync.class, "syncGroupEmails", emailSpan ->
+                        groupEmailsSkipped[0] = !updateGroupEmailAttributes(session, realm, user, firstLast, scoutnetGroups));
+                }
+            })) {
+            changedSections.add(SyncSection.GROUP_EMAILS);
+        }
+        if (groupEmailsSkipped[0]) {
+            // Retry the skipped addresses next sync, and make that sync change the profile hash
+            user.removeAttribute(SyncSection.GROUP_EMAILS.getHashAttribute());
+            groupEmailsHash = "";
+        }
 
-        if (newProfileHash.equals(currentProfileHash)) {
-            log.debugf("[%s] Profile hash unchanged (%s), skipping update for user: %s",
-                correlationId, newProfileHash.substring(0, 8), user.getUsername());
+        span.setAttribute("scoutnet.sync.sections_changed", changedSections.size());
+        if (changedSections.isEmpty()) {
+            log.debugf("[%s] Profile sections unchanged, skipping update for user: %s",
+                CorrelationContext.current(), user.getUsername());
             return;
         }
 
-        log.infof("[%s] Profile hash changed (old: %s, new: %s), updating user: %s",
-            correlationId,
-            currentProfileHash != null ? currentProfileHash.substring(0, 8) : "null",
-            newProfileHash.substring(0, 8), user.getUsername());
+        String newProfileHash = newHasher()
+            .add(groupsHash).add(identityHash).add(rolesHash).add(groupEmailsHash)
+            .hex();
+        user.setSingleAttribute("scoutnet_profile_hash", newProfileHash);
 
-        groupManager.syncUserGroups(session, realm, user, profile, roles, correlationId);
+        log.infof("[%s] Profile sections changed %s, updated user: %s (profile hash %s)",
+            CorrelationContext.current(), changedSections.stream().map(SyncSection::getLabel).toList(),
+            user.getUsername(), newProfileHash.substring(0, 8));
+    }
 
+    /**
+     * Runs {@code apply} and stores the section's new hash unless the hash is unchanged.
+     *
+     * @return whether the section was synced
+     */
+    private boolean syncSection(Span span, String realmName, UserModel user, ScoutnetSyncEvent.WriteCounter writes,
+                                SyncSection section, String newHash, Runnable apply) {
+        ScoutnetSyncEvent event = new ScoutnetSyncEvent();
+        event.begin();
+        int writesBefore = writes != null ? writes.writes() : 0;
+
+        boolean changed = !newHash.equals(user.getFirstAttribute(section.getHashAttribute()));
+        ScoutnetMetrics.INSTANCE.profileSection(realmName, section, changed);
+        if (span.isRecording()) {
+            span.setAttribute("scoutnet.hash." + section.getLabel(), changed ? "miss" : "hit");
+        }
+        if (changed) {
+            apply.run();
+            user.setSingleAttribute(section.getHashAttribute(), newHash);
+        }
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.phase = section.getLabel();
+            event.hashResult = changed ? "miss" : "hit";
+            event.attributesWritten = writes != null ? writes.writes() - writesBefore : 0;
+            event.commit();
+        }
+        return changed;
+    }
+
+    private void applyIdentity(UserModel user, Profile profile) {
         user.setFirstName(profile.getFirstName());
         user.setLastName(profile.getLastName());
         user.setEmail(profile.getEmail());
@@ -127,7 +328,6 @@ public class ScoutnetProfileSync {
         String firstLast = profile.getFirstLast();
         if (firstLast != null && !firstLast.trim().isEmpty()) {
             user.setSingleAttribute("firstlast", firstLast);
-            updateGroupEmailAttributes(session, realm, user, firstLast);
         }
 
         String scouternaEmail = profile.getScouternaEmail();
@@ -150,7 +350,9 @@ public class ScoutnetProfileSync {
         if (mobilePhone != null && !mobilePhone.trim().isEmpty()) {
             user.setSingleAttribute("phone_number", mobilePhone);
         }
+    }
 
+    private void applyMemberships(UserModel user, Profile profile, Roles roles) {
         if (profile.getMemberships() != null && profile.getMemberships().getGroup() != null) {
             Map<String, GroupMembership> groups = profile.getMemberships().getGroup();
 
@@ -167,234 +369,204 @@ public class ScoutnetProfileSync {
                 });
         }
 
-        String membershipsJson = buildMembershipsJson(profile, roles);
-        if (membershipsJson != null) {
-            user.setSingleAttribute("memberships", membershipsJson);
+        MembershipsJsonWriter.Result memberships = MembershipsJsonWriter.write(profile, roles);
+        if (memberships.json().length() <= ChunkedAttributeCodec.MAX_VALUE_LENGTH) {
+            ChunkedAttributeCodec.write(user, "memberships", memberships.json(), null);
         } else {
-            user.removeAttribute("memberships");
+            // Plain attribute gets the groups-only payload; the full one goes to compressed chunks
+            log.debugf("Serialized memberships JSON is %d chars, storing compressed chunks for user %s",
+                memberships.json().length(), user.getUsername());
+            String fallback = memberships.withinBudget(ChunkedAttributeCodec.MAX_VALUE_LENGTH,
+                "memberships_truncated: payload exceeded " + ChunkedAttributeCodec.MAX_VALUE_LENGTH + " chars");
+            if (!ChunkedAttributeCodec.write(user, "memberships", memberships.json(), fallback)) {
+                log.warnf("Memberships for user %s exceed the chunked attribute limit even compressed; "
+                    + "storing groups-only payload", user.getUsername());
+            }
         }
 
         // Remove attributes superseded by memberships
         user.removeAttribute("scoutnet_definitions");
         user.removeAttribute("scoutnet_troops");
         user.removeAttribute("roles");
-
-        user.setSingleAttribute("scoutnet_profile_hash", newProfileHash);
     }
 
     static String buildMembershipsJson(Profile profile, Roles roles) {
-        ScoutnetMemberships memberships = new ScoutnetMemberships();
+        return MembershipsJsonWriter.write(profile, roles).json();
+    }
 
-        // Role display name lookup — role_summary covers group-level roles only
-        Map<String, RoleSummaryEntry> roleSummaryByKey = new HashMap<>();
-        if (profile.getRoleSummary() != null) {
-            for (RoleSummaryEntry entry : profile.getRoleSummary().values()) {
-                if (entry.getRoleKey() != null) {
-                    roleSummaryByKey.put(entry.getRoleKey(), entry);
-                }
-            }
-        }
+    /**
+     * Inputs of the identity/contact stage: everything {@link #applyIdentity} writes.
+     */
+    static String generateIdentityHash(Profile profile) {
+        return newHasher()
+            .add(String.valueOf(profile.getMemberNo()))
+            .add(profile.getFirstName())
+            .add(profile.getLastName())
+            .add(profile.getEmail())
+            .add(profile.getDob())
+            .add(profile.getLanguage())
+            .add(profile.getScouternaEmail())
+            .add(profile.getAltEmail())
+            .add(profile.getAvatarUrl())
+            .add(profile.getMobilePhone())
+            .hex();
+    }
 
-        // Troop and patrol name/groupId lookups from profile membership entries
-        Map<String, String> troopNames = new HashMap<>();
-        Map<String, Integer> troopGroupIds = new HashMap<>();
-        Map<String, String> patrolNames = new HashMap<>();
-        Map<String, Integer> patrolGroupIds = new HashMap<>();
+    /**
+     * Inputs of {@link ScoutnetGroupManager#syncUserGroups}: the typed group ids from roles
+     * and the membership keys with their display names from the profile.
+     */
+    static String generateGroupsHash(Profile profile, Roles roles) {
+        SectionHasher hasher = newHasher();
+        if (roles != null) {
+            hasher.add("organisation").addSortedKeys(roles.getOrganisation());
+            hasher.add("group").addSortedKeys(roles.getGroup());
+            hasher.add("district").addSortedKeys(roles.getDistrict());
+        }
         if (profile.getMemberships() != null && profile.getMemberships().getGroup() != null) {
-            for (Map.Entry<String, GroupMembership> gEntry : profile.getMemberships().getGroup().entrySet()) {
-                int groupId;
-                try { groupId = Integer.parseInt(gEntry.getKey()); } catch (NumberFormatException e) { continue; }
-                GroupMembership membership = gEntry.getValue();
-                Troop troop = membership.getTroop();
-                if (troop != null) {
-                    String troopId = String.valueOf(troop.getId());
-                    troopNames.put(troopId, troop.getName());
-                    troopGroupIds.put(troopId, groupId);
-                }
-                Patrol patrol = membership.getPatrol();
-                if (patrol != null) {
-                    String patrolId = String.valueOf(patrol.getId());
-                    patrolNames.put(patrolId, patrol.getName());
-                    patrolGroupIds.put(patrolId, groupId);
-                }
-            }
+            hasher.add("memberships");
+            new TreeMap<>(profile.getMemberships().getGroup()).forEach((key, membership) -> {
+                Group group = membership.getGroup();
+                hasher.add(key).add(group != null ? group.getName() : null);
+            });
         }
+        return hasher.hex();
+    }
 
-        // Always include all structural fields so integrators see a consistent shape
-        memberships.setGroups(new LinkedHashMap<>());
-        memberships.setTroops(new LinkedHashMap<>());
-        memberships.setPatrols(new LinkedHashMap<>());
-        memberships.setOrganisations(new LinkedHashMap<>());
-        memberships.setRegions(new LinkedHashMap<>());
-        memberships.setDistricts(new LinkedHashMap<>());
-        memberships.setCorps(new LinkedHashMap<>());
-        memberships.setNetworks(new LinkedHashMap<>());
-        // memberships.setProjects(new LinkedHashMap<>()); // Disabled: see ScoutnetMemberships.projects
-
-        // Groups
+    /**
+     * Inputs of the memberships claim: the profile's group memberships and role summary
+     * plus the raw roles response.
+     */
+    static String generateRolesHash(Profile profile, String rolesJson) {
+        SectionHasher hasher = newHasher();
         if (profile.getMemberships() != null && profile.getMemberships().getGroup() != null) {
-            Map<String, GroupEntry> groupEntries = new LinkedHashMap<>();
             for (Map.Entry<String, GroupMembership> entry : profile.getMemberships().getGroup().entrySet()) {
-                String groupId = entry.getKey();
                 GroupMembership membership = entry.getValue();
-                GroupEntry groupEntry = new GroupEntry();
-
-                Group group = membership.getGroup();
-                groupEntry.setName(group != null ? group.getName() : null);
-                groupEntry.setIsPrimary(membership.isPrimary());
-                groupEntry.setRoles(buildRoleItems(membership.getRoles(), roleSummaryByKey, true));
-                groupEntries.put(groupId, groupEntry);
+                hasher.add(entry.getKey()).add(String.valueOf(membership.isPrimary()));
+                hasher.add(membership.getGroup() != null ? membership.getGroup().getName() : null);
+                if (membership.getTroop() != null) {
+                    hasher.add("troop").add(String.valueOf(membership.getTroop().getId())).add(membership.getTroop().getName());
+                }
+                if (membership.getPatrol() != null) {
+                    hasher.add("patrol").add(String.valueOf(membership.getPatrol().getId())).add(membership.getPatrol().getName());
+                }
+                if (membership.getRoles() != null) {
+                    membership.getRoles().forEach((roleId, roleKey) -> hasher.add(roleId).add(roleKey));
+                }
             }
-            memberships.setGroups(groupEntries);
         }
-
-        if (roles != null) {
-            memberships.setTroops(buildNamedRoleEntries(roles.getTroop(), troopNames, troopGroupIds));
-            memberships.setPatrols(buildNamedRoleEntries(roles.getPatrol(), patrolNames, patrolGroupIds));
-            memberships.setOrganisations(buildSimpleRoleEntries(roles.getOrganisation()));
-            memberships.setRegions(buildSimpleRoleEntries(roles.getRegion()));
-            memberships.setDistricts(buildSimpleRoleEntries(roles.getDistrict()));
-            memberships.setCorps(buildSimpleRoleEntries(roles.getCorps()));
-            memberships.setNetworks(buildSimpleRoleEntries(roles.getNetwork()));
-            // memberships.setProjects(buildSimpleRoleEntries(roles.getProject())); // Disabled: see ScoutnetMemberships.projects
+        if (profile.getRoleSummary() != null) {
+            hasher.add("role_summary");
+            for (RoleSummaryEntry entry : profile.getRoleSummary().values()) {
+                hasher.add(entry.getRoleKey()).add(entry.getRoleName());
+            }
         }
+        return hasher.add("roles").add(rolesJson).hex();
+    }
 
-        try {
-            String json = OBJECT_MAPPER.writeValueAsString(memberships);
-            if (json.length() > KEYCLOAK_ATTRIBUTE_MAX_LENGTH) {
-                log.warnf("Serialized memberships JSON is %d chars, exceeds Keycloak's %d attribute limit; "
-                        + "falling back to groups-only payload", json.length(), KEYCLOAK_ATTRIBUTE_MAX_LENGTH);
-                ScoutnetMemberships fallback = new ScoutnetMemberships();
-                fallback.setGroups(memberships.getGroups());
-                fallback.setError("memberships_truncated: payload exceeded " + KEYCLOAK_ATTRIBUTE_MAX_LENGTH + " chars");
-                json = OBJECT_MAPPER.writeValueAsString(fallback);
+    /**
+     * Inputs of the group email stage: the user's firstlast and the tracked attributes
+     * (e.g. domain) of the scoutnet subgroups the user ended up in.
+     */
+    static String generateGroupEmailsHash(String firstLast, List<GroupModel> scoutnetGroups) {
+        SectionHasher hasher = newHasher().add(firstLast);
+        for (GroupModel group : scoutnetGroups) {
+            hasher.add(group.getName());
+            for (String attribute : TRACKED_ATTRIBUTES) {
+                hasher.add(attribute).add(group.getFirstAttribute(attribute));
             }
-            return json;
-        } catch (Exception e) {
-            log.warnf("Could not serialize memberships: %s", e.getMessage());
-            return null;
         }
+        return hasher.hex();
     }
 
-    private static Map<String, NamedRoleEntry> buildNamedRoleEntries(
-            Map<String, Map<String, String>> rolesForType, Map<String, String> nameMap,
-            Map<String, Integer> groupIdMap) {
-        if (rolesForType == null || rolesForType.isEmpty()) return new LinkedHashMap<>();
-        Map<String, NamedRoleEntry> result = new LinkedHashMap<>();
-        for (Map.Entry<String, Map<String, String>> entry : rolesForType.entrySet()) {
-            String entityId = entry.getKey();
-            NamedRoleEntry namedEntry = new NamedRoleEntry();
-            namedEntry.setName(nameMap.get(entityId));
-            namedEntry.setGroupId(groupIdMap.get(entityId));
-            namedEntry.setRoles(buildRoleItems(entry.getValue(), Collections.emptyMap(), false));
-            result.put(entityId, namedEntry);
-        }
-        return result;
+    /**
+     * A new profile hash for a user whose claim attributes were changed outside a sync, chained
+     * from the previous one so claims cached under it are re-read.
+     */
+    static String rotateProfileHash(String profileHash, String change) {
+        return newHasher().add(profileHash).add(change).hex();
     }
 
-    private static Map<String, RoleEntry> buildSimpleRoleEntries(
-            Map<String, Map<String, String>> rolesForType) {
-        if (rolesForType == null || rolesForType.isEmpty()) return new LinkedHashMap<>();
-        Map<String, RoleEntry> result = new LinkedHashMap<>();
-        for (Map.Entry<String, Map<String, String>> entry : rolesForType.entrySet()) {
-            RoleEntry roleEntry = new RoleEntry();
-            roleEntry.setRoles(buildRoleItems(entry.getValue(), Collections.emptyMap(), false));
-            result.put(entry.getKey(), roleEntry);
-        }
-        return result;
+    private static SectionHasher newHasher() {
+        return new SectionHasher().add(PROVIDER_VERSION);
     }
 
-    private static List<RoleItem> buildRoleItems(Map<String, String> rolesMap,
-            Map<String, RoleSummaryEntry> roleSummaryByKey, boolean includeDisplayName) {
-        if (rolesMap == null || rolesMap.isEmpty()) return Collections.emptyList();
-        List<RoleItem> items = new ArrayList<>();
-        for (Map.Entry<String, String> entry : rolesMap.entrySet()) {
-            int roleId;
+    /**
+     * SHA-256 over a sequence of nullable strings, each length-prefixed so that
+     * adjacent values cannot run into each other.
+     */
+    private static final class SectionHasher {
+        private final MessageDigest digest;
+
+        SectionHasher() {
             try {
-                roleId = Integer.parseInt(entry.getKey());
-            } catch (NumberFormatException e) {
-                continue;
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException("SHA-256 not available", e);
             }
-            String roleKey = entry.getValue();
-            String displayName = null;
-            if (includeDisplayName) {
-                RoleSummaryEntry summary = roleSummaryByKey.get(roleKey);
-                displayName = summary != null ? summary.getRoleName() : null;
-            }
-            items.add(new RoleItem(roleId, roleKey, displayName));
         }
-        items.sort(Comparator.comparing(RoleItem::getKey));
-        return items;
-    }
-
-    private String generateProfileHash(RealmModel realm, UserModel user, String profileJson, String rolesJson) {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            digest.update(PROVIDER_VERSION.getBytes(StandardCharsets.UTF_8));
-
-            String cleanedJson = profileJson.replaceAll(",?\\s*\"last_login\"\\s*:\\s*\"[^\"]*\"", "");
-            digest.update(cleanedJson.getBytes(StandardCharsets.UTF_8));
 
-            if (rolesJson != null) {
-                digest.update(rolesJson.getBytes(StandardCharsets.UTF_8));
+        SectionHasher add(String value) {
+            if (value == null) {
+                digest.update((byte) 0xff);
+                return this;
             }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            digest.update((byte) (bytes.length >>> 24));
+            digest.update((byte) (bytes.length >>> 16));
+            digest.update((byte) (bytes.length >>> 8));
+            digest.update((byte) bytes.length);
+            digest.update(bytes);
+            return this;
+        }
 
-            GroupModel scoutnetParent = realm.getGroupsStream()
-                .filter(g -> "scoutnet".equals(g.getName()))
-                .findFirst()
-                .orElse(null);
-
-            if (scoutnetParent != null) {
-                user.getGroupsStream()
-                    .filter(group -> scoutnetParent.equals(group.getParent()))
-                    .sorted(Comparator.comparing(GroupModel::getName))
-                    .forEach(group -> {
-                        for (String attribute : TRACKED_ATTRIBUTES) {
-                            String value = group.getFirstAttribute(attribute);
-                            digest.update((group.getName() + ":" + attribute + ":" + (value != null ? value : "")).getBytes(StandardCharsets.UTF_8));
-                        }
-                    });
-            }
+        SectionHasher addSortedKeys(Map<String, ?> map) {
+            if (map == null) return add(null);
+            new TreeSet<>(map.keySet()).forEach(this::add);
+            return this;
+        }
 
-            byte[] hash = digest.digest();
-            StringBuilder hexString = new StringBuilder();
-            for (byte b : hash) {
-                String hex = Integer.toHexString(0xff & b);
-                if (hex.length() == 1) hexString.append('0');
-                hexString.append(hex);
-            }
-            return hexString.toString();
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("SHA-256 not available", e);
+        String hex() {
+            return HexFormat.of().formatHex(digest.digest());
         }
     }
 
-    private void updateGroupEmailAttributes(KeycloakSession session, RealmModel realm, UserModel user, String firstLast) {
+    /**
+     * @return false if an address could not be reserved and that group's email was skipped
+     */
+    private boolean updateGroupEmailAttributes(KeycloakSession session, RealmModel realm, UserModel user,
+                                               String firstLast, List<GroupModel> scoutnetGroups) {
+        GroupEmailReservationStore reservations = new GroupEmailReservationStore(session);
         Set<String> processedAttributes = new HashSet<>();
         Map<String, String> groupEmailMap = new HashMap<>();
-
-        user.getGroupsStream()
-            .filter(group -> group.getParent() != null && "scoutnet".equals(group.getParent().getName()))
-            .forEach(group -> {
-                String domain = group.getFirstAttribute("domain");
-                String groupId = group.getName(); // e.g., "766"
-                String attributeName = "group_email_" + groupId;
-                processedAttributes.add(attributeName);
-
-                if (isValidDomain(domain)) {
-                    domain = domain.trim();
-                    String baseEmail = firstLast + "@" + domain;
-                    String uniqueEmail = ensureUniqueEmail(session, realm, user, baseEmail, groupId);
-                    user.setSingleAttribute(attributeName, uniqueEmail);
-                    groupEmailMap.put(groupId, uniqueEmail);
-                } else {
-                    user.removeAttribute(attributeName);
+        List<String> releasedGroupIds = new ArrayList<>();
+        boolean complete = true;
+
+        for (GroupModel group : scoutnetGroups) {
+            String domain = group.getFirstAttribute("domain");
+            String groupId = group.getName(); // e.g., "766"
+            String attributeName = "group_email_" + groupId;
+            processedAttributes.add(attributeName);
+
+            if (isValidDomain(domain)) {
+                domain = domain.trim();
+                String uniqueEmail = reservations.reserve(realm, user, groupId, firstLast, domain,
+                    user.getFirstAttribute(attributeName));
+                if (uniqueEmail == null) {
+                    complete = false;
+                    continue;
                 }
-            });
+                user.setSingleAttribute(attributeName, uniqueEmail);
+                groupEmailMap.put(groupId, uniqueEmail);
+            } else if (user.getFirstAttribute(attributeName) != null) {
+                releasedGroupIds.add(groupId);
+                user.removeAttribute(attributeName);
+            }
+        }
 
         try {
             if (!groupEmailMap.isEmpty()) {
-                user.setSingleAttribute("group_emails_json", OBJECT_MAPPER.writeValueAsString(groupEmailMap));
+                user.setSingleAttribute("group_emails_json", ScoutnetJson.WRITER.writeValueAsString(groupEmailMap));
             } else {
                 user.removeAttribute("group_emails_json");
             }
@@ -405,7 +577,13 @@ public class ScoutnetProfileSync {
         user.getAttributes().keySet().stream()
             .filter(attr -> attr.startsWith("group_email_") && !attr.equals("group_emails_json"))
             .filter(attr -> !processedAttributes.contains(attr))
-            .forEach(user::removeAttribute);
+            .toList()
+            .forEach(attr -> {
+                releasedGroupIds.add(attr.substring("group_email_".length()));
+                user.removeAttribute(attr);
+            });
+        reservations.release(realm, user, releasedGroupIds);
+        return complete;
     }
 
     private boolean isValidDomain(String domain) {
@@ -420,25 +598,6 @@ public class ScoutnetProfileSync {
                domain.length() > 3;
     }
 
-    private String ensureUniqueEmail(KeycloakSession session, RealmModel realm, UserModel currentUser, String baseEmail, String groupName) {
-        String email = baseEmail;
-        int counter = 1;
-        String attributeName = "group_email_" + groupName;
-
-        while (isEmailInUse(session, realm, currentUser, email, attributeName)) {
-            String[] parts = baseEmail.split("@");
-            email = parts[0] + counter + "@" + parts[1];
-            counter++;
-        }
-
-        return email;
-    }
-
-    private boolean isEmailInUse(KeycloakSession session, RealmModel realm, UserModel currentUser, String email, String attributeName) {
-        return session.users().searchForUserByUserAttributeStream(realm, attributeName, email)
-            .anyMatch(user -> !user.getId().equals(currentUser.getId()));
-    }
-
     private static String getProviderVersion() {
         String version = ScoutnetProfileSync.class.getPackage().getImplementationVersion();
         if (version != null) {
@@ -0,0 +1,92 @@
+package se.scouterna.keycloak;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.timer.ScheduledTask;
+
+import java.util.List;
+
+/**
+ * Moves the remaining users out of the legacy root-level Scoutnet groups, which predate the
+ * {@code scoutnet} parent group, and records completion in the realm attribute
+ * {@link #MIGRATED_ATTRIBUTE}. Once that is set, group sync no longer checks each user's groups
+ * for legacy memberships on login.
+ *
+ * Scheduled through the TimerProvider with a ClusterAwareScheduledTaskRunner; realms that are
+ * already migrated cost a single attribute read per run. Members are removed in batches, each
+ * batch in its own transaction.
+ */
+public class ScoutnetRootGroupMigrationTask implements ScheduledTask {
+
+    private static final Logger log = Logger.getLogger(ScoutnetRootGroupMigrationTask.class);
+    public static final String TASK_NAME = "scoutnet-root-group-migration";
+    public static final String MIGRATED_ATTRIBUTE = "scoutnet_root_groups_migrated";
+    public static final long INTERVAL_MILLIS = 60 * 60 * 1000L;
+    private static final int BATCH_SIZE = 200;
+
+    @Override
+    public String getTaskName() {
+        return TASK_NAME;
+    }
+
+    @Override
+    public void run(KeycloakSession session) {
+        List<String> realmIds = session.realms().getRealmsStream()
+            .filter(realm -> !isMigrated(realm))
+            .map(RealmModel::getId)
+            .toList();
+        for (String realmId : realmIds) {
+            migrateRealm(session.getKeycloakSessionFactory(), realmId);
+        }
+    }
+
+    public static boolean isMigrated(RealmModel realm) {
+        return realm.getAttribute(MIGRATED_ATTRIBUTE) != null;
+    }
+
+    private void migrateRealm(KeycloakSessionFactory factory, String realmId) {
+        List<String> legacyGroupIds = KeycloakModelUtils.runJobInTransactionWithResult(factory, session -> {
+            RealmModel realm = session.realms().getRealm(realmId);
+            return session.groups().getTopLevelGroupsStream(realm)
+                .filter(ScoutnetGroupManager::isLegacyRootGroup)
+                .map(GroupModel::getId)
+                .toList();
+        });
+
+        long moved = 0;
+        for (String groupId : legacyGroupIds) {
+            int batch;
+            do {
+                batch = KeycloakModelUtils.runJobInTransactionWithResult(factory, session -> {
+                    RealmModel realm = session.realms().getRealm(realmId);
+                    GroupModel group = realm.getGroupById(groupId);
+                    if (group == null) return 0;
+                    List<UserModel> members = session.users().getGroupMembersStream(realm, group, 0, BATCH_SIZE).toList();
+                    members.forEach(user -> user.leaveGroup(group));
+                    return members.size();
+                });
+                moved += batch;
+            } while (batch == BATCH_SIZE);
+        }
+
+        boolean marked = KeycloakModelUtils.runJobInTransactionWithResult(factory, session -> {
+            RealmModel realm = session.realms().getRealm(realmId);
+            // Realms that have never seen a Scoutnet login are left alone until they do
+            if (legacyGroupIds.isEmpty() && session.groups().getTopLevelGroupsStream(realm)
+                    .noneMatch(group -> ScoutnetGroupManager.PARENT_GROUP_NAME.equals(group.getName()))) {
+                return false;
+            }
+            realm.setAttribute(MIGRATED_ATTRIBUTE, String.valueOf(System.currentTimeMillis()));
+            return true;
+        });
+        if (marked) {
+            log.infof("Migrated %d memberships out of %d legacy Scoutnet root groups in realm %s",
+                moved, legacyGroupIds.size(), realmId);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package se.scouterna.keycloak;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.UserModelDelegate;
+
+import java.util.List;
+
+/**
+ * JFR event for one phase of a profile sync: a hashed section from {@link ScoutnetProfileSync}
+ * (checked and, on a miss, synced) or the group membership reconciliation in
+ * {@link ScoutnetGroupManager}. Disabled by default, like {@code ScoutnetRequestEvent}.
+ */
+@Name("se.scouterna.keycloak.ScoutnetSyncPhase")
+@Label("Scoutnet Sync Phase")
+@Category("Scoutnet")
+@Description("A phase of a Scoutnet profile sync")
+@Enabled(false)
+@StackTrace(false)
+final class ScoutnetSyncEvent extends Event {
+
+    @Label("Phase")
+    String phase;
+
+    @Label("Hash Result")
+    @Description("hit if the section was unchanged and skipped, miss if it was synced")
+    String hashResult;
+
+    @Label("Groups Touched")
+    @Description("Groups joined or left")
+    int groupsTouched;
+
+    @Label("Attributes Written")
+    int attributesWritten;
+
+    static boolean isRecording() {
+        return new ScoutnetSyncEvent().isEnabled();
+    }
+
+    /**
+     * Counts the user attribute writes of a sync; only wrapped around the user while the event
+     * is recording.
+     */
+    static final class WriteCounter extends UserModelDelegate {
+        private int writes;
+
+        WriteCounter(UserModel user) {
+            super(user);
+        }
+
+        int writes() {
+            return writes;
+        }
+
+        @Override
+        public void setSingleAttribute(String name, String value) {
+            writes++;
+            super.setSingleAttribute(name, value);
+        }
+
+        @Override
+        public void setAttribute(String name, List<String> values) {
+            writes++;
+            super.setAttribute(name, values);
+        }
+
+        @Override
+        public void removeAttribute(String name) {
+            writes++;
+            super.removeAttribute(name);
+        }
+    }
+}
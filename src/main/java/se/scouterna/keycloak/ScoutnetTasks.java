@@ -0,0 +1,38 @@
+package se.scouterna.keycloak;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.services.scheduled.ClusterAwareScheduledTaskRunner;
+import org.keycloak.timer.ScheduledTask;
+import org.keycloak.timer.TimerProvider;
+
+/**
+ * Schedules the provider's background tasks on Keycloak's TimerProvider, with a
+ * ClusterAwareScheduledTaskRunner so one node runs each interval. The factory that schedules a
+ * task cancels it in {@code close}, before releasing the components the task uses.
+ */
+final class ScoutnetTasks {
+
+    private static final Logger log = Logger.getLogger(ScoutnetTasks.class);
+
+    private ScoutnetTasks() {
+    }
+
+    static void schedule(KeycloakSessionFactory factory, ScheduledTask task, long intervalMillis) {
+        KeycloakModelUtils.runJobInTransaction(factory, session -> session.getProvider(TimerProvider.class)
+            .schedule(new ClusterAwareScheduledTaskRunner(factory, task, intervalMillis), intervalMillis, task.getTaskName()));
+    }
+
+    /**
+     * Stops future runs of the task on this node; a run in progress finishes.
+     */
+    static void cancel(KeycloakSessionFactory factory, String taskName) {
+        try {
+            KeycloakModelUtils.runJobInTransaction(factory, session -> session.getProvider(TimerProvider.class).cancelTask(taskName));
+        } catch (RuntimeException e) {
+            // On shutdown the timer may be closed already, which cancels its tasks anyway
+            log.debugf("Could not cancel scheduled task %s: %s", taskName, e.getMessage());
+        }
+    }
+}
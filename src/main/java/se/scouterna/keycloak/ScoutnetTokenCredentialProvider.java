@@ -1,5 +1,8 @@
 package se.scouterna.keycloak;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.MissingNode;
 import org.jboss.logging.Logger;
 import org.keycloak.credential.CredentialModel;
 import org.keycloak.credential.CredentialProvider;
@@ -8,6 +11,13 @@ import org.keycloak.credential.CredentialTypeMetadataContext;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
+import se.scouterna.keycloak.client.ScoutnetJson;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 /**
  * Credential provider for storing persistent Scoutnet API tokens.
@@ -18,7 +28,12 @@ public class ScoutnetTokenCredentialProvider implements CredentialProvider<Crede
 
     public static final String CREDENTIAL_TYPE = "scoutnet-token";
     private static final Logger log = Logger.getLogger(ScoutnetTokenCredentialProvider.class);
-    private static final com.fasterxml.jackson.databind.ObjectMapper OBJECT_MAPPER = new com.fasterxml.jackson.databind.ObjectMapper();
+    static final long LAST_USED_RESOLUTION_MILLIS = 24 * 60 * 60_000L;
+    private static final String DATA_APP_ID = "app_id";
+    private static final String DATA_LAST_USED = "last_used";
+    private static final String DATA_REVOKED = "revoked";
+    // A freshly stored token's credentialData only depends on the app_id, which is fixed per realm
+    private static final Map<String, String> CREDENTIAL_DATA = new ConcurrentHashMap<>();
 
     private final KeycloakSession session;
 
@@ -57,39 +72,164 @@ public class ScoutnetTokenCredentialProvider implements CredentialProvider<Crede
             .build(session);
     }
 
+    /**
+     * A stored token with the metadata kept in its credentialData.
+     *
+     * @param issuedAt when this token was stored (epoch millis)
+     * @param lastUsed last successful profile fetch with it, to within a day; 0 if unknown
+     * @param revoked  Scoutnet rejected it on refresh; it is not used again until replaced
+     */
+    public record StoredToken(String token, long issuedAt, long lastUsed, boolean revoked) {
+        public long ageMillis(long now) {
+            return now - issuedAt;
+        }
+    }
+
     /**
      * Retrieves the stored Scoutnet token for a user.
      *
+     * The credential is looked up once per request and kept as a session attribute, so a
+     * later {@link #storeToken} in the same request doesn't read the credential store again.
+     *
      * @return The token string, or null if no token is stored.
      */
-    public static String getToken(UserModel user) {
-        return user.credentialManager().getStoredCredentialsByTypeStream(CREDENTIAL_TYPE)
-            .findFirst()
-            .map(CredentialModel::getSecretData)
-            .orElse(null);
+    public static String getToken(KeycloakSession session, UserModel user) {
+        List<CredentialModel> stored = storedTokens(session, user);
+        return stored.isEmpty() ? null : stored.get(0).getSecretData();
+    }
+
+    /**
+     * Retrieves the stored token with its metadata, or null if no token is stored.
+     */
+    public static StoredToken getStoredToken(KeycloakSession session, UserModel user) {
+        List<CredentialModel> stored = storedTokens(session, user);
+        if (stored.isEmpty()) return null;
+
+        CredentialModel credential = stored.get(0);
+        JsonNode data = readCredentialData(credential);
+        return new StoredToken(credential.getSecretData(),
+            credential.getCreatedDate() != null ? credential.getCreatedDate() : 0L,
+            data.path(DATA_LAST_USED).asLong(0L),
+            data.path(DATA_REVOKED).asBoolean(false));
+    }
+
+    /**
+     * Records a successful use of the stored token. Written at most once per
+     * {@link #LAST_USED_RESOLUTION_MILLIS} so routine fetches don't cost a credential write.
+     */
+    public static void markUsed(KeycloakSession session, UserModel user) {
+        StoredToken stored = getStoredToken(session, user);
+        long now = System.currentTimeMillis();
+        if (stored == null || now - stored.lastUsed() < LAST_USED_RESOLUTION_MILLIS) return;
+        updateCredentialData(session, user, data -> data.put(DATA_LAST_USED, now));
+    }
+
+    /**
+     * Marks the stored token as rejected by Scoutnet, so it isn't tried again until a new one is stored.
+     */
+    public static void markRevoked(KeycloakSession session, UserModel user) {
+        StoredToken stored = getStoredToken(session, user);
+        if (stored == null || stored.revoked()) return;
+        updateCredentialData(session, user, data -> data.put(DATA_REVOKED, true));
+        log.debugf("Marked Scoutnet token as revoked for user: %s", user.getUsername());
     }
 
     /**
      * Stores or updates the persistent Scoutnet token for a user.
+     *
+     * The existing credential is updated in place, and not written at all if the token and
+     * app_id are unchanged and the token isn't marked revoked. Storing a token resets its
+     * issue time and clears the last-used and revoked metadata. Duplicates left by earlier
+     * versions are removed.
      */
-    public static void storeToken(UserModel user, String token, String appId) {
-        user.credentialManager().getStoredCredentialsByTypeStream(CREDENTIAL_TYPE)
-            .forEach(existing -> user.credentialManager().removeStoredCredentialById(existing.getId()));
+    public static void storeToken(KeycloakSession session, UserModel user, String token, String appId) {
+        String credentialData = CREDENTIAL_DATA.computeIfAbsent(appId != null ? appId : "",
+            ScoutnetTokenCredentialProvider::serializeCredentialData);
+        List<CredentialModel> stored = storedTokens(session, user);
+
+        CredentialModel credential = stored.isEmpty() ? null : stored.get(0);
+        for (CredentialModel duplicate : stored.subList(Math.min(1, stored.size()), stored.size())) {
+            user.credentialManager().removeStoredCredentialById(duplicate.getId());
+        }
+
+        if (credential == null) {
+            credential = new CredentialModel();
+            credential.setType(CREDENTIAL_TYPE);
+            credential.setSecretData(token);
+            credential.setCredentialData(credentialData);
+            credential.setCreatedDate(System.currentTimeMillis());
+            credential.setUserLabel("Scoutnet persistent token");
+            credential = user.credentialManager().createStoredCredential(credential);
+        } else if (!token.equals(credential.getSecretData()) || !isSameAppAndUsable(credential, appId)) {
+            credential.setSecretData(token);
+            credential.setCredentialData(credentialData);
+            credential.setCreatedDate(System.currentTimeMillis());
+            user.credentialManager().updateStoredCredential(credential);
+        } else {
+            log.tracef("Scoutnet token unchanged for user: %s, skipping write", user.getUsername());
+            return;
+        }
+        session.setAttribute(attributeKey(user), List.of(credential));
+    }
+
+    private static List<CredentialModel> storedTokens(KeycloakSession session, UserModel user) {
+        String key = attributeKey(user);
+        @SuppressWarnings("unchecked")
+        List<CredentialModel> stored = session.getAttribute(key, List.class);
+        if (stored == null) {
+            stored = user.credentialManager().getStoredCredentialsByTypeStream(CREDENTIAL_TYPE).toList();
+            session.setAttribute(key, stored);
+        }
+        return stored;
+    }
+
+    private static String attributeKey(UserModel user) {
+        return CREDENTIAL_TYPE + "." + user.getId();
+    }
+
+    private static void updateCredentialData(KeycloakSession session, UserModel user, Consumer<Map<String, Object>> change) {
+        CredentialModel credential = storedTokens(session, user).get(0);
+        JsonNode current = readCredentialData(credential);
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put(DATA_APP_ID, current.path(DATA_APP_ID).asText(""));
+        if (current.has(DATA_LAST_USED)) data.put(DATA_LAST_USED, current.get(DATA_LAST_USED).asLong());
+        if (current.has(DATA_REVOKED)) data.put(DATA_REVOKED, current.get(DATA_REVOKED).asBoolean());
+        change.accept(data);
+        try {
+            credential.setCredentialData(ScoutnetJson.WRITER.writeValueAsString(data));
+        } catch (JsonProcessingException e) {
+            log.warnf("Could not write Scoutnet token credential %s data, leaving it unchanged: %s",
+                credential.getId(), e.getClass().getSimpleName());
+            return;
+        }
+        user.credentialManager().updateStoredCredential(credential);
+        session.setAttribute(attributeKey(user), List.of(credential));
+    }
 
-        String credentialData;
+    private static boolean isSameAppAndUsable(CredentialModel credential, String appId) {
+        JsonNode data = readCredentialData(credential);
+        return data.path(DATA_APP_ID).asText("").equals(appId != null ? appId : "")
+            && !data.path(DATA_REVOKED).asBoolean(false);
+    }
+
+    private static JsonNode readCredentialData(CredentialModel credential) {
+        if (credential.getCredentialData() == null) return MissingNode.getInstance();
         try {
-            credentialData = OBJECT_MAPPER
-                .writeValueAsString(java.util.Map.of("app_id", appId != null ? appId : ""));
-        } catch (Exception e) {
-            credentialData = "{}";
+            return ScoutnetJson.TREE_READER.readTree(credential.getCredentialData());
+        } catch (JsonProcessingException e) {
+            log.warnf("Could not read Scoutnet token credential %s data, ignoring it: %s",
+                credential.getId(), e.getClass().getSimpleName());
+            return MissingNode.getInstance();
         }
+    }
 
-        CredentialModel credential = new CredentialModel();
-        credential.setType(CREDENTIAL_TYPE);
-        credential.setSecretData(token);
-        credential.setCredentialData(credentialData);
-        credential.setCreatedDate(System.currentTimeMillis());
-        credential.setUserLabel("Scoutnet persistent token");
-        user.credentialManager().createStoredCredential(credential);
+    private static String serializeCredentialData(String appId) {
+        try {
+            return ScoutnetJson.WRITER.writeValueAsString(Map.of(DATA_APP_ID, appId));
+        } catch (JsonProcessingException e) {
+            log.warnf("Could not write new Scoutnet token credential data, storing it without app ID: %s",
+                e.getClass().getSimpleName());
+            return "{}";
+        }
     }
 }
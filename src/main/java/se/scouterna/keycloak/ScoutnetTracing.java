@@ -0,0 +1,36 @@
+package se.scouterna.keycloak;
+
+import io.opentelemetry.api.trace.Span;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.tracing.TracingProvider;
+
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Login phase spans on Keycloak's {@link TracingProvider}, so they nest under the request's
+ * trace and are exported wherever Keycloak's own spans go. Spans are named
+ * {@code <Class>.<phase>}; attributes use the {@code scoutnet.} prefix.
+ *
+ * With tracing disabled Keycloak installs a no-op provider and a phase costs a provider
+ * lookup and a lambda call; the span handed to the work is then invalid and ignores attributes.
+ */
+final class ScoutnetTracing {
+
+    private ScoutnetTracing() {
+    }
+
+    static <T> T call(KeycloakSession session, Class<?> owner, String phase, Function<Span, T> work) {
+        TracingProvider tracing = session.getProvider(TracingProvider.class);
+        return tracing != null ? tracing.trace(owner, phase, work) : work.apply(Span.getInvalid());
+    }
+
+    static void run(KeycloakSession session, Class<?> owner, String phase, Consumer<Span> work) {
+        TracingProvider tracing = session.getProvider(TracingProvider.class);
+        if (tracing != null) {
+            tracing.trace(owner, phase, work);
+        } else {
+            work.accept(Span.getInvalid());
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package se.scouterna.keycloak;
+
+/**
+ * Independently hashed parts of a Scoutnet profile sync.
+ *
+ * Each section stores its own input hash on the user, so a change in one part of the
+ * profile (e.g. avatar_url) only re-runs that stage of the sync instead of group
+ * reconciliation, group email allocation and the memberships rebuild as well.
+ *
+ * How often each section is synced vs skipped is counted by {@link ScoutnetMetrics#profileSection}.
+ */
+public enum SyncSection {
+    IDENTITY("identity", "scoutnet_hash_identity"),
+    GROUPS("groups", "scoutnet_hash_groups"),
+    ROLES("roles", "scoutnet_hash_roles"),
+    GROUP_EMAILS("group_emails", "scoutnet_hash_group_emails");
+
+    private final String label;
+    private final String hashAttribute;
+
+    SyncSection(String label, String hashAttribute) {
+        this.label = label;
+        this.hashAttribute = hashAttribute;
+    }
+
+    public String getLabel() { return label; }
+    public String getHashAttribute() { return hashAttribute; }
+}
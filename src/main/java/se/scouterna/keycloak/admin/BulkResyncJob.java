@@ -0,0 +1,313 @@
+package se.scouterna.keycloak.admin;
+
+import org.jboss.logging.Logger;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import se.scouterna.keycloak.CorrelationContext;
+import se.scouterna.keycloak.ScoutnetCookieAuthenticatorFactory;
+import se.scouterna.keycloak.ScoutnetProfileSync;
+import se.scouterna.keycloak.ScoutnetTokenCredentialProvider;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Re-fetches and re-syncs every {@code scoutnet|*} user with a stored Scoutnet token in a realm,
+ * e.g. after group {@code domain} attributes changed or the provider was upgraded.
+ *
+ * Users are read in pages ordered by ID; each user is synced in its own transaction, with
+ * Scoutnet calls paced to a maximum rate. The job has no threads of its own: up to
+ * {@code concurrency} workers run on the provider components' background executor, and each
+ * resubmits itself after every user so that jobs and pre-refresh runs share the executor.
+ * The next page is read once the current one is done. After every completed page
+ * the last user ID is stored in Keycloak's cluster-replicated single-use object cache, so a
+ * cancelled or interrupted run resumes where it left off; a realm attribute would evict the
+ * realm from every node's cache once per page. The cursor is removed when a run completes, and
+ * is lost with a full cluster restart, after which a run starts over.
+ *
+ * A job runs on the node that received the request; its status is only visible there.
+ */
+public class BulkResyncJob {
+
+    private static final Logger log = Logger.getLogger(BulkResyncJob.class);
+    static final String CURSOR_KEY_PREFIX = "scoutnet-resync-cursor.";
+    private static final String NOTE_CURSOR = "cursor";
+    static final long CURSOR_LIFESPAN_SECONDS = 30 * 24 * 60 * 60;
+    private static final int PAGE_SIZE = 100;
+    public static final int MAX_CONCURRENCY = 16;
+
+    public enum State { RUNNING, CANCELLING, CANCELLED, COMPLETED, FAILED }
+
+    public record Status(State state, long processed, long succeeded, long failed, long skipped,
+                         double usersPerSecond, String cursor, long startedAt, Long finishedAt, String lastError) {
+    }
+
+    private record Claim(String userId, long startNanos) {
+    }
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final Executor executor;
+    private final String realmId;
+    private final int concurrency;
+    private final long pacingNanos;
+    private final ScoutnetProfileSync profileSync;
+
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final long startedAt = System.currentTimeMillis();
+    private volatile State state = State.RUNNING;
+    private volatile String cursor;
+    private volatile String lastError;
+    private volatile Long finishedAt;
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    // Guarded by this
+    private final Deque<String> page = new ArrayDeque<>();
+    private String pageEnd;
+    private int inFlight;
+    private int workers;
+    private long nextPermit = System.nanoTime();
+
+    public BulkResyncJob(KeycloakSessionFactory sessionFactory, Executor executor, ScoutnetProfileSync profileSync,
+                         String realmId, String startCursor, int concurrency, double maxUsersPerSecond) {
+        this.sessionFactory = sessionFactory;
+        this.executor = executor;
+        this.realmId = realmId;
+        this.cursor = startCursor;
+        this.concurrency = Math.min(MAX_CONCURRENCY, Math.max(1, concurrency));
+        this.pacingNanos = maxUsersPerSecond > 0 ? (long) (1_000_000_000L / maxUsersPerSecond) : 0;
+        this.profileSync = profileSync;
+    }
+
+    public void start() {
+        log.infof("Scoutnet bulk resync started for realm %s%s", realmId, cursor != null ? " from " + cursor : "");
+        synchronized (this) {
+            workers = concurrency;
+        }
+        for (int i = 0; i < concurrency; i++) {
+            submitWorker();
+        }
+    }
+
+    public synchronized void cancel() {
+        if (state == State.RUNNING) {
+            state = State.CANCELLING;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Waits for the job to stop, e.g. after {@link #cancel()}; users in flight finish first.
+     *
+     * @return false if it was still running at the timeout
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return finished.await(timeout, unit);
+    }
+
+    public boolean isActive() {
+        return state == State.RUNNING || state == State.CANCELLING;
+    }
+
+    public Status status() {
+        long processed = succeeded.sum() + failed.sum() + skipped.sum();
+        long end = finishedAt != null ? finishedAt : System.currentTimeMillis();
+        double elapsedSeconds = Math.max(1, end - startedAt) / 1000.0;
+        return new Status(state, processed, succeeded.sum(), failed.sum(), skipped.sum(),
+            Math.round(processed / elapsedSeconds * 100) / 100.0, cursor, startedAt, finishedAt, lastError);
+    }
+
+    private void submitWorker() {
+        try {
+            executor.execute(this::work);
+        } catch (RejectedExecutionException e) {
+            // Executor full or closing: stop without advancing the cursor past unsynced users
+            cancel();
+            workerExited();
+        }
+    }
+
+    /**
+     * Syncs one user, then resubmits itself; exits once the job is done or stopping.
+     */
+    private void work() {
+        Claim claim;
+        try {
+            claim = claimNextUser();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel();
+            claim = null;
+        } catch (RuntimeException e) {
+            fail(e);
+            claim = null;
+        }
+        if (claim == null) {
+            workerExited();
+            return;
+        }
+
+        boolean paced = false;
+        try {
+            awaitPermit(claim.startNanos());
+            paced = true;
+            resyncUser(claim.userId());
+        } catch (InterruptedException e) {
+            // The page stays incomplete, so the cursor is not advanced past this user
+            Thread.currentThread().interrupt();
+            cancel();
+        } finally {
+            synchronized (this) {
+                inFlight--;
+                notifyAll();
+            }
+        }
+        if (paced) {
+            submitWorker();
+        } else {
+            workerExited();
+        }
+    }
+
+    /**
+     * Takes the next user and its pacing permit, reading the next page when the current one is
+     * done and saving the cursor after it.
+     *
+     * @return null once the job is done or stopping
+     */
+    private synchronized Claim claimNextUser() throws InterruptedException {
+        while (state == State.RUNNING) {
+            if (!page.isEmpty()) {
+                inFlight++;
+                long now = System.nanoTime();
+                long start = pacingNanos > 0 ? Math.max(nextPermit, now) : now;
+                nextPermit = start + pacingNanos;
+                return new Claim(page.poll(), start);
+            }
+            if (inFlight > 0) {
+                wait();
+                continue;
+            }
+            if (pageEnd != null) {
+                cursor = pageEnd;
+                pageEnd = null;
+                saveCursor(cursor);
+            }
+            List<String> userIds = nextPage(cursor);
+            if (userIds.isEmpty()) {
+                saveCursor(null);
+                state = State.COMPLETED;
+                return null;
+            }
+            page.addAll(userIds);
+            pageEnd = userIds.get(userIds.size() - 1);
+        }
+        return null;
+    }
+
+    private void awaitPermit(long startNanos) throws InterruptedException {
+        long wait;
+        while ((wait = startNanos - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+            if (Thread.interrupted()) throw new InterruptedException();
+        }
+    }
+
+    private synchronized void fail(RuntimeException e) {
+        lastError = e.getClass().getSimpleName();
+        if (isActive()) {
+            state = State.FAILED;
+        }
+        log.warnf(e, "Scoutnet bulk resync for realm %s failed", realmId);
+        notifyAll();
+    }
+
+    /**
+     * The last worker to exit finishes the job; its in-flight users are done by then.
+     */
+    private void workerExited() {
+        synchronized (this) {
+            if (--workers > 0) return;
+            if (state == State.CANCELLING) {
+                state = State.CANCELLED;
+            }
+        }
+        finishedAt = System.currentTimeMillis();
+        Status status = status();
+        log.infof("Scoutnet bulk resync for realm %s %s: %d succeeded, %d failed, %d skipped (%.2f users/s)",
+            realmId, status.state(), status.succeeded(), status.failed(), status.skipped(), status.usersPerSecond());
+        finished.countDown();
+    }
+
+    private List<String> nextPage(String after) {
+        return KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session ->
+            session.getProvider(JpaConnectionProvider.class).getEntityManager()
+                .createQuery("select distinct c.user.id from CredentialEntity c"
+                    + " where c.user.realmId = :realmId and c.type = :type and c.user.username like 'scoutnet|%'"
+                    + " and c.user.id > :after order by c.user.id", String.class)
+                .setParameter("realmId", realmId)
+                .setParameter("type", ScoutnetTokenCredentialProvider.CREDENTIAL_TYPE)
+                .setParameter("after", after != null ? after : "")
+                .setMaxResults(PAGE_SIZE)
+                .getResultList());
+    }
+
+    private void resyncUser(String userId) {
+        try (CorrelationContext.Scope correlation = CorrelationContext.begin()) {
+            try {
+                KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                    RealmModel realm = session.realms().getRealm(realmId);
+                    UserModel user = realm != null ? session.users().getUserById(realm, userId) : null;
+                    if (user == null) {
+                        skipped.increment();
+                        return;
+                    }
+                    session.getContext().setRealm(realm);
+                    Map<String, String> config = ScoutnetCookieAuthenticatorFactory.findRealmConfig(realm);
+                    long tokenRefreshAgeMillis = config != null ? ScoutnetCookieAuthenticatorFactory.getTokenRefreshAgeMillis(config) : 0;
+                    if (profileSync.refreshFromScoutnet(session, realm, user, tokenRefreshAgeMillis)) {
+                        succeeded.increment();
+                    } else {
+                        skipped.increment();
+                        log.debugf("[%s] Bulk resync skipped user %s: no usable Scoutnet token", correlation.id(), user.getUsername());
+                    }
+                });
+            } catch (RuntimeException e) {
+                failed.increment();
+                lastError = e.getClass().getSimpleName();
+                log.warnf("[%s] Bulk resync failed for user %s: %s", correlation.id(), userId, lastError);
+            }
+        }
+    }
+
+    private void saveCursor(String value) {
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            if (value != null) {
+                session.singleUseObjects().put(CURSOR_KEY_PREFIX + realmId, CURSOR_LIFESPAN_SECONDS, Map.of(NOTE_CURSOR, value));
+            } else {
+                session.singleUseObjects().remove(CURSOR_KEY_PREFIX + realmId);
+            }
+        });
+    }
+
+    /**
+     * The cursor a previous run in the realm left behind, or null.
+     */
+    public static String savedCursor(KeycloakSession session, RealmModel realm) {
+        Map<String, String> notes = session.singleUseObjects().get(CURSOR_KEY_PREFIX + realm.getId());
+        return notes != null ? notes.get(NOTE_CURSOR) : null;
+    }
+}
@@ -0,0 +1,140 @@
+package se.scouterna.keycloak.admin;
+
+import jakarta.ws.rs.BadRequestException;
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.DELETE;
+import jakarta.ws.rs.DefaultValue;
+import jakarta.ws.rs.ForbiddenException;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.HeaderParam;
+import jakarta.ws.rs.NotAuthorizedException;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import org.keycloak.models.AdminRoles;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.Constants;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.services.managers.AppAuthManager;
+import org.keycloak.services.managers.AuthenticationManager;
+import se.scouterna.keycloak.ScoutnetComponents;
+import se.scouterna.keycloak.ScoutnetGroupCatalogImporter;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Admin endpoints under {@code /realms/{realm}/scoutnet-admin}. Callers need a bearer token
+ * from the same realm with the realm-management {@code manage-users} role.
+ */
+public class ScoutnetAdminResource {
+
+    private final KeycloakSession session;
+    private final Map<String, BulkResyncJob> resyncJobs;
+    private final ScoutnetComponents components;
+
+    public ScoutnetAdminResource(KeycloakSession session, Map<String, BulkResyncJob> resyncJobs,
+                                 ScoutnetComponents components) {
+        this.session = session;
+        this.resyncJobs = resyncJobs;
+        this.components = components;
+    }
+
+    /**
+     * Starts a bulk resync of the realm's Scoutnet users, resuming a previous unfinished run
+     * unless {@code restart} is set. The concurrency is capped at the size of the shared
+     * background executor the job runs on.
+     */
+    @POST
+    @Path("resync")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response startResync(@QueryParam("concurrency") @DefaultValue("4") int concurrency,
+                                @QueryParam("rate") @DefaultValue("10") double maxUsersPerSecond,
+                                @QueryParam("restart") @DefaultValue("false") boolean restart) {
+        RealmModel realm = requireManageUsers();
+        if (concurrency < 1 || concurrency > BulkResyncJob.MAX_CONCURRENCY) {
+            throw new BadRequestException("concurrency must be between 1 and " + BulkResyncJob.MAX_CONCURRENCY);
+        }
+        BulkResyncJob job = new BulkResyncJob(session.getKeycloakSessionFactory(), components.backgroundExecutor(),
+            components.profileSync(), realm.getId(), restart ? null : BulkResyncJob.savedCursor(session, realm),
+            concurrency, maxUsersPerSecond);
+
+        BulkResyncJob current = resyncJobs.compute(realm.getId(),
+            (realmId, existing) -> existing != null && existing.isActive() ? existing : job);
+        if (current != job) {
+            return Response.status(Response.Status.CONFLICT).entity(current.status()).build();
+        }
+        job.start();
+        return Response.accepted(job.status()).build();
+    }
+
+    @GET
+    @Path("resync")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getResyncStatus() {
+        RealmModel realm = requireManageUsers();
+        BulkResyncJob job = resyncJobs.get(realm.getId());
+        if (job == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        return Response.ok(job.status()).build();
+    }
+
+    /**
+     * Stops the running resync after the users already in flight; a later start resumes from the last completed page.
+     */
+    @DELETE
+    @Path("resync")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response cancelResync() {
+        RealmModel realm = requireManageUsers();
+        BulkResyncJob job = resyncJobs.get(realm.getId());
+        if (job == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        job.cancel();
+        return Response.accepted(job.status()).build();
+    }
+
+    /**
+     * Creates or updates the scoutnet subgroups from a group catalog, sent as a JSON array or as CSV.
+     */
+    @POST
+    @Path("groups/import")
+    @Consumes({MediaType.APPLICATION_JSON, "text/csv"})
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response importGroupCatalog(@HeaderParam(HttpHeaders.CONTENT_TYPE) String contentType, String body) {
+        RealmModel realm = requireManageUsers();
+        List<ScoutnetGroupCatalogImporter.CatalogEntry> entries;
+        try {
+            entries = contentType != null && contentType.startsWith("text/csv")
+                ? ScoutnetGroupCatalogImporter.parseCsv(body)
+                : ScoutnetGroupCatalogImporter.parseJson(body);
+        } catch (IOException e) {
+            throw new BadRequestException("Invalid group catalog: " + e.getMessage());
+        }
+        return Response.ok(new ScoutnetGroupCatalogImporter(session.getKeycloakSessionFactory())
+            .importCatalog(realm.getId(), entries)).build();
+    }
+
+    private RealmModel requireManageUsers() {
+        AuthenticationManager.AuthResult auth = new AppAuthManager.BearerTokenAuthenticator(session).authenticate();
+        if (auth == null) {
+            throw new NotAuthorizedException("Bearer");
+        }
+        RealmModel realm = session.getContext().getRealm();
+        ClientModel realmManagement = realm.getClientByClientId(Constants.REALM_MANAGEMENT_CLIENT_ID);
+        RoleModel manageUsers = realmManagement != null ? realmManagement.getRole(AdminRoles.MANAGE_USERS) : null;
+        if (manageUsers == null || !auth.user().hasRole(manageUsers)) {
+            throw new ForbiddenException();
+        }
+        return realm;
+    }
+}
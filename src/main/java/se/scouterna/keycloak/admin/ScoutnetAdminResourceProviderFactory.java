@@ -0,0 +1,71 @@
+package se.scouterna.keycloak.admin;
+
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resource.RealmResourceProviderFactory;
+import se.scouterna.keycloak.ScoutnetComponents;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+public class ScoutnetAdminResourceProviderFactory implements RealmResourceProviderFactory {
+
+    private static final Logger log = Logger.getLogger(ScoutnetAdminResourceProviderFactory.class);
+    public static final String PROVIDER_ID = "scoutnet-admin";
+    private static final long RESYNC_SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+    // Latest resync job per realm on this node
+    private final Map<String, BulkResyncJob> resyncJobs = new ConcurrentHashMap<>();
+    private ScoutnetComponents components;
+
+    @Override
+    public RealmResourceProvider create(KeycloakSession session) {
+        ScoutnetAdminResource resource = new ScoutnetAdminResource(session, resyncJobs, components);
+        return new RealmResourceProvider() {
+            @Override
+            public Object getResource() {
+                return resource;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        components = ScoutnetComponents.acquire();
+    }
+
+    @Override
+    public void close() {
+        resyncJobs.values().forEach(BulkResyncJob::cancel);
+        // Users in flight finish first, and they use the HTTP client the last release closes
+        try {
+            for (BulkResyncJob job : resyncJobs.values()) {
+                if (!job.awaitTermination(RESYNC_SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    log.warnf("Scoutnet bulk resync did not stop within %d seconds", RESYNC_SHUTDOWN_TIMEOUT_SECONDS);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (components != null) {
+            components.release();
+        }
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+}
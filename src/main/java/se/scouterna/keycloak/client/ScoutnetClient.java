@@ -1,8 +1,12 @@
 package se.scouterna.keycloak.client;
 
-import com.fasterxml.jackson.databind.DeserializationFeature;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
 import org.jboss.logging.Logger;
+import org.keycloak.tracing.TracingProvider;
+import org.keycloak.tracing.TracingProviderUtil;
+import se.scouterna.keycloak.CorrelationContext;
+import se.scouterna.keycloak.ScoutnetMetrics;
 import se.scouterna.keycloak.client.dto.AuthResult;
 import se.scouterna.keycloak.client.dto.AuthResponse;
 import se.scouterna.keycloak.client.dto.ErrorResponse;
@@ -21,23 +25,114 @@ public class ScoutnetClient {
 
     private static final Logger log = Logger.getLogger(ScoutnetClient.class);
     private static final String SCOUTNET_BASE_URL = System.getenv().getOrDefault("SCOUTNET_BASE_URL", "https://scoutnet.se");
-    private static final String AUTH_URL = SCOUTNET_BASE_URL + "/api/authenticate";
-    private static final String REFRESH_TOKEN_URL = SCOUTNET_BASE_URL + "/api/refresh_token";
-    private static final String PROFILE_URL = SCOUTNET_BASE_URL + "/api/get/profile";
-    private static final String ROLES_URL = SCOUTNET_BASE_URL + "/api/get/user_roles";
     
-    // Shared HttpClient (HTTP/2 with multiplexing)
-    private static final HttpClient SHARED_HTTP_CLIENT = HttpClient.newBuilder()
-        .connectTimeout(Duration.ofSeconds(5))
-        .executor(java.util.concurrent.ForkJoinPool.commonPool())
-        .version(HttpClient.Version.HTTP_2)
-        .build();
+    // For clients created without one; the provider passes its own, closed on shutdown
+    private static final class DefaultHttpClient {
+        static final HttpClient INSTANCE = newHttpClient();
+    }
 
-    private static final ObjectMapper SHARED_OBJECT_MAPPER = new ObjectMapper()
-        .configure(DeserializationFeature.ACCEPT_EMPTY_ARRAY_AS_NULL_OBJECT, true);
+    private final HttpClient httpClient;
+    private final String authUrl;
+    private final String refreshTokenUrl;
+    private final String profileUrl;
+    private final String rolesUrl;
 
     public ScoutnetClient() {
-        // No instance variables needed - everything is static
+        this(SCOUTNET_BASE_URL);
+    }
+
+    public ScoutnetClient(HttpClient httpClient) {
+        this(httpClient, SCOUTNET_BASE_URL);
+    }
+
+    /**
+     * @param baseUrl Scoutnet API origin, e.g. a local mock server in load tests
+     */
+    public ScoutnetClient(String baseUrl) {
+        this(DefaultHttpClient.INSTANCE, baseUrl);
+    }
+
+    public ScoutnetClient(HttpClient httpClient, String baseUrl) {
+        this.httpClient = httpClient;
+        this.authUrl = baseUrl + "/api/authenticate";
+        this.refreshTokenUrl = baseUrl + "/api/refresh_token";
+        this.profileUrl = baseUrl + "/api/get/profile";
+        this.rolesUrl = baseUrl + "/api/get/user_roles";
+    }
+
+    /**
+     * Sends a request, as a client span of the current trace when there is one, and records its
+     * latency and status class and a {@link ScoutnetRequestEvent}. Background refreshes run outside any request trace and send untraced.
+     */
+    private HttpResponse<String> send(String endpoint, HttpRequest request) throws java.io.IOException, InterruptedException {
+        ScoutnetRequestEvent event = new ScoutnetRequestEvent();
+        event.begin();
+        long start = System.nanoTime();
+        String statusClass = "error";
+        HttpResponse<String> response = null;
+        try {
+            response = sendTraced(endpoint, request);
+            statusClass = ScoutnetMetrics.statusClass(response.statusCode());
+            return response;
+        } catch (java.net.http.HttpTimeoutException e) {
+            statusClass = "timeout";
+            throw e;
+        } catch (java.net.ConnectException e) {
+            statusClass = "connect_error";
+            throw e;
+        } finally {
+            ScoutnetMetrics.INSTANCE.clientRequest(endpoint, statusClass, System.nanoTime() - start);
+            event.end();
+            if (event.shouldCommit()) {
+                event.endpoint = endpoint;
+                event.status = response != null ? response.statusCode() : 0;
+                event.bytes = response != null && response.body() != null
+                    ? response.body().getBytes(java.nio.charset.StandardCharsets.UTF_8).length : 0;
+                event.commit();
+            }
+        }
+    }
+
+    private HttpResponse<String> sendTraced(String endpoint, HttpRequest request) throws java.io.IOException, InterruptedException {
+        if (!Span.current().getSpanContext().isValid()) {
+            return httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        }
+        TracingProvider tracing = TracingProviderUtil.getTracingProvider();
+        Span span = tracing.startSpan(tracing.getTracer(ScoutnetClient.class.getName())
+            .spanBuilder("Scoutnet " + endpoint)
+            .setSpanKind(SpanKind.CLIENT)
+            .setAttribute("http.request.method", request.method())
+            .setAttribute("url.path", request.uri().getPath()));
+        try {
+            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+            span.setAttribute("http.response.status_code", response.statusCode());
+            return response;
+        } catch (java.io.IOException | InterruptedException | RuntimeException e) {
+            tracing.error(e);
+            throw e;
+        } finally {
+            tracing.endSpan();
+        }
+    }
+
+    /**
+     * An HTTP/2 client with multiplexing, to be shared by every ScoutnetClient on the node.
+     */
+    public static HttpClient newHttpClient() {
+        return HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(5))
+            .executor(java.util.concurrent.ForkJoinPool.commonPool())
+            .version(HttpClient.Version.HTTP_2)
+            .build();
+    }
+
+    /**
+     * A request builder carrying the correlation ID, so Scoutnet-side logs can be matched to ours.
+     */
+    private static HttpRequest.Builder newRequest() {
+        HttpRequest.Builder builder = HttpRequest.newBuilder();
+        String correlationId = CorrelationContext.current();
+        return correlationId != null ? builder.header(CorrelationContext.HEADER, correlationId) : builder;
     }
 
     private String getErrorType(int statusCode) {
@@ -61,7 +156,7 @@ public class ScoutnetClient {
         }
         
         try {
-            ErrorResponse errorResponse = SHARED_OBJECT_MAPPER.readValue(responseBody, ErrorResponse.class);
+            ErrorResponse errorResponse = ScoutnetJson.ERROR_RESPONSE_READER.readValue(responseBody);
             return errorResponse.getSafeErrorMessage();
         } catch (Exception e) {
             // If we can't parse as ErrorResponse, return a safe truncated version
@@ -69,11 +164,11 @@ public class ScoutnetClient {
         }
     }
 
-    public AuthResult authenticate(String username, String password, String logUsername, String correlationId) {
-        return authenticate(username, password, logUsername, null, null, null, correlationId);
+    public AuthResult authenticate(String username, String password, String logUsername) {
+        return authenticate(username, password, logUsername, null, null, null);
     }
 
-    public AuthResult authenticate(String username, String password, String logUsername, String appId, String appName, String deviceName, String correlationId) {
+    public AuthResult authenticate(String username, String password, String logUsername, String appId, String appName, String deviceName) {
         try {
             Map<String, String> payload = new HashMap<>();
             payload.put("username", username);
@@ -82,26 +177,26 @@ public class ScoutnetClient {
             if (appName != null) payload.put("app_name", appName);
             if (deviceName != null) payload.put("device_name", deviceName);
 
-            String jsonPayload = SHARED_OBJECT_MAPPER.writeValueAsString(payload);
+            String jsonPayload = ScoutnetJson.WRITER.writeValueAsString(payload);
             
-            HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(AUTH_URL))
+            HttpRequest request = newRequest()
+                .uri(URI.create(authUrl))
                 .header("Content-Type", "application/json")
                 .header("Accept", "application/json")
                 .timeout(Duration.ofSeconds(10))
                 .POST(HttpRequest.BodyPublishers.ofString(jsonPayload))
                 .build();
 
-            HttpResponse<String> response = SHARED_HTTP_CLIENT.send(request, HttpResponse.BodyHandlers.ofString());
+            HttpResponse<String> response = send("authenticate", request);
             
             if (response.statusCode() == 200) {
-                AuthResponse authResponse = SHARED_OBJECT_MAPPER.readValue(response.body(), AuthResponse.class);
+                AuthResponse authResponse = ScoutnetJson.AUTH_RESPONSE_READER.readValue(response.body());
                 return AuthResult.success(authResponse);
             } else {
                 String errorType = getErrorType(response.statusCode());
                 String errorDetail = tryParseErrorResponse(response.body());
                 log.debugf("[%s] Scoutnet authentication failed for user %s. Status: %d, Error: %s, Detail: %s", 
-                    correlationId, logUsername, response.statusCode(), errorType, errorDetail);
+                    CorrelationContext.current(), logUsername, response.statusCode(), errorType, errorDetail);
                 
                 AuthResult.AuthError authError = switch (response.statusCode()) {
                     case 401, 403 -> AuthResult.AuthError.INVALID_CREDENTIALS;
@@ -110,13 +205,13 @@ public class ScoutnetClient {
                 return AuthResult.failure(authError);
             }
         } catch (java.net.http.HttpTimeoutException e) {
-            log.errorf("[%s] Scoutnet API timeout during authentication for user %s: %s", correlationId, logUsername, e.getMessage());
+            log.errorf("[%s] Scoutnet API timeout during authentication for user %s: %s", CorrelationContext.current(), logUsername, e.getMessage());
             return AuthResult.failure(AuthResult.AuthError.SERVICE_UNAVAILABLE);
         } catch (java.net.ConnectException e) {
-            log.errorf("[%s] Cannot connect to Scoutnet API for user %s: %s", correlationId, logUsername, e.getMessage());
+            log.errorf("[%s] Cannot connect to Scoutnet API for user %s: %s", CorrelationContext.current(), logUsername, e.getMessage());
             return AuthResult.failure(AuthResult.AuthError.SERVICE_UNAVAILABLE);
         } catch (Exception e) {
-            log.errorf("[%s] Unexpected error during Scoutnet authentication for user %s: %s", correlationId, logUsername, e.getClass().getSimpleName());
+            log.errorf("[%s] Unexpected error during Scoutnet authentication for user %s: %s", CorrelationContext.current(), logUsername, e.getClass().getSimpleName());
             return AuthResult.failure(AuthResult.AuthError.SERVICE_UNAVAILABLE);
         }
     }
@@ -127,14 +222,14 @@ public class ScoutnetClient {
      * @param token The bearer token from a successful authentication.
      * @return A Profile object, or null if the request fails.
      */
-    public Profile getProfile(String token, String correlationId) {
-        String profileJson = getProfileJson(token, correlationId);
+    public Profile getProfile(String token) {
+        String profileJson = getProfileJson(token);
         if (profileJson == null) return null;
         
         try {
-            return SHARED_OBJECT_MAPPER.readValue(profileJson, Profile.class);
+            return ScoutnetJson.PROFILE_READER.readValue(profileJson);
         } catch (Exception e) {
-            log.errorf("[%s] Failed to parse profile JSON: %s", correlationId, e.getClass().getSimpleName());
+            log.errorf("[%s] Failed to parse profile JSON: %s", CorrelationContext.current(), e.getClass().getSimpleName());
             return null;
         }
     }
@@ -142,35 +237,35 @@ public class ScoutnetClient {
     /**
      * Fetches the raw profile JSON for hashing purposes.
      */
-    public String getProfileJson(String token, String correlationId) {
+    public String getProfileJson(String token) {
         try {
-            HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(PROFILE_URL))
+            HttpRequest request = newRequest()
+                .uri(URI.create(profileUrl))
                 .header("Authorization", "Bearer " + token)
                 .header("Accept", "application/json")
                 .timeout(Duration.ofSeconds(10))
                 .GET()
                 .build();
 
-            HttpResponse<String> response = SHARED_HTTP_CLIENT.send(request, HttpResponse.BodyHandlers.ofString());
+            HttpResponse<String> response = send("get/profile", request);
             
             if (response.statusCode() != 200) {
                 String errorType = getErrorType(response.statusCode());
                 String errorDetail = tryParseErrorResponse(response.body());
                 log.warnf("[%s] Scoutnet profile fetch failed. Status: %d, Error: %s, Detail: %s", 
-                    correlationId, response.statusCode(), errorType, errorDetail);
+                    CorrelationContext.current(), response.statusCode(), errorType, errorDetail);
                 return null;
             }
             
             return response.body();
         } catch (java.net.http.HttpTimeoutException e) {
-            log.errorf("[%s] Scoutnet API timeout during profile fetch: %s", correlationId, e.getMessage());
+            log.errorf("[%s] Scoutnet API timeout during profile fetch: %s", CorrelationContext.current(), e.getMessage());
             return null;
         } catch (java.net.ConnectException e) {
-            log.errorf("[%s] Cannot connect to Scoutnet API for profile fetch: %s", correlationId, e.getMessage());
+            log.errorf("[%s] Cannot connect to Scoutnet API for profile fetch: %s", CorrelationContext.current(), e.getMessage());
             return null;
         } catch (Exception e) {
-            log.errorf("[%s] Unexpected error during Scoutnet profile fetch: %s", correlationId, e.getClass().getSimpleName());
+            log.errorf("[%s] Unexpected error during Scoutnet profile fetch: %s", CorrelationContext.current(), e.getClass().getSimpleName());
             return null;
         }
     }
@@ -179,14 +274,14 @@ public class ScoutnetClient {
      * Fetches the raw roles JSON structure from the API.
      * This structure will be parsed into a flattened list of roles later.
      */
-    public Roles getRoles(String token, String correlationId) {
-        String rolesJson = getRolesJson(token, correlationId);
+    public Roles getRoles(String token) {
+        String rolesJson = getRolesJson(token);
         if (rolesJson == null) return null;
         
         try {
-            return SHARED_OBJECT_MAPPER.readValue(rolesJson, Roles.class);
+            return ScoutnetJson.ROLES_READER.readValue(rolesJson);
         } catch (Exception e) {
-            log.errorf("[%s] Failed to parse roles JSON: %s", correlationId, e.getClass().getSimpleName());
+            log.errorf("[%s] Failed to parse roles JSON: %s", CorrelationContext.current(), e.getClass().getSimpleName());
             return null;
         }
     }
@@ -194,35 +289,35 @@ public class ScoutnetClient {
     /**
      * Fetches the raw roles JSON for hashing purposes.
      */
-    public String getRolesJson(String token, String correlationId) {
+    public String getRolesJson(String token) {
         try {
-            HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(ROLES_URL))
+            HttpRequest request = newRequest()
+                .uri(URI.create(rolesUrl))
                 .header("Authorization", "Bearer " + token)
                 .header("Accept", "application/json")
                 .timeout(Duration.ofSeconds(10))
                 .GET()
                 .build();
 
-            HttpResponse<String> response = SHARED_HTTP_CLIENT.send(request, HttpResponse.BodyHandlers.ofString());
+            HttpResponse<String> response = send("get/user_roles", request);
             
             if (response.statusCode() != 200) {
                 String errorType = getErrorType(response.statusCode());
                 String errorDetail = tryParseErrorResponse(response.body());
                 log.warnf("[%s] Scoutnet roles fetch failed. Status: %d, Error: %s, Detail: %s", 
-                    correlationId, response.statusCode(), errorType, errorDetail);
+                    CorrelationContext.current(), response.statusCode(), errorType, errorDetail);
                 return null;
             }
             
             return response.body();
         } catch (java.net.http.HttpTimeoutException e) {
-            log.errorf("[%s] Scoutnet API timeout during roles fetch: %s", correlationId, e.getMessage());
+            log.errorf("[%s] Scoutnet API timeout during roles fetch: %s", CorrelationContext.current(), e.getMessage());
             return null;
         } catch (java.net.ConnectException e) {
-            log.errorf("[%s] Cannot connect to Scoutnet API for roles fetch: %s", correlationId, e.getMessage());
+            log.errorf("[%s] Cannot connect to Scoutnet API for roles fetch: %s", CorrelationContext.current(), e.getMessage());
             return null;
         } catch (Exception e) {
-            log.errorf("[%s] Unexpected error during Scoutnet roles fetch: %s", correlationId, e.getClass().getSimpleName());
+            log.errorf("[%s] Unexpected error during Scoutnet roles fetch: %s", CorrelationContext.current(), e.getClass().getSimpleName());
             return null;
         }
     }
@@ -230,39 +325,46 @@ public class ScoutnetClient {
     /**
      * Refreshes a persistent Scoutnet token via /api/refresh_token.
      *
-     * @return The new token string, or null if refresh failed.
+     * @return The new token on success; INVALID_CREDENTIALS if Scoutnet rejected the token
+     *         (revoked or expired), SERVICE_UNAVAILABLE for any other failure.
      */
-    public String refreshToken(String currentToken, String correlationId) {
+    public AuthResult refreshToken(String currentToken) {
         try {
-            HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(REFRESH_TOKEN_URL))
+            HttpRequest request = newRequest()
+                .uri(URI.create(refreshTokenUrl))
                 .header("Authorization", "Bearer " + currentToken)
                 .header("Accept", "application/json")
                 .timeout(Duration.ofSeconds(10))
                 .POST(HttpRequest.BodyPublishers.noBody())
                 .build();
 
-            HttpResponse<String> response = SHARED_HTTP_CLIENT.send(request, HttpResponse.BodyHandlers.ofString());
+            HttpResponse<String> response = send("refresh_token", request);
 
             if (response.statusCode() != 200) {
                 String errorType = getErrorType(response.statusCode());
                 String errorDetail = tryParseErrorResponse(response.body());
                 log.warnf("[%s] Scoutnet token refresh failed. Status: %d, Error: %s, Detail: %s",
-                    correlationId, response.statusCode(), errorType, errorDetail);
-                return null;
+                    CorrelationContext.current(), response.statusCode(), errorType, errorDetail);
+                return AuthResult.failure(switch (response.statusCode()) {
+                    case 401, 403 -> AuthResult.AuthError.INVALID_CREDENTIALS;
+                    default -> AuthResult.AuthError.SERVICE_UNAVAILABLE;
+                });
             }
 
-            AuthResponse authResponse = SHARED_OBJECT_MAPPER.readValue(response.body(), AuthResponse.class);
-            return authResponse != null ? authResponse.getToken() : null;
+            AuthResponse authResponse = ScoutnetJson.AUTH_RESPONSE_READER.readValue(response.body());
+            if (authResponse == null || authResponse.getToken() == null || authResponse.getToken().isEmpty()) {
+                return AuthResult.failure(AuthResult.AuthError.SERVICE_UNAVAILABLE);
+            }
+            return AuthResult.success(authResponse);
         } catch (java.net.http.HttpTimeoutException e) {
-            log.errorf("[%s] Scoutnet API timeout during token refresh: %s", correlationId, e.getMessage());
-            return null;
+            log.errorf("[%s] Scoutnet API timeout during token refresh: %s", CorrelationContext.current(), e.getMessage());
+            return AuthResult.failure(AuthResult.AuthError.SERVICE_UNAVAILABLE);
         } catch (java.net.ConnectException e) {
-            log.errorf("[%s] Cannot connect to Scoutnet API for token refresh: %s", correlationId, e.getMessage());
-            return null;
+            log.errorf("[%s] Cannot connect to Scoutnet API for token refresh: %s", CorrelationContext.current(), e.getMessage());
+            return AuthResult.failure(AuthResult.AuthError.SERVICE_UNAVAILABLE);
         } catch (Exception e) {
-            log.errorf("[%s] Unexpected error during Scoutnet token refresh: %s", correlationId, e.getClass().getSimpleName());
-            return null;
+            log.errorf("[%s] Unexpected error during Scoutnet token refresh: %s", CorrelationContext.current(), e.getClass().getSimpleName());
+            return AuthResult.failure(AuthResult.AuthError.SERVICE_UNAVAILABLE);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,34 @@
+package se.scouterna.keycloak.client;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import se.scouterna.keycloak.client.dto.AuthResponse;
+import se.scouterna.keycloak.client.dto.ErrorResponse;
+import se.scouterna.keycloak.client.dto.Profile;
+import se.scouterna.keycloak.client.dto.Roles;
+
+/**
+ * The provider's single Jackson configuration. Readers and writers are immutable and
+ * thread-safe, so they are built once here and shared by the client, the profile sync,
+ * the credential provider and the protocol mapper.
+ */
+public final class ScoutnetJson {
+
+    // Scoutnet returns [] instead of {} for empty role maps
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+        .configure(DeserializationFeature.ACCEPT_EMPTY_ARRAY_AS_NULL_OBJECT, true);
+
+    public static final JsonFactory FACTORY = MAPPER.getFactory();
+    public static final ObjectReader TREE_READER = MAPPER.reader();
+    public static final ObjectReader PROFILE_READER = MAPPER.readerFor(Profile.class);
+    public static final ObjectReader ROLES_READER = MAPPER.readerFor(Roles.class);
+    public static final ObjectReader AUTH_RESPONSE_READER = MAPPER.readerFor(AuthResponse.class);
+    public static final ObjectReader ERROR_RESPONSE_READER = MAPPER.readerFor(ErrorResponse.class);
+    public static final ObjectWriter WRITER = MAPPER.writer();
+
+    private ScoutnetJson() {
+    }
+}
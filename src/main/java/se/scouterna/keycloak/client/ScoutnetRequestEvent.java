@@ -0,0 +1,35 @@
+package se.scouterna.keycloak.client;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event for one Scoutnet API call, so waits on Scoutnet line up with GC, lock and JDBC
+ * events in a recording. Disabled by default; enable with
+ * {@code -XX:StartFlightRecording:settings=...} or {@code jcmd <pid> JFR.configure}, see the README.
+ */
+@Name("se.scouterna.keycloak.ScoutnetRequest")
+@Label("Scoutnet Request")
+@Category("Scoutnet")
+@Description("A Scoutnet API call")
+@Enabled(false)
+@StackTrace(false)
+final class ScoutnetRequestEvent extends Event {
+
+    @Label("Endpoint")
+    String endpoint;
+
+    @Label("Status")
+    @Description("HTTP status code, 0 if no response arrived")
+    int status;
+
+    @Label("Response Size")
+    @DataAmount
+    long bytes;
+}
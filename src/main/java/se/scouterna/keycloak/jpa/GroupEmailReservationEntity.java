@@ -0,0 +1,68 @@
+package se.scouterna.keycloak.jpa;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.NamedQueries;
+import jakarta.persistence.NamedQuery;
+import jakarta.persistence.Table;
+import jakarta.persistence.UniqueConstraint;
+
+/**
+ * A group email address held by one user for one scoutnet subgroup.
+ * The unique constraint on (realm, email) is what makes allocation race-free.
+ */
+@Entity
+@Table(name = "SCOUTNET_GROUP_EMAIL",
+    uniqueConstraints = @UniqueConstraint(name = "UK_SCOUTNET_GROUP_EMAIL", columnNames = {"REALM_ID", "EMAIL"}),
+    indexes = @Index(name = "IDX_SCOUTNET_GROUP_EMAIL_USER", columnList = "REALM_ID, USER_ID, GROUP_ID"))
+@NamedQueries({
+    @NamedQuery(name = "scoutnetGroupEmailByUserAndGroup",
+        query = "select r from GroupEmailReservationEntity r"
+              + " where r.realmId = :realmId and r.userId = :userId and r.groupId = :groupId"),
+    @NamedQuery(name = "scoutnetGroupEmailsLike",
+        query = "select r.email from GroupEmailReservationEntity r"
+              + " where r.realmId = :realmId and r.email like :pattern escape '!'"),
+    @NamedQuery(name = "deleteScoutnetGroupEmailByUserAndGroup",
+        query = "delete from GroupEmailReservationEntity r"
+              + " where r.realmId = :realmId and r.userId = :userId and r.groupId = :groupId"),
+    @NamedQuery(name = "deleteScoutnetGroupEmailByUser",
+        query = "delete from GroupEmailReservationEntity r where r.realmId = :realmId and r.userId = :userId"),
+    @NamedQuery(name = "deleteScoutnetGroupEmailByRealm",
+        query = "delete from GroupEmailReservationEntity r where r.realmId = :realmId")
+})
+public class GroupEmailReservationEntity {
+
+    @Id
+    @Column(name = "ID", length = 36)
+    private String id;
+
+    @Column(name = "REALM_ID", length = 36, nullable = false)
+    private String realmId;
+
+    @Column(name = "EMAIL", length = 255, nullable = false)
+    private String email;
+
+    @Column(name = "USER_ID", length = 36, nullable = false)
+    private String userId;
+
+    @Column(name = "GROUP_ID", length = 36, nullable = false)
+    private String groupId;
+
+    @Column(name = "CREATED_TIMESTAMP", nullable = false)
+    private long createdTimestamp;
+
+    public String getId() { return id; }
+    public void setId(String id) { this.id = id; }
+    public String getRealmId() { return realmId; }
+    public void setRealmId(String realmId) { this.realmId = realmId; }
+    public String getEmail() { return email; }
+    public void setEmail(String email) { this.email = email; }
+    public String getUserId() { return userId; }
+    public void setUserId(String userId) { this.userId = userId; }
+    public String getGroupId() { return groupId; }
+    public void setGroupId(String groupId) { this.groupId = groupId; }
+    public long getCreatedTimestamp() { return createdTimestamp; }
+    public void setCreatedTimestamp(long createdTimestamp) { this.createdTimestamp = createdTimestamp; }
+}
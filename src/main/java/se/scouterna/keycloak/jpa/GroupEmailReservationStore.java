@@ -0,0 +1,202 @@
+package se.scouterna.keycloak.jpa;
+
+import jakarta.persistence.EntityExistsException;
+import jakarta.persistence.EntityManager;
+import org.jboss.logging.Logger;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import se.scouterna.keycloak.ScoutnetMetrics;
+
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Allocates unique group email addresses (firstlast@domain, firstlast1@domain, ...) from the
+ * SCOUTNET_GROUP_EMAIL table instead of searching user attributes once per candidate.
+ *
+ * A user keeps their reservation for as long as the base address is unchanged, so the common
+ * case is a single indexed lookup. A new reservation reads all taken candidates in one LIKE query
+ * and inserts the first free one in a separate transaction; the unique index on (realm, email)
+ * rejects a concurrent login that picked the same address, which then retries. Addresses handed
+ * out before the table existed were copied into it by the scoutnet-group-email-2 changeset.
+ *
+ * Releases run in a separate transaction as well, so the login's own transaction never writes to
+ * the table and cannot hold locks that a reservation then waits on. Both commit independently of
+ * the login: a reservation outlives a login that later fails, and stays with that user for the
+ * group until it is released, so the next login picks the same address up again.
+ */
+public class GroupEmailReservationStore {
+
+    private static final Logger log = Logger.getLogger(GroupEmailReservationStore.class);
+    private static final int MAX_ATTEMPTS = 5;
+
+    private final KeycloakSession session;
+
+    public GroupEmailReservationStore(KeycloakSession session) {
+        this.session = session;
+    }
+
+    /**
+     * Returns the user's group email for the given group, reserving a new one if needed.
+     *
+     * @param currentEmail the address the user currently holds in group_email_&lt;groupId&gt;, preferred
+     *                     when still free so addresses from before the reservation table stay stable
+     * @return the address, or null if none could be reserved; the caller skips the group's email
+     *         rather than failing the login
+     */
+    public String reserve(RealmModel realm, UserModel user, String groupId, String localPart, String domain,
+                          String currentEmail) {
+        GroupEmailReservationEntity existing = findReservation(entityManager(session), realm.getId(), user.getId(), groupId);
+        if (existing != null && isCandidate(existing.getEmail(), localPart, domain)) {
+            // Stored addresses are lower-cased; hand back the domain as configured on the group
+            String stored = existing.getEmail();
+            return stored.substring(0, stored.lastIndexOf('@') + 1) + domain;
+        }
+
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            try {
+                return KeycloakModelUtils.runJobInTransactionWithResult(session.getKeycloakSessionFactory(),
+                    jobSession -> allocate(jobSession, realm.getId(), user.getId(), groupId, localPart, domain, currentEmail));
+            } catch (RuntimeException e) {
+                if (!isConstraintViolation(e)) {
+                    log.warnf(e, "Could not reserve a group email for %s@%s, skipping it for user %s",
+                        localPart, domain, user.getUsername());
+                    return null;
+                }
+                // A concurrent login claimed the same address; re-read and try the next one
+                log.debugf("Group email reservation attempt %d for %s@%s lost a race", attempt, localPart, domain);
+                if (attempt < MAX_ATTEMPTS) {
+                    ScoutnetMetrics.INSTANCE.groupEmailRetry(realm.getName());
+                }
+            }
+        }
+        log.warnf("Could not reserve a group email for %s@%s after %d attempts, skipping it for user %s",
+            localPart, domain, MAX_ATTEMPTS, user.getUsername());
+        return null;
+    }
+
+    /**
+     * Releases the user's reservations for groups they left or whose domain was removed, all in one
+     * transaction. A failure is logged and leaves the reservations in place; they are released on a
+     * later login.
+     */
+    public void release(RealmModel realm, UserModel user, Collection<String> groupIds) {
+        if (groupIds.isEmpty()) return;
+        try {
+            KeycloakModelUtils.runJobInTransaction(session.getKeycloakSessionFactory(), jobSession -> {
+                EntityManager em = entityManager(jobSession);
+                for (String groupId : groupIds) {
+                    em.createNamedQuery("deleteScoutnetGroupEmailByUserAndGroup")
+                        .setParameter("realmId", realm.getId())
+                        .setParameter("userId", user.getId())
+                        .setParameter("groupId", groupId)
+                        .executeUpdate();
+                }
+            });
+        } catch (RuntimeException e) {
+            log.warnf(e, "Could not release the group emails of groups %s for user %s", groupIds, user.getUsername());
+        }
+    }
+
+    private String allocate(KeycloakSession jobSession, String realmId, String userId, String groupId,
+                            String localPart, String domain, String currentEmail) {
+        EntityManager em = entityManager(jobSession);
+        em.createNamedQuery("deleteScoutnetGroupEmailByUserAndGroup")
+            .setParameter("realmId", realmId)
+            .setParameter("userId", userId)
+            .setParameter("groupId", groupId)
+            .executeUpdate();
+
+        String base = localPart.toLowerCase(Locale.ROOT);
+        String suffix = "@" + domain.toLowerCase(Locale.ROOT);
+        List<String> takenList = em.createNamedQuery("scoutnetGroupEmailsLike", String.class)
+            .setParameter("realmId", realmId)
+            .setParameter("pattern", escapeLike(base) + "%" + escapeLike(suffix))
+            .getResultList();
+        Set<String> taken = new HashSet<>(takenList);
+
+        String preferred = currentEmail != null && isCandidate(currentEmail, localPart, domain) ? currentEmail : null;
+        int counter = 0;
+        while (true) {
+            String candidate;
+            if (preferred != null) {
+                candidate = preferred;
+                preferred = null;
+            } else {
+                candidate = counter == 0 ? localPart + "@" + domain : localPart + counter + "@" + domain;
+                counter++;
+            }
+            String key = candidate.toLowerCase(Locale.ROOT);
+            if (taken.contains(key)) continue;
+
+            persist(em, realmId, key, userId, groupId);
+            em.flush();
+            return candidate;
+        }
+    }
+
+    private static void persist(EntityManager em, String realmId, String email, String userId, String groupId) {
+        GroupEmailReservationEntity entity = new GroupEmailReservationEntity();
+        entity.setId(KeycloakModelUtils.generateId());
+        entity.setRealmId(realmId);
+        entity.setEmail(email);
+        entity.setUserId(userId);
+        entity.setGroupId(groupId);
+        entity.setCreatedTimestamp(System.currentTimeMillis());
+        em.persist(entity);
+    }
+
+    private static GroupEmailReservationEntity findReservation(EntityManager em, String realmId, String userId, String groupId) {
+        return em.createNamedQuery("scoutnetGroupEmailByUserAndGroup", GroupEmailReservationEntity.class)
+            .setParameter("realmId", realmId)
+            .setParameter("userId", userId)
+            .setParameter("groupId", groupId)
+            .getResultStream()
+            .findFirst()
+            .orElse(null);
+    }
+
+    /**
+     * Whether the address is localPart@domain or localPart&lt;n&gt;@domain.
+     */
+    static boolean isCandidate(String email, String localPart, String domain) {
+        String lowerEmail = email.toLowerCase(Locale.ROOT);
+        String base = localPart.toLowerCase(Locale.ROOT);
+        String suffix = "@" + domain.toLowerCase(Locale.ROOT);
+        if (!lowerEmail.startsWith(base) || !lowerEmail.endsWith(suffix)
+                || lowerEmail.length() < base.length() + suffix.length()) {
+            return false;
+        }
+        String digits = lowerEmail.substring(base.length(), lowerEmail.length() - suffix.length());
+        return digits.chars().allMatch(Character::isDigit);
+    }
+
+    /**
+     * Whether the failure is the unique key rejecting an address, as opposed to e.g. a database outage.
+     */
+    static boolean isConstraintViolation(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof EntityExistsException
+                    || cause instanceof org.hibernate.exception.ConstraintViolationException
+                    || cause instanceof SQLIntegrityConstraintViolationException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String escapeLike(String value) {
+        return value.replace("!", "!!").replace("%", "!%").replace("_", "!_");
+    }
+
+    private static EntityManager entityManager(KeycloakSession session) {
+        return session.getProvider(JpaConnectionProvider.class).getEntityManager();
+    }
+}
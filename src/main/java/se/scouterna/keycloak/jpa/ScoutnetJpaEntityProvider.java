@@ -0,0 +1,27 @@
+package se.scouterna.keycloak.jpa;
+
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProvider;
+
+import java.util.List;
+
+public class ScoutnetJpaEntityProvider implements JpaEntityProvider {
+
+    @Override
+    public List<Class<?>> getEntities() {
+        return List.of(GroupEmailReservationEntity.class);
+    }
+
+    @Override
+    public String getChangelogLocation() {
+        return "META-INF/scoutnet-changelog.xml";
+    }
+
+    @Override
+    public String getFactoryId() {
+        return ScoutnetJpaEntityProviderFactory.PROVIDER_ID;
+    }
+
+    @Override
+    public void close() {
+    }
+}
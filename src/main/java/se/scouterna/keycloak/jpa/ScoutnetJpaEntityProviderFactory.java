@@ -0,0 +1,53 @@
+package se.scouterna.keycloak.jpa;
+
+import org.keycloak.Config;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProvider;
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+public class ScoutnetJpaEntityProviderFactory implements JpaEntityProviderFactory {
+
+    public static final String PROVIDER_ID = "scoutnet-entity-provider";
+    private static final ScoutnetJpaEntityProvider SINGLETON = new ScoutnetJpaEntityProvider();
+
+    @Override
+    public JpaEntityProvider create(KeycloakSession session) {
+        return SINGLETON;
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        // Release reservations of removed users/realms so their addresses can be handed out again
+        factory.register(event -> {
+            if (event instanceof UserModel.UserRemovedEvent removed) {
+                removed.getKeycloakSession().getProvider(JpaConnectionProvider.class).getEntityManager()
+                    .createNamedQuery("deleteScoutnetGroupEmailByUser")
+                    .setParameter("realmId", removed.getRealm().getId())
+                    .setParameter("userId", removed.getUser().getId())
+                    .executeUpdate();
+            } else if (event instanceof RealmModel.RealmRemovedEvent removed) {
+                removed.getKeycloakSession().getProvider(JpaConnectionProvider.class).getEntityManager()
+                    .createNamedQuery("deleteScoutnetGroupEmailByRealm")
+                    .setParameter("realmId", removed.getRealm().getId())
+                    .executeUpdate();
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+}
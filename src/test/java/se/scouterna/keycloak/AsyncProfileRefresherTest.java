@@ -0,0 +1,138 @@
+package se.scouterna.keycloak;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.UserModel;
+import se.scouterna.keycloak.testkit.InMemoryKeycloak;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AsyncProfileRefresherTest {
+
+    private final InMemoryKeycloak keycloak = new InMemoryKeycloak("async");
+    private final List<String> refreshed = new CopyOnWriteArrayList<>();
+    private AsyncProfileRefresher refresher = new AsyncProfileRefresher(1);
+
+    @AfterEach
+    void close() {
+        refresher.close();
+    }
+
+    @Test
+    void runsAfterCommitInItsOwnSessionAndCorrelation() throws Exception {
+        KeycloakSession session = keycloak.newSession();
+        UserModel user = session.users().addUser(keycloak.realm(), "anna");
+        CountDownLatch done = new CountDownLatch(1);
+        String[] seen = new String[2];
+
+        try (CorrelationContext.Scope scope = CorrelationContext.open("c0ffee01")) {
+            assertTrue(refresher.scheduleAfterCommit(session, keycloak.realm(), user, (jobSession, realm, jobUser) -> {
+                seen[0] = jobSession != session ? jobUser.getId() : null;
+                seen[1] = CorrelationContext.current();
+                done.countDown();
+                return true;
+            }));
+        }
+        assertFalse(done.await(50, TimeUnit.MILLISECONDS), "nothing runs before the request commits");
+
+        session.getTransactionManager().commit();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(user.getId(), seen[0]);
+        assertEquals("c0ffee01", seen[1], "runs under the scheduling request's correlation ID");
+        awaitIdle(user);
+    }
+
+    @Test
+    void onePerUserInFlight() throws Exception {
+        KeycloakSession session = keycloak.newSession();
+        UserModel user = session.users().addUser(keycloak.realm(), "anna");
+        CountDownLatch release = new CountDownLatch(1);
+
+        assertTrue(schedule(session, user, "1", blockingJob(release)));
+        assertFalse(schedule(session, user, "2", recordingJob()));
+        session.getTransactionManager().commit();
+        release.countDown();
+        awaitIdle(user);
+
+        KeycloakSession next = keycloak.newSession();
+        assertTrue(schedule(next, user, "3", recordingJob()));
+        next.getTransactionManager().commit();
+        awaitIdle(user);
+        assertEquals(List.of("1", "3"), refreshed);
+    }
+
+    @Test
+    void rollbackDropsTheRefresh() throws Exception {
+        KeycloakSession session = keycloak.newSession();
+        UserModel user = session.users().addUser(keycloak.realm(), "anna");
+
+        assertTrue(schedule(session, user, "1", recordingJob()));
+        session.getTransactionManager().rollback();
+
+        assertFalse(refresher.isInFlight(user.getId()));
+        refresher.close();
+        assertEquals(List.of(), refreshed);
+    }
+
+    @Test
+    void fullQueueDropsTheRefresh() throws Exception {
+        refresher.close();
+        refresher = new AsyncProfileRefresher(1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        KeycloakSession session = keycloak.newSession();
+        UserModel running = session.users().addUser(keycloak.realm(), "running");
+        UserModel queued = session.users().addUser(keycloak.realm(), "queued");
+        UserModel dropped = session.users().addUser(keycloak.realm(), "dropped");
+
+        schedule(session, running, "running", blockingJob(release));
+        schedule(session, queued, "queued", recordingJob());
+        schedule(session, dropped, "dropped", recordingJob());
+        session.getTransactionManager().commit();
+
+        assertFalse(refresher.isInFlight(dropped.getId()), "a rejected refresh can be scheduled again");
+        release.countDown();
+        awaitIdle(running);
+        awaitIdle(queued);
+        assertEquals(List.of("running", "queued"), refreshed);
+    }
+
+    /**
+     * Schedules the job under the given correlation ID, which the recording jobs add to {@code refreshed}.
+     */
+    private boolean schedule(KeycloakSession session, UserModel user, String correlationId,
+                             AsyncProfileRefresher.RefreshJob job) {
+        try (CorrelationContext.Scope scope = CorrelationContext.open(correlationId)) {
+            return refresher.scheduleAfterCommit(session, keycloak.realm(), user, job);
+        }
+    }
+
+    private AsyncProfileRefresher.RefreshJob recordingJob() {
+        return (session, realm, user) -> refreshed.add(CorrelationContext.current());
+    }
+
+    private AsyncProfileRefresher.RefreshJob blockingJob(CountDownLatch release) {
+        return (session, realm, user) -> {
+            try {
+                assertTrue(release.await(5, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return refreshed.add(CorrelationContext.current());
+        };
+    }
+
+    private void awaitIdle(UserModel user) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (refresher.isInFlight(user.getId())) {
+            assertTrue(System.nanoTime() < deadline, "refresh still in flight");
+            Thread.sleep(5);
+        }
+    }
+}
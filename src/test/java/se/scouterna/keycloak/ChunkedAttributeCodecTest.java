@@ -0,0 +1,43 @@
+package se.scouterna.keycloak;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChunkedAttributeCodecTest {
+
+    @Test
+    void roundTrip_smallValue() {
+        String value = "{\"groups\":{\"999\":{\"name\":\"Mälarscouterna\"}}}";
+        assertEquals(value, ChunkedAttributeCodec.decode(ChunkedAttributeCodec.encode(value)));
+    }
+
+    @Test
+    void roundTrip_largeValue_splitIntoBoundedChunks() {
+        StringBuilder json = new StringBuilder("{\"organisations\":{");
+        for (int i = 0; i < 5000; i++) {
+            if (i > 0) json.append(',');
+            // Vary the content so it doesn't compress into a single chunk
+            json.append('"').append(i).append("\":{\"roles\":[{\"id\":").append(i * 7919 % 10007)
+                .append(",\"key\":\"role_").append(Integer.toHexString(i * 31337)).append("\"}]}");
+        }
+        String value = json.append("}}").toString();
+
+        List<String> chunks = ChunkedAttributeCodec.encode(value);
+
+        assertTrue(chunks.size() > 1, "payload should need more than one chunk");
+        chunks.forEach(chunk -> assertTrue(chunk.length() <= ChunkedAttributeCodec.MAX_VALUE_LENGTH));
+        assertEquals(value, ChunkedAttributeCodec.decode(chunks));
+    }
+
+    @Test
+    void decode_truncatedChunks_fails() {
+        String value = "x".repeat(10_000) + "y".repeat(10_000);
+        List<String> chunks = ChunkedAttributeCodec.encode(value);
+        String truncated = chunks.get(0).substring(0, chunks.get(0).length() / 2);
+
+        assertThrows(IllegalArgumentException.class, () -> ChunkedAttributeCodec.decode(List.of(truncated)));
+    }
+}
@@ -0,0 +1,76 @@
+package se.scouterna.keycloak;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClaimCacheTest {
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private JsonNode load() {
+        loads.incrementAndGet();
+        return JsonNodeFactory.instance.objectNode().put("loaded", loads.get());
+    }
+
+    @Test
+    void sameHash_loadsOnce() {
+        ClaimCache cache = new ClaimCache(10);
+
+        JsonNode first = cache.get("user-1", "memberships", "hash-a", this::load);
+        JsonNode second = cache.get("user-1", "memberships", "hash-a", this::load);
+
+        assertSame(first, second);
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void changedHash_reloads() {
+        ClaimCache cache = new ClaimCache(10);
+
+        cache.get("user-1", "memberships", "hash-a", this::load);
+        cache.get("user-1", "memberships", "hash-b", this::load);
+
+        assertEquals(2, loads.get());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    void attributesAreCachedSeparately() {
+        ClaimCache cache = new ClaimCache(10);
+
+        cache.get("user-1", "memberships", "hash-a", this::load);
+        cache.get("user-1", "group_emails_json", "hash-a", this::load);
+
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    void missingHash_notCached() {
+        ClaimCache cache = new ClaimCache(10);
+
+        cache.get("user-1", "memberships", null, this::load);
+        cache.get("user-1", "memberships", null, this::load);
+
+        assertEquals(2, loads.get());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void boundedSize_evictsLeastRecentlyUsed() {
+        ClaimCache cache = new ClaimCache(2);
+
+        cache.get("user-1", "memberships", "h", this::load);
+        cache.get("user-2", "memberships", "h", this::load);
+        cache.get("user-1", "memberships", "h", this::load);
+        cache.get("user-3", "memberships", "h", this::load);
+        cache.get("user-1", "memberships", "h", this::load);
+
+        assertEquals(2, cache.size());
+        assertEquals(3, loads.get(), "user-1 should survive eviction as most recently used");
+    }
+}
@@ -0,0 +1,53 @@
+package se.scouterna.keycloak;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CorrelationContextTest {
+
+    @Test
+    void newId_eightHexDigits() {
+        String id = CorrelationContext.newId();
+        assertTrue(id.matches("[0-9a-f]{8}"), id);
+        assertNotEquals(id, CorrelationContext.newId());
+    }
+
+    @Test
+    void scope_restoresPreviousId() {
+        assertNull(CorrelationContext.current());
+        try (CorrelationContext.Scope outer = CorrelationContext.begin()) {
+            assertEquals(outer.id(), CorrelationContext.current());
+            try (CorrelationContext.Scope inner = CorrelationContext.open("job")) {
+                assertEquals("job", CorrelationContext.current());
+            }
+            assertEquals(outer.id(), CorrelationContext.current());
+        }
+        assertNull(CorrelationContext.current());
+    }
+
+    @Test
+    void propagate_runsTaskUnderCapturedId() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            AtomicReference<String> seen = new AtomicReference<>();
+            Runnable task;
+            String id;
+            try (CorrelationContext.Scope scope = CorrelationContext.begin()) {
+                id = scope.id();
+                task = CorrelationContext.propagate(() -> seen.set(CorrelationContext.current()));
+            }
+
+            executor.submit(task).get();
+            assertEquals(id, seen.get());
+            executor.submit(() -> seen.set(CorrelationContext.current())).get();
+            assertNull(seen.get(), "the worker's MDC is cleared after the task");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package se.scouterna.keycloak;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FailedLoginCacheTest {
+
+    private final AtomicLong now = new AtomicLong(1_700_000_000_000L);
+    private final FailedLoginCache cache = new FailedLoginCache(100, now::get);
+
+    @Test
+    void identicalFailedAttemptIsShortCircuited() {
+        cache.recordFailure("user@example.com", "wrong");
+
+        assertEquals(FailedLoginCache.Decision.KNOWN_FAILURE, cache.check("user@example.com", "wrong"));
+        assertEquals(FailedLoginCache.Decision.KNOWN_FAILURE, cache.check(" USER@example.com", "wrong"));
+        assertEquals(FailedLoginCache.Decision.ALLOW, cache.check("user@example.com", "other"));
+    }
+
+    @Test
+    void failedAttemptExpires() {
+        cache.recordFailure("user@example.com", "wrong");
+        now.addAndGet(FailedLoginCache.ATTEMPT_TTL_MILLIS);
+
+        assertEquals(FailedLoginCache.Decision.ALLOW, cache.check("user@example.com", "wrong"));
+    }
+
+    @Test
+    void throttlesAfterFreeFailures() {
+        for (int i = 0; i < FailedLoginCache.FREE_FAILURES; i++) {
+            assertEquals(FailedLoginCache.Decision.ALLOW, cache.check("user@example.com", "wrong" + i));
+            cache.recordFailure("user@example.com", "wrong" + i);
+        }
+
+        assertEquals(FailedLoginCache.Decision.THROTTLED, cache.check("user@example.com", "correct"));
+        now.addAndGet(FailedLoginCache.delayMillis(FailedLoginCache.FREE_FAILURES));
+        assertEquals(FailedLoginCache.Decision.ALLOW, cache.check("user@example.com", "correct"));
+    }
+
+    @Test
+    void successResetsUsernameThrottle() {
+        for (int i = 0; i < FailedLoginCache.FREE_FAILURES; i++) {
+            cache.recordFailure("user@example.com", "wrong" + i);
+        }
+        cache.recordSuccess("user@example.com");
+
+        assertEquals(FailedLoginCache.Decision.ALLOW, cache.check("user@example.com", "correct"));
+    }
+
+    @Test
+    void delayGrowsAndIsCapped() {
+        assertEquals(0, FailedLoginCache.delayMillis(FailedLoginCache.FREE_FAILURES - 1));
+        assertEquals(1000, FailedLoginCache.delayMillis(FailedLoginCache.FREE_FAILURES));
+        assertEquals(2000, FailedLoginCache.delayMillis(FailedLoginCache.FREE_FAILURES + 1));
+        assertEquals(FailedLoginCache.MAX_DELAY_MILLIS, FailedLoginCache.delayMillis(100));
+    }
+
+    @Test
+    void isBoundedBySize() {
+        FailedLoginCache small = new FailedLoginCache(2, now::get);
+        small.recordFailure("a", "x");
+        small.recordFailure("b", "x");
+        small.recordFailure("c", "x");
+
+        assertEquals(FailedLoginCache.Decision.ALLOW, small.check("a", "x"));
+        assertEquals(FailedLoginCache.Decision.KNOWN_FAILURE, small.check("c", "x"));
+    }
+}
@@ -0,0 +1,134 @@
+package se.scouterna.keycloak;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.SingleUseObjectProvider;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FetchResultCacheTest {
+
+    private final Map<String, Map<String, String>> shared = new HashMap<>();
+    private final KeycloakSession session = sessionWith(shared);
+
+    @Test
+    void missThenLocalHit() {
+        FetchResultCache cache = new FetchResultCache(10, 300);
+        assertNull(cache.get(session, "3000001"));
+
+        ScoutnetProfileSync.FetchResult result = result(3000001);
+        cache.put(session, "3000001", result);
+
+        assertSame(result, cache.get(session, "3000001"));
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    void sharedEntryIsParsedOnAnotherNode() {
+        new FetchResultCache(10, 300).put(session, "3000001", result(3000001));
+
+        FetchResultCache otherNode = new FetchResultCache(10, 300);
+        ScoutnetProfileSync.FetchResult fromShared = otherNode.get(session, "3000001");
+
+        assertNotNull(fromShared);
+        assertEquals(3000001, fromShared.getProfile().getMemberNo());
+        assertEquals(1, otherNode.getSharedHitCount());
+        assertSame(fromShared, otherNode.get(session, "3000001"));
+        assertEquals(1, otherNode.getHitCount());
+    }
+
+    @Test
+    void expiredSharedEntryDropsLocalEntry() {
+        FetchResultCache cache = new FetchResultCache(10, 300);
+        cache.put(session, "3000001", result(3000001));
+        shared.clear();
+
+        assertNull(cache.get(session, "3000001"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void sharedTierHoldsAtMostMaxEntriesResults() {
+        FetchResultCache cache = new FetchResultCache(1, 300);
+        cache.put(session, "3000001", result(3000001));
+        cache.put(session, "3000002", result(3000002));
+
+        assertEquals(1, shared.size());
+        FetchResultCache otherNode = new FetchResultCache(1, 300);
+        assertNull(otherNode.get(session, "3000001"));
+        assertNotNull(otherNode.get(session, "3000002"));
+    }
+
+    @Test
+    void resultForAnotherMemberIsNotCached() {
+        FetchResultCache cache = new FetchResultCache(10, 300);
+        cache.put(session, "3000001", result(3000002));
+
+        assertTrue(shared.isEmpty());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void evictsLeastRecentlyUsed() {
+        FetchResultCache cache = new FetchResultCache(2, 300);
+        cache.put(session, "3000001", result(3000001));
+        cache.put(session, "3000002", result(3000002));
+        cache.put(session, "3000003", result(3000003));
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    private static ScoutnetProfileSync.FetchResult result(int memberNo) {
+        String profileJson = "{\"member_no\":" + memberNo + ",\"first_name\":\"Test\"}";
+        return ScoutnetProfileSync.parseFetchResult(profileJson, null);
+    }
+
+    private static KeycloakSession sessionWith(Map<String, Map<String, String>> shared) {
+        SingleUseObjectProvider singleUseObjects = new SingleUseObjectProvider() {
+            @Override
+            public void put(String key, long lifespanSeconds, Map<String, String> notes) {
+                shared.put(key, notes);
+            }
+
+            @Override
+            public Map<String, String> get(String key) {
+                return shared.get(key);
+            }
+
+            @Override
+            public Map<String, String> remove(String key) {
+                return shared.remove(key);
+            }
+
+            @Override
+            public boolean replace(String key, Map<String, String> notes) {
+                return shared.replace(key, notes) != null;
+            }
+
+            @Override
+            public boolean putIfAbsent(String key, long lifespanInSeconds) {
+                return shared.putIfAbsent(key, Map.of()) == null;
+            }
+
+            @Override
+            public boolean contains(String key) {
+                return shared.containsKey(key);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        return (KeycloakSession) Proxy.newProxyInstance(KeycloakSession.class.getClassLoader(),
+            new Class<?>[] {KeycloakSession.class}, (proxy, method, args) -> {
+                if (method.getName().equals("singleUseObjects")) return singleUseObjects;
+                throw new UnsupportedOperationException(method.getName());
+            });
+    }
+}
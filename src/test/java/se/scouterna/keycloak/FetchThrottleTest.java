@@ -0,0 +1,43 @@
+package se.scouterna.keycloak;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.UserModel;
+import se.scouterna.keycloak.testkit.InMemoryKeycloak;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FetchThrottleTest {
+
+    private final InMemoryKeycloak keycloak = new InMemoryKeycloak("throttle");
+    private final KeycloakSession session = keycloak.newSession();
+    private final UserModel user = session.users().addUser(keycloak.realm(), "anna");
+
+    @Test
+    void unknownUntilRecorded() {
+        assertNull(FetchThrottle.getLastFetch(session, user));
+    }
+
+    @Test
+    void readsFromTheCache() {
+        FetchThrottle.recordFetch(session, user, 1_000L);
+
+        assertEquals("1000", FetchThrottle.getLastFetch(keycloak.newSession(), user));
+        assertNull(user.getFirstAttribute(FetchThrottle.LAST_FETCH_ATTRIBUTE));
+    }
+
+    @Test
+    void legacyAttribute_fallbackUntilFirstRecordedFetch() {
+        user.setSingleAttribute(FetchThrottle.LAST_FETCH_ATTRIBUTE, "500");
+        assertEquals("500", FetchThrottle.getLastFetch(session, user));
+
+        FetchThrottle.recordFetch(session, user, 2_000L);
+
+        assertEquals("2000", FetchThrottle.getLastFetch(session, user));
+        assertNull(user.getFirstAttribute(FetchThrottle.LAST_FETCH_ATTRIBUTE), "the legacy attribute is removed");
+
+        // After losing the cache entry the user is simply due for a fetch
+        session.singleUseObjects().remove(FetchThrottle.KEY_PREFIX + user.getId());
+        assertNull(FetchThrottle.getLastFetch(session, user));
+    }
+}
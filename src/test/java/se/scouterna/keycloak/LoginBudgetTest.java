@@ -0,0 +1,161 @@
+package se.scouterna.keycloak;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.UserModel;
+import se.scouterna.keycloak.client.ScoutnetClient;
+import se.scouterna.keycloak.testkit.AllocationMeter;
+import se.scouterna.keycloak.testkit.InMemoryKeycloak;
+import se.scouterna.keycloak.testkit.MockScoutnetServer;
+import se.scouterna.keycloak.testkit.ModelCallCounter;
+import se.scouterna.keycloak.testkit.ModelCallCounter.Counts;
+import se.scouterna.keycloak.testkit.ModelCallCounter.Kind;
+import se.scouterna.keycloak.testkit.ScoutnetCorpus;
+import se.scouterna.keycloak.testkit.ScoutnetCorpus.IntDistribution;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Model-call and allocation budgets for the login path, so a refactor that adds lookups,
+ * writes or group scans to a login fails here. Counts come from {@link InMemoryKeycloak};
+ * allocations are the bytes the test thread allocates per login, fakes included, and only
+ * checked on JVMs that report them.
+ *
+ * When a change legitimately needs more, raise the budget in the same commit and say why.
+ */
+class LoginBudgetTest {
+
+    /**
+     * Upper bounds per {@link Kind} for one measured call.
+     */
+    private record Budget(long reads, long writes, long streamScans, long attributeSearches, long queries) {
+    }
+
+    private static final String FIXTURES = "/fixtures/buildMembershipsJson/";
+    private static final AtomicInteger MEMBER_NUMBERS = new AtomicInteger(3_100_000);
+
+    private static MockScoutnetServer scoutnet;
+    private static ScoutnetClient client;
+
+    private final InMemoryKeycloak keycloak = new InMemoryKeycloak("budget");
+    private final ScoutnetProfileSync profileSync = new ScoutnetProfileSync(client, new ScoutnetGroupManager());
+
+    @BeforeAll
+    static void startScoutnet() throws Exception {
+        // Budgets depend on the profile shape: three groups with a role each, no troops
+        ScoutnetCorpus corpus = new ScoutnetCorpus(1, new ScoutnetCorpus.Shape(IntDistribution.fixed(3),
+            IntDistribution.fixed(1), IntDistribution.fixed(0), 0, 0, IntDistribution.fixed(12), 0.3, 50));
+        scoutnet = new MockScoutnetServer(corpus::responses, MockScoutnetServer.Behaviour.healthy());
+        client = new ScoutnetClient(scoutnet.baseUrl());
+    }
+
+    @AfterAll
+    static void stopScoutnet() {
+        scoutnet.close();
+    }
+
+    @Test
+    void syncUserProfile_firstSync() throws Exception {
+        ScoutnetProfileSync.FetchResult fixture = fixture();
+        KeycloakSession session = keycloak.newSession();
+        UserModel user = session.users().addUser(keycloak.realm(), "scoutnet|" + fixture.getProfile().getMemberNo());
+
+        Counts counts = ModelCallCounter.count(() ->
+            profileSync.syncUserProfile(session, keycloak.realm(), user, fixture));
+
+        // Four groups from the fixture: a subgroup lookup each, plus finding the parent group
+        assertWithin(counts, new Budget(80, 50, 8, 0, 3));
+    }
+
+    @Test
+    void syncUserProfile_unchangedProfile() throws Exception {
+        ScoutnetProfileSync.FetchResult fixture = fixture();
+        KeycloakSession session = keycloak.newSession();
+        UserModel user = session.users().addUser(keycloak.realm(), "scoutnet|" + fixture.getProfile().getMemberNo());
+        profileSync.syncUserProfile(session, keycloak.realm(), user, fixture);
+
+        Counts counts = ModelCallCounter.count(() ->
+            profileSync.syncUserProfile(keycloak.newSession(), keycloak.realm(), user, fixture));
+
+        // One realm name read tags the section metrics
+        assertWithin(counts, new Budget(31, 0, 1, 0, 0));
+        assertAllocatesAtMost(32 * 1024, () ->
+            profileSync.syncUserProfile(session, keycloak.realm(), user, fixture));
+    }
+
+    @Test
+    void syncUserGroups_firstSync() throws Exception {
+        ScoutnetProfileSync.FetchResult fixture = fixture();
+        KeycloakSession session = keycloak.newSession();
+        UserModel user = session.users().addUser(keycloak.realm(), "scoutnet|" + fixture.getProfile().getMemberNo());
+
+        Counts counts = ModelCallCounter.count(() -> new ScoutnetGroupManager().syncUserGroups(
+            session, keycloak.realm(), user, fixture.getProfile(), fixture.getRoles()));
+
+        assertWithin(counts, new Budget(30, 24, 7, 0, 0));
+    }
+
+    @Test
+    void cookieLogin_unchangedProfile() {
+        LoginDriver driver = new LoginDriver(keycloak, client, 0);
+        int memberNo = MEMBER_NUMBERS.incrementAndGet();
+        assertEquals("success", driver.passwordLogin(String.valueOf(memberNo), "secret"));
+        UserModel user = keycloak.getUserByUsername("scoutnet|" + memberNo);
+
+        ModelCallCounter.Measured<String> login = ModelCallCounter.count(() -> driver.cookieLogin(user));
+
+        assertEquals("success", login.result());
+        // The writes are the fetch throttle timestamp and the token's last-used mark
+        assertWithin(login.counts(), new Budget(56, 2, 3, 0, 0));
+        assertAllocatesAtMost(40 * 1024, () -> driver.cookieLogin(user));
+    }
+
+    @Test
+    void passwordLogin_returningMember() {
+        LoginDriver driver = new LoginDriver(keycloak, client, 0);
+        int memberNo = MEMBER_NUMBERS.incrementAndGet();
+        assertEquals("success", driver.passwordLogin(String.valueOf(memberNo), "secret"));
+
+        ModelCallCounter.Measured<String> login = ModelCallCounter.count(() ->
+            driver.passwordLogin(String.valueOf(memberNo), "secret"));
+
+        assertEquals("success", login.result());
+        // The writes are the stored token and the per-request session caches
+        assertWithin(login.counts(), new Budget(52, 3, 3, 0, 0));
+        // Includes the Scoutnet authenticate round trip through the HTTP client
+        assertAllocatesAtMost(100 * 1024, () -> driver.passwordLogin(String.valueOf(memberNo), "secret"));
+    }
+
+    private static void assertWithin(Counts counts, Budget budget) {
+        assertAll(
+            () -> assertTrue(counts.get(Kind.READ) <= budget.reads(), () -> "Reads over budget: " + counts),
+            () -> assertTrue(counts.get(Kind.WRITE) <= budget.writes(), () -> "Writes over budget: " + counts),
+            () -> assertTrue(counts.get(Kind.STREAM_SCAN) <= budget.streamScans(), () -> "Stream scans over budget: " + counts),
+            () -> assertTrue(counts.get(Kind.ATTRIBUTE_SEARCH) <= budget.attributeSearches(),
+                () -> "Attribute searches over budget: " + counts),
+            () -> assertTrue(counts.get(Kind.QUERY) <= budget.queries(), () -> "Queries over budget: " + counts));
+    }
+
+    private static void assertAllocatesAtMost(long maxBytes, Runnable login) {
+        if (!AllocationMeter.isSupported()) return;
+        long bytes = AllocationMeter.minBytes(20, 10, login);
+        assertTrue(bytes <= maxBytes, () -> "Allocated " + bytes + " bytes, budget " + maxBytes);
+    }
+
+    private ScoutnetProfileSync.FetchResult fixture() throws Exception {
+        return ScoutnetProfileSync.parseFetchResult(read("profile_input.json"), read("roles_input.json"));
+    }
+
+    private String read(String name) throws Exception {
+        try (InputStream in = getClass().getResourceAsStream(FIXTURES + name)) {
+            assertNotNull(in, "Missing fixture: " + name);
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
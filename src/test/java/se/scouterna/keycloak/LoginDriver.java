@@ -0,0 +1,157 @@
+package se.scouterna.keycloak;
+
+import jakarta.ws.rs.core.MultivaluedHashMap;
+import jakarta.ws.rs.core.UriInfo;
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.events.EventBuilder;
+import org.keycloak.events.EventType;
+import org.keycloak.forms.login.LoginFormsProvider;
+import org.keycloak.http.HttpRequest;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.services.managers.AuthenticationManager;
+import org.keycloak.sessions.AuthenticationSessionModel;
+import se.scouterna.keycloak.client.ScoutnetClient;
+import se.scouterna.keycloak.testkit.InMemoryKeycloak;
+
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Runs single password and cookie logins through {@link ScoutnetAuthenticator} and
+ * {@link ScoutnetCookieAuthenticator} on an {@link InMemoryKeycloak} model, each in a new
+ * session with a fake authentication flow context. Thread-safe.
+ *
+ * The SSO cookie check is not exercised: a cookie login is handed the user and a remember-me
+ * session directly. A cookie login's session is committed afterwards, like a request, so
+ * refreshes scheduled by the cookie authenticator run.
+ */
+class LoginDriver {
+
+    private static final ThreadLocal<UserModel> COOKIE_USER = new ThreadLocal<>();
+
+    private final InMemoryKeycloak keycloak;
+    private final ScoutnetAuthenticator passwordAuthenticator;
+    private final ScoutnetCookieAuthenticator cookieAuthenticator;
+    private final AuthenticatorConfigModel cookieConfig = new AuthenticatorConfigModel();
+
+    /**
+     * @param fetchIntervalMinutes cookie authenticator fetch interval; 0 makes every cookie login fetch
+     */
+    LoginDriver(InMemoryKeycloak keycloak, ScoutnetClient client, int fetchIntervalMinutes) {
+        this(keycloak, client, null, Map.of(ScoutnetCookieAuthenticatorFactory.CONFIG_FETCH_INTERVAL,
+            String.valueOf(fetchIntervalMinutes)));
+    }
+
+    /**
+     * @param asyncRefresher for the cookie authenticator's stale-while-revalidate mode, or null
+     * @param cookieConfig   cookie authenticator config
+     */
+    LoginDriver(InMemoryKeycloak keycloak, ScoutnetClient client, AsyncProfileRefresher asyncRefresher,
+                Map<String, String> cookieConfig) {
+        this.keycloak = keycloak;
+        this.passwordAuthenticator = new ScoutnetAuthenticator(client);
+        this.cookieAuthenticator = new ScoutnetCookieAuthenticator(asyncRefresher, client) {
+            @Override
+            AuthenticationManager.AuthResult authenticateIdentityCookie(AuthenticationFlowContext context) {
+                UserSessionModel userSession = proxy(UserSessionModel.class, (method, args) ->
+                    method.equals("isRememberMe") ? Boolean.TRUE : null);
+                return new AuthenticationManager.AuthResult(COOKIE_USER.get(), userSession, null, null);
+            }
+        };
+        this.cookieConfig.setConfig(cookieConfig);
+    }
+
+    /**
+     * @return how the flow ended: {@code success}, {@code failureChallenge}, ...
+     */
+    String passwordLogin(String username, String password) {
+        MultivaluedHashMap<String, String> form = new MultivaluedHashMap<>();
+        form.add("username", username);
+        form.add("password", password);
+        form.add("rememberMe", "on");
+        FlowContext flow = new FlowContext(keycloak.newSession(), form, null);
+        passwordAuthenticator.action(flow.context);
+        return flow.outcome;
+    }
+
+    /**
+     * @return how the flow ended: {@code success}, {@code attempted}, ...
+     */
+    String cookieLogin(UserModel user) {
+        KeycloakSession session = keycloak.newSession();
+        FlowContext flow = new FlowContext(session, new MultivaluedHashMap<>(), cookieConfig);
+        COOKIE_USER.set(user);
+        try {
+            cookieAuthenticator.authenticate(flow.context);
+        } finally {
+            COOKIE_USER.remove();
+        }
+        session.getTransactionManager().commit();
+        return flow.outcome;
+    }
+
+    /**
+     * The parts of an authentication flow the two authenticators use; records how the flow ended.
+     */
+    private final class FlowContext {
+        final AuthenticationFlowContext context;
+        volatile String outcome = "none";
+
+        FlowContext(KeycloakSession session, MultivaluedHashMap<String, String> form, AuthenticatorConfigModel config) {
+            Map<String, String> authNotes = new ConcurrentHashMap<>();
+            AuthenticationSessionModel authSession = proxy(AuthenticationSessionModel.class, (method, args) -> switch (method) {
+                case "setAuthNote" -> authNotes.put((String) args[0], (String) args[1]);
+                case "removeAuthNote" -> authNotes.remove((String) args[0]);
+                case "getAuthNote" -> authNotes.get((String) args[0]);
+                default -> throw new UnsupportedOperationException("AuthenticationSessionModel." + method);
+            });
+            HttpRequest request = proxy(HttpRequest.class, (method, args) -> switch (method) {
+                case "getDecodedFormParameters" -> form;
+                default -> throw new UnsupportedOperationException("HttpRequest." + method);
+            });
+            UriInfo uriInfo = proxy(UriInfo.class, (method, args) -> switch (method) {
+                case "getBaseUri" -> URI.create("https://id.example.com/");
+                default -> throw new UnsupportedOperationException("UriInfo." + method);
+            });
+            LoginFormsProvider[] forms = new LoginFormsProvider[1];
+            forms[0] = proxy(LoginFormsProvider.class, (method, args) -> switch (method) {
+                case "setError", "setAttribute" -> forms[0];
+                case "createLoginUsernamePassword" -> null;
+                default -> throw new UnsupportedOperationException("LoginFormsProvider." + method);
+            });
+            EventBuilder event = new EventBuilder(keycloak.realm(), session).event(EventType.LOGIN);
+            UserModel[] user = new UserModel[1];
+            context = proxy(AuthenticationFlowContext.class, (method, args) -> switch (method) {
+                case "getSession" -> session;
+                case "getRealm" -> keycloak.realm();
+                case "getHttpRequest" -> request;
+                case "getUriInfo" -> uriInfo;
+                case "getAuthenticationSession" -> authSession;
+                case "getAuthenticatorConfig" -> config;
+                case "getEvent" -> event;
+                case "form" -> forms[0];
+                case "getUser" -> user[0];
+                case "setUser" -> user[0] = (UserModel) args[0];
+                case "attachUserSession" -> null;
+                case "success", "attempted", "challenge", "failureChallenge", "failure" -> outcome = method;
+                default -> throw new UnsupportedOperationException("AuthenticationFlowContext." + method);
+            });
+        }
+    }
+
+    @FunctionalInterface
+    private interface Handler {
+        Object handle(String method, Object[] args);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, Handler handler) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+            (proxy, method, args) -> handler.handle(method.getName(), args != null ? args : new Object[0]));
+    }
+}
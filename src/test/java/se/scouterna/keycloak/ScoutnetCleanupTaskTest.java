@@ -0,0 +1,175 @@
+package se.scouterna.keycloak;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.TypedQuery;
+import org.junit.jupiter.api.Test;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.protocol.oidc.mappers.OIDCAttributeMapperHelper;
+import org.keycloak.representations.AccessToken;
+import se.scouterna.keycloak.jpa.GroupEmailReservationStore;
+import se.scouterna.keycloak.testkit.InMemoryKeycloak;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScoutnetCleanupTaskTest {
+
+    private static final long DAY = 86_400_000L;
+
+    private final InMemoryKeycloak keycloak = new InMemoryKeycloak("cleanup");
+    private final GroupModel parent = ScoutnetGroupManager.ensureParentGroup(keycloak.realm());
+
+    @Test
+    void pruneUser_removesEmailsOfLeftGroupsAndTheMapperStopsReturningThem() {
+        KeycloakSession session = keycloak.newSession();
+        UserModel user = session.users().addUser(keycloak.realm(), "scoutnet|3100001");
+        user.joinGroup(keycloak.realm().createGroup("766", parent));
+        user.setSingleAttribute("group_email_766", "anna.svensson@testkaren.se");
+        user.setSingleAttribute("group_email_12", "anna.svensson@norra.se");
+        user.setSingleAttribute("group_emails_json", "{\"12\":\"anna.svensson@norra.se\",\"766\":\"anna.svensson@testkaren.se\"}");
+        user.setSingleAttribute("scoutnet_profile_hash", "before");
+        user.setSingleAttribute("roles", "{}");
+        // One mapper instance, so both tokens go through the same claim cache
+        ScoutnetMembershipsProtocolMapper mapper = new ScoutnetMembershipsProtocolMapper();
+        mapper.postInit(null);
+        try {
+            assertEquals("anna.svensson@norra.se", groupEmailsClaim(mapper, user).path("12").asText());
+
+            int removed = ScoutnetCleanupTask.pruneUser(keycloak.realm(), user, parent, new GroupEmailReservationStore(session));
+
+            assertEquals(2, removed);
+            assertNull(user.getFirstAttribute("group_email_12"));
+            assertNull(user.getFirstAttribute("roles"));
+            assertNotEquals("before", user.getFirstAttribute("scoutnet_profile_hash"));
+            JsonNode claim = groupEmailsClaim(mapper, user);
+            assertFalse(claim.has("12"));
+            assertEquals("anna.svensson@testkaren.se", claim.path("766").asText());
+        } finally {
+            mapper.close();
+        }
+    }
+
+    @Test
+    void pruneUser_keepsProfileHashWhenNoEmailWasRemoved() {
+        KeycloakSession session = keycloak.newSession();
+        UserModel user = session.users().addUser(keycloak.realm(), "scoutnet|3100002");
+        user.setSingleAttribute("scoutnet_troops", "[]");
+        user.setSingleAttribute("scoutnet_profile_hash", "before");
+
+        assertEquals(1, ScoutnetCleanupTask.pruneUser(keycloak.realm(), user, parent, new GroupEmailReservationStore(session)));
+        assertEquals("before", user.getFirstAttribute("scoutnet_profile_hash"));
+    }
+
+    @Test
+    void run_removesExpiredEmptyGroupsButNotJoinedOrCatalogGroups() {
+        KeycloakSession session = keycloak.newSession();
+        String expired = String.valueOf(System.currentTimeMillis() - 31 * DAY);
+        GroupModel empty = keycloak.realm().createGroup("100", parent);
+        GroupModel joined = keycloak.realm().createGroup("200", parent);
+        GroupModel catalog = keycloak.realm().createGroup("300", parent);
+        for (GroupModel group : List.of(empty, joined, catalog)) {
+            group.setSingleAttribute(ScoutnetCleanupTask.EMPTY_SINCE_ATTRIBUTE, expired);
+        }
+        catalog.setSingleAttribute(ScoutnetGroupCatalogImporter.CATALOG_ATTRIBUTE, "true");
+        // Joined after the empty-group query ran
+        session.users().addUser(keycloak.realm(), "scoutnet|3100003").joinGroup(joined);
+        keycloak.putProvider(JpaConnectionProvider.class, emptyGroupQueries(List.of(empty.getId(), joined.getId(), catalog.getId())));
+
+        new ScoutnetCleanupTask(new ScoutnetCleanupTask.Settings(true, 86_400_000L, 30 * DAY, 500)).run(session);
+
+        assertNull(keycloak.realm().getGroupById(empty.getId()));
+        assertNotNull(keycloak.realm().getGroupById(joined.getId()));
+        assertNull(joined.getFirstAttribute(ScoutnetCleanupTask.EMPTY_SINCE_ATTRIBUTE));
+        assertNotNull(keycloak.realm().getGroupById(catalog.getId()));
+    }
+
+    @Test
+    void run_escapesGroupEmailPatternWithoutBackslash() {
+        List<String> queries = new ArrayList<>();
+        keycloak.putProvider(JpaConnectionProvider.class, emptyGroupQueries(List.of(), queries));
+
+        new ScoutnetCleanupTask(new ScoutnetCleanupTask.Settings(true, 86_400_000L, 30 * DAY, 500)).run(keycloak.newSession());
+
+        String staleAttributes = queries.stream().filter(q -> q.contains("from UserAttributeEntity")).findFirst().orElseThrow();
+        // MySQL and MariaDB treat a backslash in a string literal as an escape character
+        assertTrue(staleAttributes.contains("a.name like 'group!_email!_%' escape '!'"), staleAttributes);
+        assertFalse(staleAttributes.contains("\\"), staleAttributes);
+    }
+
+    private static JsonNode groupEmailsClaim(ScoutnetMembershipsProtocolMapper mapper, UserModel user) {
+        ProtocolMapperModel mapping = new ProtocolMapperModel();
+        mapping.setConfig(Map.of(
+            ScoutnetMembershipsProtocolMapper.CONFIG_USER_ATTRIBUTE, "group_emails_json",
+            OIDCAttributeMapperHelper.TOKEN_CLAIM_NAME, "group_emails"));
+        UserSessionModel userSession = proxy(UserSessionModel.class, (method, args) -> switch (method) {
+            case "getUser" -> user;
+            default -> throw new UnsupportedOperationException("UserSessionModel." + method);
+        });
+        AccessToken token = new AccessToken();
+        mapper.setClaim(token, mapping, userSession, null, null);
+        return (JsonNode) token.getOtherClaims().get("group_emails");
+    }
+
+    private static JpaConnectionProvider emptyGroupQueries(List<String> emptyGroupIds) {
+        return emptyGroupQueries(emptyGroupIds, new ArrayList<>());
+    }
+
+    /**
+     * Answers the job's empty-subgroup query with the given group IDs, and its other queries with nothing.
+     * The JPQL of every query is added to {@code queries}.
+     */
+    private static JpaConnectionProvider emptyGroupQueries(List<String> emptyGroupIds, List<String> queries) {
+        EntityManager em = proxy(EntityManager.class, (method, args) -> switch (method) {
+            case "createQuery" -> {
+                String jpql = (String) args[0];
+                queries.add(jpql);
+                yield query(jpql.contains("not exists (select c from GroupEntity c") ? emptyGroupIds : List.of());
+            }
+            default -> throw new UnsupportedOperationException("EntityManager." + method);
+        });
+        return proxy(JpaConnectionProvider.class, (method, args) -> switch (method) {
+            case "getEntityManager" -> em;
+            case "close" -> null;
+            default -> throw new UnsupportedOperationException("JpaConnectionProvider." + method);
+        });
+    }
+
+    private static TypedQuery<?> query(List<String> ids) {
+        Map<String, Object> params = new HashMap<>();
+        TypedQuery<?>[] self = new TypedQuery<?>[1];
+        self[0] = proxy(TypedQuery.class, (method, args) -> switch (method) {
+            case "setParameter" -> {
+                params.put((String) args[0], args[1]);
+                yield self[0];
+            }
+            case "setMaxResults" -> self[0];
+            case "getResultList" -> ids.stream().sorted()
+                .filter(id -> id.compareTo((String) params.getOrDefault("after", "")) > 0)
+                .toList();
+            default -> throw new UnsupportedOperationException("TypedQuery." + method);
+        });
+        return self[0];
+    }
+
+    @FunctionalInterface
+    private interface Handler {
+        Object handle(String method, Object[] args);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, Handler handler) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+            (proxy, method, args) -> handler.handle(method.getName(), args != null ? args : new Object[0]));
+    }
+}
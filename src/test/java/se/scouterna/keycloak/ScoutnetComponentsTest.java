@@ -0,0 +1,52 @@
+package se.scouterna.keycloak;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScoutnetComponentsTest {
+
+    @Test
+    void sharedUntilLastRelease() {
+        ScoutnetComponents first = ScoutnetComponents.acquire();
+        ScoutnetComponents second = ScoutnetComponents.acquire();
+        assertSame(first, second);
+        assertSame(first.scoutnetClient(), second.scoutnetClient());
+
+        first.release();
+        ScoutnetComponents third = ScoutnetComponents.acquire();
+        assertSame(first, third, "one factory still holds the container");
+
+        second.release();
+        third.release();
+        ScoutnetComponents fresh = ScoutnetComponents.acquire();
+        try {
+            assertNotSame(first, fresh);
+        } finally {
+            fresh.release();
+        }
+    }
+
+    @Test
+    void lastReleaseDrainsBackgroundExecutor() throws InterruptedException {
+        ScoutnetComponents components = ScoutnetComponents.acquire();
+        CountDownLatch started = new CountDownLatch(1);
+        AtomicBoolean finished = new AtomicBoolean();
+        components.backgroundExecutor().execute(() -> {
+            started.countDown();
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+            finished.set(true);
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        components.release();
+
+        assertTrue(finished.get(), "running work finishes before the container closes");
+        assertTrue(components.backgroundExecutor().isTerminated());
+    }
+}
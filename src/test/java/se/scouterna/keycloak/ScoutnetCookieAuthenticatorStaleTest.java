@@ -0,0 +1,115 @@
+package se.scouterna.keycloak;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.UserModel;
+import se.scouterna.keycloak.client.ScoutnetClient;
+import se.scouterna.keycloak.testkit.InMemoryKeycloak;
+import se.scouterna.keycloak.testkit.MockScoutnetServer;
+import se.scouterna.keycloak.testkit.ScoutnetCorpus;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The cookie authenticator's stale-while-revalidate mode, end to end against a mock Scoutnet.
+ */
+class ScoutnetCookieAuthenticatorStaleTest {
+
+    private static final AtomicInteger MEMBER_NUMBERS = new AtomicInteger(3_200_000);
+    private static final long HOUR = 60 * 60_000L;
+    // The global registry only keeps counts once a registry is added, as Keycloak does on startup
+    private static final SimpleMeterRegistry METER_REGISTRY = new SimpleMeterRegistry();
+
+    private static MockScoutnetServer scoutnet;
+    private static ScoutnetClient client;
+
+    private final InMemoryKeycloak keycloak = new InMemoryKeycloak("stale");
+    private final AsyncProfileRefresher refresher = new AsyncProfileRefresher(1);
+    private final LoginDriver driver = new LoginDriver(keycloak, client, refresher, Map.of(
+        ScoutnetCookieAuthenticatorFactory.CONFIG_FETCH_INTERVAL, "60",
+        ScoutnetCookieAuthenticatorFactory.CONFIG_STALE_WHILE_REVALIDATE, "true",
+        ScoutnetCookieAuthenticatorFactory.CONFIG_MAX_STALE, "180"));
+
+    @BeforeAll
+    static void startScoutnet() throws Exception {
+        Metrics.addRegistry(METER_REGISTRY);
+        ScoutnetCorpus corpus = new ScoutnetCorpus(1, ScoutnetCorpus.Shape.realistic());
+        scoutnet = new MockScoutnetServer(corpus::responses, MockScoutnetServer.Behaviour.healthy());
+        client = new ScoutnetClient(scoutnet.baseUrl());
+    }
+
+    @AfterAll
+    static void stopScoutnet() {
+        scoutnet.close();
+        Metrics.removeRegistry(METER_REGISTRY);
+    }
+
+    @AfterEach
+    void closeRefresher() {
+        refresher.close();
+    }
+
+    @Test
+    void withinInterval_noFetch() {
+        UserModel user = loggedInUser();
+        long before = scoutnet.totalRequests();
+
+        assertEquals("success", driver.cookieLogin(user));
+
+        assertEquals(before, scoutnet.totalRequests());
+        assertFalse(refresher.isInFlight(user.getId()));
+    }
+
+    @Test
+    void staleWithinCeiling_servesNowAndRefreshesAfterCommit() throws Exception {
+        UserModel user = loggedInUser();
+        long staleFetch = System.currentTimeMillis() - 2 * HOUR;
+        FetchThrottle.recordFetch(keycloak.newSession(), user, staleFetch);
+        long servedStale = outcomes("served_stale");
+
+        assertEquals("success", driver.cookieLogin(user));
+
+        assertEquals(servedStale + 1, outcomes("served_stale"));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (refresher.isInFlight(user.getId())) {
+            assertTrue(System.nanoTime() < deadline, "background refresh still in flight");
+            Thread.sleep(5);
+        }
+        long lastFetch = Long.parseLong(FetchThrottle.getLastFetch(keycloak.newSession(), user));
+        assertTrue(lastFetch > staleFetch, "the background refresh recorded a new fetch");
+    }
+
+    @Test
+    void staleBeyondCeiling_fetchesSynchronously() {
+        UserModel user = loggedInUser();
+        long staleFetch = System.currentTimeMillis() - 4 * HOUR;
+        FetchThrottle.recordFetch(keycloak.newSession(), user, staleFetch);
+        long fetched = outcomes("fetched");
+
+        assertEquals("success", driver.cookieLogin(user));
+
+        assertEquals(fetched + 1, outcomes("fetched"));
+        // Recorded by the login itself; the profile may come from the recent fetch result cache
+        assertFalse(refresher.isInFlight(user.getId()), "nothing scheduled in the background");
+        long lastFetch = Long.parseLong(FetchThrottle.getLastFetch(keycloak.newSession(), user));
+        assertTrue(lastFetch > staleFetch, "fetched during the login");
+    }
+
+    private long outcomes(String outcome) {
+        return ScoutnetMetrics.INSTANCE.count(ScoutnetMetrics.COOKIE_LOGINS, "stale", "outcome", outcome);
+    }
+
+    private UserModel loggedInUser() {
+        int memberNo = MEMBER_NUMBERS.incrementAndGet();
+        assertEquals("success", driver.passwordLogin(String.valueOf(memberNo), "secret"));
+        return keycloak.getUserByUsername("scoutnet|" + memberNo);
+    }
+}
@@ -1,6 +1,7 @@
 package se.scouterna.keycloak;
 
 import org.junit.jupiter.api.Test;
+import se.scouterna.keycloak.client.ScoutnetClient;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -10,7 +11,7 @@ import static org.junit.jupiter.api.Assertions.*;
  */
 class ScoutnetCookieAuthenticatorTest {
 
-    private final ScoutnetCookieAuthenticator authenticator = new ScoutnetCookieAuthenticator();
+    private final ScoutnetCookieAuthenticator authenticator = new ScoutnetCookieAuthenticator(null, new ScoutnetClient());
 
     @Test
     void fetchNeeded_whenNoLastFetch() {
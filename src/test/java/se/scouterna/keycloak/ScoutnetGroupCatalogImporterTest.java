@@ -0,0 +1,148 @@
+package se.scouterna.keycloak;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.ModelDuplicateException;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import se.scouterna.keycloak.ScoutnetGroupCatalogImporter.CatalogEntry;
+import se.scouterna.keycloak.ScoutnetGroupCatalogImporter.ImportResult;
+import se.scouterna.keycloak.testkit.InMemoryKeycloak;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScoutnetGroupCatalogImporterTest {
+
+    @Test
+    void parsesJsonCatalog() throws IOException {
+        List<CatalogEntry> entries = ScoutnetGroupCatalogImporter.parseJson(
+            "[{\"id\": 766, \"type\": \"group\", \"name\": \"Testkåren\"}, {\"id\": \"12\", \"type\": \"district\"}]");
+
+        assertEquals(List.of(
+            new CatalogEntry("766", "group", "Testkåren"),
+            new CatalogEntry("12", "district", null)), entries);
+    }
+
+    @Test
+    void rejectsJsonThatIsNotAnArray() {
+        assertThrows(IOException.class, () -> ScoutnetGroupCatalogImporter.parseJson("{\"id\": 766}"));
+    }
+
+    @Test
+    void parsesCsvWithQuotedFieldsAndAnyColumnOrder() throws IOException {
+        List<CatalogEntry> entries = ScoutnetGroupCatalogImporter.parseCsv(
+            "name,Type,id\r\n\"Kår \"\"Norr\"\", Umeå\",group,766\r\n,district,12\n\n");
+
+        assertEquals(List.of(
+            new CatalogEntry("766", "group", "Kår \"Norr\", Umeå"),
+            new CatalogEntry("12", "district", null)), entries);
+    }
+
+    @Test
+    void matchesCsvHeaderRegardlessOfDefaultLocale() throws IOException {
+        Locale defaultLocale = Locale.getDefault();
+        // Turkish lower-cases "ID" to a dotless "ıd"
+        Locale.setDefault(Locale.forLanguageTag("tr-TR"));
+        try {
+            assertEquals(List.of(new CatalogEntry("766", "group", "Testkåren")),
+                ScoutnetGroupCatalogImporter.parseCsv("ID,TYPE,NAME\n766,group,Testkåren\n"));
+        } finally {
+            Locale.setDefault(defaultLocale);
+        }
+    }
+
+    @Test
+    void rejectsCsvWithoutRequiredColumns() {
+        assertThrows(IOException.class, () -> ScoutnetGroupCatalogImporter.parseCsv("id,name\n766,Testkåren\n"));
+    }
+
+    @Test
+    void rejectsUnterminatedCsvQuote() {
+        assertThrows(IOException.class, () -> ScoutnetGroupCatalogImporter.parseCsv("id,type\n\"766,group\n"));
+    }
+
+    @Test
+    void importCatalog_isIdempotentAndCountsChanges() {
+        InMemoryKeycloak keycloak = new InMemoryKeycloak("catalog");
+        ScoutnetGroupCatalogImporter importer = new ScoutnetGroupCatalogImporter(keycloak.newSession().getKeycloakSessionFactory());
+        List<CatalogEntry> catalog = List.of(
+            new CatalogEntry("766", "group", "Testkåren"),
+            new CatalogEntry("12", "district", "Norra distriktet"),
+            new CatalogEntry("x1", "group", "Not a Scoutnet ID"));
+
+        assertEquals(new ImportResult(2, 0, 0, 1), importer.importCatalog(keycloak.realm().getId(), catalog));
+        assertEquals(new ImportResult(0, 0, 2, 1), importer.importCatalog(keycloak.realm().getId(), catalog));
+        assertEquals(new ImportResult(0, 1, 1, 0), importer.importCatalog(keycloak.realm().getId(), List.of(
+            new CatalogEntry("766", "group", "Testkåren Umeå"),
+            new CatalogEntry("12", "district", "Norra distriktet"))));
+
+        GroupModel group = subgroup(keycloak, "766");
+        assertEquals("group", group.getFirstAttribute("scoutnet_type"));
+        assertEquals("Testkåren Umeå", group.getFirstAttribute("scoutnet_name"));
+        assertEquals("", group.getFirstAttribute("domain"));
+        assertEquals(3, keycloak.groupCount());
+    }
+
+    @Test
+    void importCatalog_retriesBatchWhenALoginCreatesOneOfItsGroups() {
+        InMemoryKeycloak keycloak = new InMemoryKeycloak("catalog-race");
+        AtomicBoolean raced = new AtomicBoolean();
+        // The first create of 766 finds it created by a login since the batch looked, like the sibling-name constraint
+        KeycloakSessionFactory racingFactory = delegate(KeycloakSessionFactory.class, keycloak.newSession().getKeycloakSessionFactory(),
+            (factoryMethod, factoryArgs) -> !factoryMethod.equals("create") ? null
+                : delegate(KeycloakSession.class, keycloak.newSession(), (sessionMethod, sessionArgs) -> !sessionMethod.equals("realms") ? null
+                    : delegate(RealmProvider.class, keycloak.newSession().realms(), (providerMethod, providerArgs) -> !providerMethod.equals("getRealm") ? null
+                        : delegate(RealmModel.class, keycloak.realm(), (realmMethod, realmArgs) -> {
+                            if (realmMethod.equals("createGroup") && "766".equals(realmArgs[0]) && raced.compareAndSet(false, true)) {
+                                keycloak.realm().createGroup("766", (GroupModel) realmArgs[1]);
+                                throw new ModelDuplicateException("Sibling group named '766' already exists");
+                            }
+                            return null;
+                        }))));
+
+        ImportResult result = new ScoutnetGroupCatalogImporter(racingFactory).importCatalog(keycloak.realm().getId(), List.of(
+            new CatalogEntry("766", "group", "Testkåren"),
+            new CatalogEntry("12", "district", null)));
+
+        assertTrue(raced.get());
+        assertEquals(new ImportResult(1, 1, 0, 0), result);
+        assertEquals("group", subgroup(keycloak, "766").getFirstAttribute("scoutnet_type"));
+        assertEquals(3, keycloak.groupCount());
+    }
+
+    private static GroupModel subgroup(InMemoryKeycloak keycloak, String name) {
+        return ScoutnetGroupManager.ensureParentGroup(keycloak.realm()).getSubGroupsStream()
+            .filter(group -> name.equals(group.getName()))
+            .findFirst()
+            .orElseThrow();
+    }
+
+    @FunctionalInterface
+    private interface Interceptor {
+        /**
+         * @return the result, or null to call the target
+         */
+        Object call(String method, Object[] args);
+    }
+
+    private static <T> T delegate(Class<T> type, T target, Interceptor interceptor) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> {
+            Object result = interceptor.call(method.getName(), args != null ? args : new Object[0]);
+            if (result != null) return result;
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }));
+    }
+}
@@ -0,0 +1,187 @@
+package se.scouterna.keycloak;
+
+import se.scouterna.keycloak.client.ScoutnetClient;
+import se.scouterna.keycloak.testkit.InMemoryKeycloak;
+import se.scouterna.keycloak.testkit.MockScoutnetServer;
+import se.scouterna.keycloak.testkit.ScoutnetCorpus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Offline load test of {@link ScoutnetAuthenticator} and {@link ScoutnetCookieAuthenticator}:
+ * drives concurrent {@link LoginDriver} logins against a {@link MockScoutnetServer} with an
+ * {@link InMemoryKeycloak} model, and reports throughput, latency percentiles and Scoutnet
+ * calls per login.
+ *
+ * A member's first login is always a password login with remember-me; later logins are cookie
+ * logins with the configured share.
+ *
+ * Settings come from {@code load.*} system properties, see {@link Settings#fromSystemProperties()}.
+ */
+public class ScoutnetLoadHarness {
+
+    /**
+     * @param fetchIntervalMinutes cookie authenticator fetch interval; 0 makes every cookie login fetch
+     * @param seed                 seeds both the login sequence and the member profiles
+     * @param corpus               shape of the member profiles Scoutnet returns
+     */
+    public record Settings(int users, int logins, int concurrency, double cookieShare, double wrongPasswordShare,
+                           String latency, double errorRate, long burstEveryMillis, long burstLengthMillis,
+                           int fetchIntervalMinutes, long seed, ScoutnetCorpus.Shape corpus) {
+
+        /**
+         * Defaults are a quick smoke run; scale up with e.g. {@code -Dload.users=5000 -Dload.logins=50000}.
+         */
+        public static Settings fromSystemProperties() {
+            return new Settings(
+                Integer.getInteger("load.users", 50),
+                Integer.getInteger("load.logins", 400),
+                Integer.getInteger("load.concurrency", 16),
+                Double.parseDouble(System.getProperty("load.cookieShare", "0.8")),
+                Double.parseDouble(System.getProperty("load.wrongPasswordShare", "0.02")),
+                System.getProperty("load.latency", "fixed:0"),
+                Double.parseDouble(System.getProperty("load.errorRate", "0")),
+                Long.getLong("load.burstEveryMillis", 0),
+                Long.getLong("load.burstLengthMillis", 0),
+                Integer.getInteger("load.fetchIntervalMinutes", 0),
+                Long.getLong("load.seed", 1),
+                ScoutnetCorpus.Shape.fromSystemProperties());
+        }
+    }
+
+    public enum Kind { PASSWORD, COOKIE }
+
+    private record Sample(Kind kind, String outcome, long nanos) {
+    }
+
+    /**
+     * Run result; {@link #exceptions} counts logins that threw instead of ending in a flow outcome.
+     */
+    public record Report(Settings settings, long wallNanos, Map<Kind, long[]> latencies,
+                         Map<String, Long> outcomes, Map<String, Long> scoutnetRequests,
+                         Map<Integer, Long> scoutnetStatuses, long exceptions, int users, int groups) {
+
+        public long count(String outcome) {
+            return outcomes.getOrDefault(outcome, 0L);
+        }
+
+        public String format() {
+            int logins = settings.logins();
+            double seconds = wallNanos / 1e9;
+            StringBuilder out = new StringBuilder();
+            out.append(String.format("%d logins in %.2f s: %.1f logins/s, concurrency %d, %d members%n",
+                logins, seconds, logins / seconds, settings.concurrency(), settings.users()));
+            latencies.forEach((kind, nanos) -> {
+                if (nanos.length == 0) return;
+                out.append(String.format("  %-8s n=%-6d p50=%.1fms p90=%.1fms p99=%.1fms max=%.1fms%n", kind, nanos.length,
+                    percentile(nanos, 0.50), percentile(nanos, 0.90), percentile(nanos, 0.99), nanos[nanos.length - 1] / 1e6));
+            });
+            out.append("  outcomes: ").append(outcomes).append(exceptions > 0 ? ", exceptions=" + exceptions : "")
+                .append(System.lineSeparator());
+            long calls = scoutnetRequests.values().stream().mapToLong(Long::longValue).sum();
+            out.append(String.format("  Scoutnet: %.2f calls/login %s, statuses %s%n",
+                (double) calls / logins, perLogin(scoutnetRequests, logins), scoutnetStatuses));
+            out.append(String.format("  model: %d users, %d groups%n", users, groups));
+            return out.toString();
+        }
+
+        private static Map<String, String> perLogin(Map<String, Long> counts, int logins) {
+            Map<String, String> result = new TreeMap<>();
+            counts.forEach((path, count) -> result.put(path, String.format("%.2f", (double) count / logins)));
+            return result;
+        }
+
+        private static double percentile(long[] sorted, double p) {
+            return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)] / 1e6;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.print(run(Settings.fromSystemProperties()).format());
+    }
+
+    public static Report run(Settings settings) throws Exception {
+        MockScoutnetServer.Behaviour behaviour = new MockScoutnetServer.Behaviour(
+            MockScoutnetServer.Latency.parse(settings.latency()), settings.errorRate(),
+            settings.burstEveryMillis(), settings.burstLengthMillis());
+        InMemoryKeycloak keycloak = new InMemoryKeycloak("load");
+
+        ScoutnetCorpus corpus = new ScoutnetCorpus(settings.seed(), settings.corpus());
+        try (MockScoutnetServer scoutnet = new MockScoutnetServer(corpus::responses, behaviour)) {
+            LoginDriver driver = new LoginDriver(keycloak, new ScoutnetClient(scoutnet.baseUrl()),
+                settings.fetchIntervalMinutes());
+
+            Random random = new Random(settings.seed());
+            int[] members = new int[settings.logins()];
+            boolean[] wrongPassword = new boolean[settings.logins()];
+            double[] cookieRoll = new double[settings.logins()];
+            for (int i = 0; i < settings.logins(); i++) {
+                members[i] = 3_000_000 + random.nextInt(settings.users());
+                wrongPassword[i] = random.nextDouble() < settings.wrongPasswordShare();
+                cookieRoll[i] = random.nextDouble();
+            }
+
+            List<Sample> samples = java.util.Collections.synchronizedList(new ArrayList<>(settings.logins()));
+            Set<Integer> loggedIn = ConcurrentHashMap.newKeySet();
+            LongAdder exceptions = new LongAdder();
+            AtomicInteger threadCount = new AtomicInteger();
+            ExecutorService workers = Executors.newFixedThreadPool(settings.concurrency(),
+                runnable -> new Thread(runnable, "load-worker-" + threadCount.incrementAndGet()));
+            long started = System.nanoTime();
+            try {
+                List<Future<?>> futures = new ArrayList<>(settings.logins());
+                for (int i = 0; i < settings.logins(); i++) {
+                    int login = i;
+                    futures.add(workers.submit(() -> {
+                        // Only members whose password login has completed hold a remember-me session
+                        boolean cookie = loggedIn.contains(members[login]) && cookieRoll[login] < settings.cookieShare();
+                        long start = System.nanoTime();
+                        try {
+                            String outcome = cookie
+                                ? driver.cookieLogin(keycloak.getUserByUsername("scoutnet|" + members[login]))
+                                : driver.passwordLogin(String.valueOf(members[login]),
+                                    wrongPassword[login] ? MockScoutnetServer.WRONG_PASSWORD : "secret");
+                            samples.add(new Sample(cookie ? Kind.COOKIE : Kind.PASSWORD, outcome, System.nanoTime() - start));
+                            if (!cookie && outcome.equals("success")) loggedIn.add(members[login]);
+                        } catch (RuntimeException e) {
+                            exceptions.increment();
+                            String outcome = "exception:" + e.getClass().getSimpleName()
+                                + (e.getMessage() != null ? "(" + e.getMessage() + ")" : "");
+                            samples.add(new Sample(cookie ? Kind.COOKIE : Kind.PASSWORD, outcome, System.nanoTime() - start));
+                        }
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } finally {
+                workers.shutdownNow();
+            }
+            long wallNanos = System.nanoTime() - started;
+
+            Map<Kind, long[]> latencies = new EnumMap<>(Kind.class);
+            for (Kind kind : Kind.values()) {
+                long[] nanos = samples.stream().filter(s -> s.kind() == kind).mapToLong(Sample::nanos).toArray();
+                Arrays.sort(nanos);
+                latencies.put(kind, nanos);
+            }
+            Map<String, Long> outcomes = new TreeMap<>();
+            samples.forEach(s -> outcomes.merge(s.kind().name().toLowerCase() + ":" + s.outcome(), 1L, Long::sum));
+            return new Report(settings, wallNanos, latencies, outcomes, scoutnet.requestCounts(),
+                scoutnet.statusCounts(), exceptions.sum(), keycloak.userCount(), keycloak.groupCount());
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package se.scouterna.keycloak;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs {@link ScoutnetLoadHarness} with its {@code load.*} system properties; the defaults are a
+ * small smoke run that checks the in-memory model covers both login paths. For a real load run:
+ * {@code mvn test -Dtest=ScoutnetLoadHarnessTest -Dload.users=5000 -Dload.logins=50000 -Dload.concurrency=200
+ * -Dload.latency=lognormal:40,400 -Dload.errorRate=0.01}, which also prints the report.
+ */
+class ScoutnetLoadHarnessTest {
+
+    @Test
+    void loginsCompleteUnderLoad() throws Exception {
+        ScoutnetLoadHarness.Settings settings = ScoutnetLoadHarness.Settings.fromSystemProperties();
+        ScoutnetLoadHarness.Report report = ScoutnetLoadHarness.run(settings);
+        // Only a load run asked for on the command line reports; the default smoke run stays quiet
+        if (System.getProperties().stringPropertyNames().stream().anyMatch(name -> name.startsWith("load."))) {
+            System.out.print(report.format());
+        }
+
+        assertEquals(0, report.exceptions(), () -> "Logins threw: " + report.outcomes());
+        assertTrue(report.count("password:success") > 0);
+        if (settings.errorRate() == 0 && settings.burstEveryMillis() == 0) {
+            assertTrue(report.count("cookie:success") > 0);
+            assertEquals(0, report.count("cookie:attempted"), () -> "Cookie logins fell through: " + report.outcomes());
+        }
+    }
+}
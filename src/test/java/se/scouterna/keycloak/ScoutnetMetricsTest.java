@@ -0,0 +1,77 @@
+package se.scouterna.keycloak;
+
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.CountAtBucket;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSession;
+import se.scouterna.keycloak.client.dto.AuthResult;
+import se.scouterna.keycloak.testkit.InMemoryKeycloak;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScoutnetMetricsTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final ScoutnetMetrics metrics = new ScoutnetMetrics(registry);
+
+    @Test
+    void countersAreTaggedByRealm() {
+        metrics.login("scouterna", AuthResult.AuthError.INVALID_CREDENTIALS);
+        metrics.login("scouterna", AuthResult.AuthError.INVALID_CREDENTIALS);
+        metrics.login("other", "success");
+        metrics.groupChanges("scouterna", 3, 0);
+
+        assertEquals(2, metrics.count(ScoutnetMetrics.LOGINS, "scouterna", "outcome", "invalid_credentials"));
+        assertEquals(0, metrics.count(ScoutnetMetrics.LOGINS, "scouterna", "outcome", "success"));
+        assertEquals(1, metrics.count(ScoutnetMetrics.LOGINS, "other", "outcome", "success"));
+        assertEquals(3, metrics.count(ScoutnetMetrics.GROUP_JOINS, "scouterna"));
+        assertEquals(0, metrics.count(ScoutnetMetrics.GROUP_LEAVES, "scouterna"));
+    }
+
+    @Test
+    void profileSections_bySectionAndResult() {
+        metrics.profileSection("scouterna", SyncSection.ROLES, true);
+        metrics.profileSection("scouterna", SyncSection.ROLES, false);
+        metrics.profileSection("scouterna", SyncSection.ROLES, false);
+
+        assertEquals(1, metrics.count(ScoutnetMetrics.PROFILE_SECTIONS, "scouterna", "section", "roles", "result", "synced"));
+        assertEquals(2, metrics.count(ScoutnetMetrics.PROFILE_SECTIONS, "scouterna", "section", "roles", "result", "skipped"));
+    }
+
+    @Test
+    void fetchResultCache_publishedUntilUnbound() {
+        FetchResultCache cache = new FetchResultCache(10, 60);
+        Runnable unbind = metrics.bindFetchResultCache(cache);
+        KeycloakSession session = new InMemoryKeycloak("cache").newSession();
+
+        assertNull(cache.get(session, "3100001"));
+
+        assertEquals(1, registry.get(ScoutnetMetrics.FETCH_CACHE_LOOKUPS).tag("result", "miss").functionCounter().count());
+        assertEquals(0, registry.get(ScoutnetMetrics.FETCH_CACHE_LOOKUPS).tag("result", "hit").functionCounter().count());
+        assertEquals(0, registry.get(ScoutnetMetrics.FETCH_CACHE_SIZE).gauge().value());
+        unbind.run();
+        assertNull(registry.find(ScoutnetMetrics.FETCH_CACHE_LOOKUPS).meter());
+    }
+
+    @Test
+    void clientLatency_latencyBuckets() {
+        metrics.clientRequest("get/profile", ScoutnetMetrics.statusClass(200), 30_000_000);
+        metrics.clientRequest("get/profile", ScoutnetMetrics.statusClass(204), 20_000_000_000L);
+
+        Timer timer = registry.get(ScoutnetMetrics.CLIENT_DURATION)
+            .tags("realm", "", "endpoint", "get/profile", "status", "2xx").timer();
+        assertEquals(2, timer.count());
+        Map<Double, Double> buckets = Arrays.stream(timer.takeSnapshot().histogramCounts())
+            .collect(Collectors.toMap(bucket -> bucket.bucket(TimeUnit.SECONDS), CountAtBucket::count));
+        assertEquals(0, buckets.get(0.025));
+        assertEquals(1, buckets.get(0.05));
+        assertEquals(1, buckets.get(10.0));
+        assertEquals(2, metrics.count(ScoutnetMetrics.CLIENT_DURATION, "", "endpoint", "get/profile", "status", "2xx"));
+    }
+}
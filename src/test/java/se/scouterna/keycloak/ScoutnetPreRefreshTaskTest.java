@@ -0,0 +1,134 @@
+package se.scouterna.keycloak;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.credential.CredentialModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.UserModel;
+import se.scouterna.keycloak.testkit.InMemoryKeycloak;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the candidate selection and quiet-hour logic of the pre-refresh task.
+ */
+class ScoutnetPreRefreshTaskTest {
+
+    private static final long NOW = 1_700_000_000_000L;
+
+    @Test
+    void due_whenNoLastFetch() {
+        assertTrue(ScoutnetPreRefreshTask.isDue(null, NOW, 50 * 60_000L));
+    }
+
+    @Test
+    void due_whenWithinLeadOfInterval() {
+        String fiftyFiveMinutesAgo = String.valueOf(NOW - 55 * 60_000L);
+        assertTrue(ScoutnetPreRefreshTask.isDue(fiftyFiveMinutesAgo, NOW, 50 * 60_000L));
+    }
+
+    @Test
+    void notDue_whenRecentlyFetched() {
+        String tenMinutesAgo = String.valueOf(NOW - 10 * 60_000L);
+        assertFalse(ScoutnetPreRefreshTask.isDue(tenMinutesAgo, NOW, 50 * 60_000L));
+    }
+
+    @Test
+    void due_whenInvalidTimestamp() {
+        assertTrue(ScoutnetPreRefreshTask.isDue("not-a-number", NOW, 50 * 60_000L));
+    }
+
+    @Test
+    void quietHours_emptyMeansAlways() {
+        int[] hours = ScoutnetPreRefreshTask.parseQuietHours("");
+        ScoutnetPreRefreshTask.Settings settings = settings(hours);
+        for (int hour = 0; hour < 24; hour++) {
+            assertTrue(settings.isQuietHour(hour));
+        }
+    }
+
+    @Test
+    void quietHours_sameDayWindow() {
+        ScoutnetPreRefreshTask.Settings settings = settings(ScoutnetPreRefreshTask.parseQuietHours("1-6"));
+        assertFalse(settings.isQuietHour(0));
+        assertTrue(settings.isQuietHour(1));
+        assertTrue(settings.isQuietHour(5));
+        assertFalse(settings.isQuietHour(6));
+    }
+
+    @Test
+    void quietHours_overMidnight() {
+        ScoutnetPreRefreshTask.Settings settings = settings(ScoutnetPreRefreshTask.parseQuietHours("22-5"));
+        assertTrue(settings.isQuietHour(23));
+        assertTrue(settings.isQuietHour(0));
+        assertTrue(settings.isQuietHour(4));
+        assertFalse(settings.isQuietHour(12));
+    }
+
+    @Test
+    void quietHours_invalidMeansAlways() {
+        assertArrayEquals(new int[] {0, 0}, ScoutnetPreRefreshTask.parseQuietHours("nights"));
+        assertArrayEquals(new int[] {0, 0}, ScoutnetPreRefreshTask.parseQuietHours("3-25"));
+    }
+
+    @Test
+    void usableToken_revokedFlagReadWhateverTheJsonLayout() {
+        InMemoryKeycloak keycloak = new InMemoryKeycloak("prerefresh");
+        KeycloakSession session = keycloak.newSession();
+        UserModel none = session.users().addUser(keycloak.realm(), "scoutnet|1");
+        UserModel usable = userWithCredentialData(keycloak, "scoutnet|2", "{\"app_id\":\"app\",\"revoked\":false}");
+        UserModel revoked = userWithCredentialData(keycloak, "scoutnet|3", "{ \"revoked\" : true, \"app_id\" : \"app\" }");
+
+        assertFalse(ScoutnetPreRefreshTask.hasUsableToken(keycloak.newSession(), none));
+        assertTrue(ScoutnetPreRefreshTask.hasUsableToken(keycloak.newSession(), usable));
+        assertFalse(ScoutnetPreRefreshTask.hasUsableToken(keycloak.newSession(), revoked));
+    }
+
+    @Test
+    void refreshAll_drainsEveryCandidateOnTheSharedExecutor() throws InterruptedException {
+        InMemoryKeycloak keycloak = new InMemoryKeycloak("prerefresh");
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        try {
+            ScoutnetPreRefreshTask task = new ScoutnetPreRefreshTask(settings(new int[] {0, 0}), null, executor);
+            List<ScoutnetPreRefreshTask.Candidate> candidates = List.of(
+                new ScoutnetPreRefreshTask.Candidate("gone", "u1", 0),
+                new ScoutnetPreRefreshTask.Candidate("gone", "u2", 0),
+                new ScoutnetPreRefreshTask.Candidate("gone", "u3", 0));
+
+            assertEquals(0, task.refreshAll(keycloak.newSession().getKeycloakSessionFactory(), candidates));
+            assertFalse(executor.isShutdown(), "the run leaves the shared executor to its owner");
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    void refreshAll_skipsRunWhenExecutorIsClosed() {
+        InMemoryKeycloak keycloak = new InMemoryKeycloak("prerefresh");
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        executor.shutdown();
+        ScoutnetPreRefreshTask task = new ScoutnetPreRefreshTask(settings(new int[] {0, 0}), null, executor);
+
+        assertEquals(0, task.refreshAll(keycloak.newSession().getKeycloakSessionFactory(),
+            List.of(new ScoutnetPreRefreshTask.Candidate("gone", "u1", 0))));
+    }
+
+    private static UserModel userWithCredentialData(InMemoryKeycloak keycloak, String username, String credentialData) {
+        UserModel user = keycloak.newSession().users().addUser(keycloak.realm(), username);
+        CredentialModel credential = new CredentialModel();
+        credential.setType(ScoutnetTokenCredentialProvider.CREDENTIAL_TYPE);
+        credential.setSecretData("token");
+        credential.setCredentialData(credentialData);
+        user.credentialManager().createStoredCredential(credential);
+        return user;
+    }
+
+    private static ScoutnetPreRefreshTask.Settings settings(int[] quietHours) {
+        return new ScoutnetPreRefreshTask.Settings(true, 300_000L, 100, 2, 10, quietHours[0], quietHours[1]);
+    }
+}
@@ -47,6 +47,8 @@ class ScoutnetProfileSyncTest {
 
         assertNotNull(result);
         assertEquals(loadExpected("expected_output.json"), MAPPER.readTree(result));
+        // Byte-identical to the fixture's compact form, field order included
+        assertEquals(MAPPER.writeValueAsString(loadExpected("expected_output.json")), result);
     }
 
     @Test
@@ -65,7 +67,7 @@ class ScoutnetProfileSyncTest {
         assertTrue(root.has("districts"), "districts should always be present");
         assertTrue(root.has("corps"), "corps should always be present");
         assertTrue(root.has("networks"), "networks should always be present");
-        assertFalse(root.has("projects"), "projects is currently disabled, see ScoutnetMemberships.projects");
+        assertTrue(root.has("projects"), "projects should always be present");
         assertTrue(root.path("troops").isEmpty(), "troops should be empty when roles is null");
     }
 
@@ -140,7 +142,34 @@ class ScoutnetProfileSyncTest {
     }
 
     @Test
-    void buildMembershipsJson_oversizedPayload_fallsBackToGroupsOnlyWithError() throws Exception {
+    void buildMembershipsJson_oversizedPayload_isLossless() throws Exception {
+        Profile profile = oversizedProfile();
+        Roles roles = oversizedRoles();
+
+        String result = ScoutnetProfileSync.buildMembershipsJson(profile, roles);
+        assertNotNull(result);
+        assertTrue(result.length() > 2048, "scenario should exceed the Keycloak attribute limit");
+        JsonNode root = MAPPER.readTree(result);
+        assertEquals(60, root.path("organisations").size());
+        assertEquals(1, root.path("projects").size());
+        assertFalse(root.has("error"));
+    }
+
+    @Test
+    void withinBudget_oversizedPayload_keepsGroupsWithError() throws Exception {
+        String result = MembershipsJsonWriter.write(oversizedProfile(), oversizedRoles())
+            .withinBudget(2048, "memberships_truncated");
+
+        assertTrue(result.length() <= 2048, "fallback payload should fit within the Keycloak attribute limit");
+        JsonNode root = MAPPER.readTree(result);
+        assertEquals(1, root.path("groups").size());
+        assertEquals("memberships_truncated", root.path("error").asText());
+        assertFalse(root.has("organisations"), "non-group fields should be dropped in the fallback payload");
+        assertFalse(root.has("troops"));
+        assertFalse(root.has("projects"));
+    }
+
+    private static Profile oversizedProfile() {
         Profile profile = new Profile();
         Memberships memberships = new Memberships();
         Map<String, GroupMembership> groupMap = new LinkedHashMap<>();
@@ -153,7 +182,10 @@ class ScoutnetProfileSyncTest {
         groupMap.put("999", membership);
         memberships.setGroup(groupMap);
         profile.setMemberships(memberships);
+        return profile;
+    }
 
+    private static Roles oversizedRoles() {
         // A large organisation-roles map, unrelated to groups, that alone pushes the payload past 2048 chars.
         Roles roles = new Roles();
         Map<String, Map<String, String>> organisation = new LinkedHashMap<>();
@@ -163,16 +195,81 @@ class ScoutnetProfileSyncTest {
             organisation.put(String.valueOf(i), orgRoles);
         }
         roles.setOrganisation(organisation);
+        roles.setProject(Map.of("77", Map.of("5", "project_leader")));
+        return roles;
+    }
 
-        String result = ScoutnetProfileSync.buildMembershipsJson(profile, roles);
-        assertNotNull(result);
-        assertTrue(result.length() <= 2048, "fallback payload should fit within the Keycloak attribute limit");
-        JsonNode root = MAPPER.readTree(result);
-        assertTrue(root.has("groups"), "groups should still be present in the fallback payload");
-        assertEquals(1, root.path("groups").size());
-        assertTrue(root.has("error"), "error marker should be present when falling back");
-        assertFalse(root.has("organisations"), "non-group fields should be dropped in the fallback payload");
-        assertFalse(root.has("troops"));
-        assertFalse(root.has("projects"));
+    @Test
+    void sectionHashes_avatarChange_onlyAffectsIdentity() throws Exception {
+        Profile profile = loadFixture("profile_input.json", Profile.class);
+        Roles roles = loadFixture("roles_input.json", Roles.class);
+        String identity = ScoutnetProfileSync.generateIdentityHash(profile);
+        String groups = ScoutnetProfileSync.generateGroupsHash(profile, roles);
+        String rolesHash = ScoutnetProfileSync.generateRolesHash(profile, "{}");
+
+        profile.setAvatarUrl("https://example.com/new-avatar.png");
+
+        assertNotEquals(identity, ScoutnetProfileSync.generateIdentityHash(profile));
+        assertEquals(groups, ScoutnetProfileSync.generateGroupsHash(profile, roles));
+        assertEquals(rolesHash, ScoutnetProfileSync.generateRolesHash(profile, "{}"));
+    }
+
+    @Test
+    void sectionHashes_roleChangeWithinGroup_doesNotAffectGroups() throws Exception {
+        Profile profile = loadFixture("profile_input.json", Profile.class);
+        Roles roles = loadFixture("roles_input.json", Roles.class);
+        String groups = ScoutnetProfileSync.generateGroupsHash(profile, roles);
+        String rolesHash = ScoutnetProfileSync.generateRolesHash(profile, "{}");
+
+        profile.getMemberships().getGroup().get("999").getRoles().put("99999", "new_role");
+
+        assertEquals(groups, ScoutnetProfileSync.generateGroupsHash(profile, roles));
+        assertNotEquals(rolesHash, ScoutnetProfileSync.generateRolesHash(profile, "{}"));
+    }
+
+    @Test
+    void sectionHashes_newGroupMembership_affectsGroups() throws Exception {
+        Profile profile = loadFixture("profile_input.json", Profile.class);
+        Roles roles = loadFixture("roles_input.json", Roles.class);
+        String groups = ScoutnetProfileSync.generateGroupsHash(profile, roles);
+
+        GroupMembership membership = new GroupMembership();
+        Group group = new Group();
+        group.setName("Nya scoutkåren");
+        membership.setGroup(group);
+        profile.getMemberships().getGroup().put("4242", membership);
+
+        assertNotEquals(groups, ScoutnetProfileSync.generateGroupsHash(profile, roles));
+    }
+
+    @Test
+    void sectionHashes_areStable() throws Exception {
+        Profile first = loadFixture("profile_input.json", Profile.class);
+        Profile second = loadFixture("profile_input.json", Profile.class);
+        Roles roles = loadFixture("roles_input.json", Roles.class);
+
+        assertEquals(ScoutnetProfileSync.generateIdentityHash(first), ScoutnetProfileSync.generateIdentityHash(second));
+        assertEquals(ScoutnetProfileSync.generateGroupsHash(first, roles), ScoutnetProfileSync.generateGroupsHash(second, roles));
+        assertEquals(ScoutnetProfileSync.generateRolesHash(first, null), ScoutnetProfileSync.generateRolesHash(second, null));
+    }
+
+    @Test
+    void withinBudget_fittingPayload_unchanged() throws Exception {
+        Profile profile = loadFixture("profile_input.json", Profile.class);
+        Roles roles = loadFixture("roles_input.json", Roles.class);
+
+        MembershipsJsonWriter.Result result = MembershipsJsonWriter.write(profile, roles);
+
+        assertSame(result.json(), result.withinBudget(2048, "memberships_truncated"));
+    }
+
+    @Test
+    void withinBudget_groupsTooLarge_onlyError() throws Exception {
+        Profile profile = loadFixture("profile_input.json", Profile.class);
+        Roles roles = loadFixture("roles_input.json", Roles.class);
+
+        String result = MembershipsJsonWriter.write(profile, roles).withinBudget(100, "memberships_truncated");
+
+        assertEquals("{\"error\":\"memberships_truncated\"}", result);
     }
 }
@@ -0,0 +1,60 @@
+package se.scouterna.keycloak;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.UserModel;
+import se.scouterna.keycloak.testkit.InMemoryKeycloak;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScoutnetRootGroupMigrationTaskTest {
+
+    private final ScoutnetRootGroupMigrationTask task = new ScoutnetRootGroupMigrationTask();
+
+    @Test
+    void run_removesEveryLegacyMembershipInBatchesAndMarksRealm() {
+        InMemoryKeycloak keycloak = new InMemoryKeycloak("legacy");
+        KeycloakSession session = keycloak.newSession();
+        GroupModel legacy = keycloak.realm().createGroup("766");
+        legacy.setSingleAttribute("scoutnet_type", "group");
+        GroupModel unrelated = keycloak.realm().createGroup("admins");
+        List<UserModel> users = new ArrayList<>();
+        // More than two batches of 200
+        for (int i = 0; i < 450; i++) {
+            UserModel user = session.users().addUser(keycloak.realm(), "scoutnet|" + i);
+            user.joinGroup(legacy);
+            user.joinGroup(unrelated);
+            users.add(user);
+        }
+
+        task.run(session);
+
+        assertTrue(users.stream().noneMatch(user -> user.isMemberOf(legacy)));
+        assertTrue(users.stream().allMatch(user -> user.isMemberOf(unrelated)));
+        assertTrue(ScoutnetRootGroupMigrationTask.isMigrated(keycloak.realm()));
+    }
+
+    @Test
+    void run_marksRealmWithParentGroupAndNoLegacyGroups() {
+        InMemoryKeycloak keycloak = new InMemoryKeycloak("migrated");
+        ScoutnetGroupManager.ensureParentGroup(keycloak.realm());
+
+        task.run(keycloak.newSession());
+
+        assertTrue(ScoutnetRootGroupMigrationTask.isMigrated(keycloak.realm()));
+    }
+
+    @Test
+    void run_leavesRealmWithoutScoutnetGroupsUnmarked() {
+        InMemoryKeycloak keycloak = new InMemoryKeycloak("unused");
+        keycloak.realm().createGroup("admins");
+
+        task.run(keycloak.newSession());
+
+        assertFalse(ScoutnetRootGroupMigrationTask.isMigrated(keycloak.realm()));
+    }
+}
@@ -0,0 +1,85 @@
+package se.scouterna.keycloak;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.UserModel;
+import se.scouterna.keycloak.client.ScoutnetClient;
+import se.scouterna.keycloak.testkit.InMemoryKeycloak;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScoutnetSyncEventTest {
+
+    private static final String FIXTURES = "/fixtures/buildMembershipsJson/";
+    private static final String EVENT = "se.scouterna.keycloak.ScoutnetSyncPhase";
+
+    private final InMemoryKeycloak keycloak = new InMemoryKeycloak("jfr");
+    private final ScoutnetProfileSync profileSync = new ScoutnetProfileSync(new ScoutnetClient("http://localhost:1"),
+        new ScoutnetGroupManager());
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void disabledByDefault() {
+        assertFalse(ScoutnetSyncEvent.isRecording());
+    }
+
+    @Test
+    void recordsEachPhase() throws Exception {
+        ScoutnetProfileSync.FetchResult fixture = ScoutnetProfileSync.parseFetchResult(
+            read("profile_input.json"), read("roles_input.json"));
+        KeycloakSession session = keycloak.newSession();
+        UserModel user = session.users().addUser(keycloak.realm(), "scoutnet|" + fixture.getProfile().getMemberNo());
+
+        List<RecordedEvent> firstSync = record(() -> profileSync.syncUserProfile(session, keycloak.realm(), user, fixture));
+        Map<String, RecordedEvent> phases = firstSync.stream()
+            .collect(Collectors.toMap(event -> event.getString("phase"), Function.identity()));
+
+        assertEquals(Map.of("groups", "miss", "identity", "miss", "roles", "miss", "group_emails", "miss"),
+            phases.values().stream().filter(event -> event.getString("hashResult") != null)
+                .collect(Collectors.toMap(event -> event.getString("phase"), event -> event.getString("hashResult"))));
+        assertTrue(phases.get("group_membership").getInt("groupsTouched") > 0);
+        assertTrue(phases.get("identity").getInt("attributesWritten") > 1);
+
+        List<RecordedEvent> secondSync = record(() -> profileSync.syncUserProfile(session, keycloak.realm(), user, fixture));
+        assertEquals(4, secondSync.size());
+        secondSync.forEach(event -> {
+            assertEquals("hit", event.getString("hashResult"));
+            assertEquals(0, event.getInt("attributesWritten"));
+        });
+    }
+
+    private List<RecordedEvent> record(Runnable work) throws Exception {
+        Path file = dir.resolve(System.nanoTime() + ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(EVENT).withThreshold(java.time.Duration.ZERO);
+            recording.start();
+            work.run();
+            recording.stop();
+            recording.dump(file);
+        }
+        return RecordingFile.readAllEvents(file).stream()
+            .filter(event -> event.getEventType().getName().equals(EVENT))
+            .toList();
+    }
+
+    private String read(String name) throws Exception {
+        try (InputStream in = getClass().getResourceAsStream(FIXTURES + name)) {
+            assertNotNull(in, "Missing fixture: " + name);
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package se.scouterna.keycloak;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.credential.CredentialModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.SubjectCredentialManager;
+import org.keycloak.models.UserModel;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScoutnetTokenCredentialProviderTest {
+
+    private final List<CredentialModel> credentials = new ArrayList<>();
+    private final List<String> calls = new ArrayList<>();
+    private final UserModel user = user();
+
+    @Test
+    void createsCredentialWhenNoneStored() {
+        ScoutnetTokenCredentialProvider.storeToken(session(), user, "token-1", "scoutid-keycloak-test");
+
+        assertEquals(List.of("getStoredCredentialsByTypeStream", "createStoredCredential"), calls);
+        assertEquals("token-1", credentials.get(0).getSecretData());
+        assertEquals("{\"app_id\":\"scoutid-keycloak-test\"}", credentials.get(0).getCredentialData());
+    }
+
+    @Test
+    void skipsWriteWhenUnchanged() {
+        ScoutnetTokenCredentialProvider.storeToken(session(), user, "token-1", "scoutid-keycloak-test");
+        calls.clear();
+
+        ScoutnetTokenCredentialProvider.storeToken(session(), user, "token-1", "scoutid-keycloak-test");
+
+        assertEquals(List.of("getStoredCredentialsByTypeStream"), calls);
+    }
+
+    @Test
+    void updatesInPlaceWhenTokenChanged() {
+        ScoutnetTokenCredentialProvider.storeToken(session(), user, "token-1", "scoutid-keycloak-test");
+        String id = credentials.get(0).getId();
+        calls.clear();
+
+        ScoutnetTokenCredentialProvider.storeToken(session(), user, "token-2", "scoutid-keycloak-test");
+
+        assertEquals(List.of("getStoredCredentialsByTypeStream", "updateStoredCredential"), calls);
+        assertEquals(1, credentials.size());
+        assertEquals(id, credentials.get(0).getId());
+        assertEquals("token-2", credentials.get(0).getSecretData());
+    }
+
+    @Test
+    void removesDuplicatesFromEarlierVersions() {
+        credentials.add(credential("a", "token-1"));
+        credentials.add(credential("b", "token-0"));
+
+        ScoutnetTokenCredentialProvider.storeToken(session(), user, "token-1", "scoutid-keycloak-test");
+
+        assertEquals(List.of("a"), credentials.stream().map(CredentialModel::getId).toList());
+    }
+
+    @Test
+    void getTokenReadsCredentialStoreOncePerRequest() {
+        credentials.add(credential("a", "token-1"));
+        KeycloakSession session = session();
+
+        assertEquals("token-1", ScoutnetTokenCredentialProvider.getToken(session, user));
+        ScoutnetTokenCredentialProvider.storeToken(session, user, "token-2", "scoutid-keycloak-test");
+        assertEquals("token-2", ScoutnetTokenCredentialProvider.getToken(session, user));
+
+        assertEquals(List.of("getStoredCredentialsByTypeStream", "updateStoredCredential"), calls);
+    }
+
+    @Test
+    void revokedTokenIsReplacedEvenIfIdentical() {
+        ScoutnetTokenCredentialProvider.storeToken(session(), user, "token-1", "scoutid-keycloak-test");
+        ScoutnetTokenCredentialProvider.markRevoked(session(), user);
+        assertTrue(ScoutnetTokenCredentialProvider.getStoredToken(session(), user).revoked());
+        calls.clear();
+
+        ScoutnetTokenCredentialProvider.storeToken(session(), user, "token-1", "scoutid-keycloak-test");
+
+        assertEquals(List.of("getStoredCredentialsByTypeStream", "updateStoredCredential"), calls);
+        assertFalse(ScoutnetTokenCredentialProvider.getStoredToken(session(), user).revoked());
+    }
+
+    @Test
+    void markUsedWritesAtMostOncePerResolution() {
+        ScoutnetTokenCredentialProvider.storeToken(session(), user, "token-1", "scoutid-keycloak-test");
+        ScoutnetTokenCredentialProvider.markUsed(session(), user);
+        long lastUsed = ScoutnetTokenCredentialProvider.getStoredToken(session(), user).lastUsed();
+        assertTrue(lastUsed > 0);
+        calls.clear();
+
+        ScoutnetTokenCredentialProvider.markUsed(session(), user);
+
+        assertEquals(List.of("getStoredCredentialsByTypeStream"), calls);
+        assertEquals("{\"app_id\":\"scoutid-keycloak-test\",\"last_used\":" + lastUsed + "}",
+            credentials.get(0).getCredentialData());
+    }
+
+    @Test
+    void storedTokenReportsIssueTime() {
+        long before = System.currentTimeMillis();
+        ScoutnetTokenCredentialProvider.storeToken(session(), user, "token-1", "scoutid-keycloak-test");
+
+        ScoutnetTokenCredentialProvider.StoredToken stored = ScoutnetTokenCredentialProvider.getStoredToken(session(), user);
+        assertEquals("token-1", stored.token());
+        assertTrue(stored.issuedAt() >= before);
+        assertEquals(0, stored.lastUsed());
+        assertFalse(stored.revoked());
+    }
+
+    @Test
+    void unreadableCredentialDataIsReplacedOnNextWrite() {
+        CredentialModel corrupt = credential("a", "token-1");
+        corrupt.setCredentialData("{\"app_id\":");
+        credentials.add(corrupt);
+
+        assertFalse(ScoutnetTokenCredentialProvider.getStoredToken(session(), user).revoked());
+        ScoutnetTokenCredentialProvider.markRevoked(session(), user);
+
+        assertEquals("{\"app_id\":\"\",\"revoked\":true}", credentials.get(0).getCredentialData());
+    }
+
+    private static CredentialModel credential(String id, String token) {
+        CredentialModel credential = new CredentialModel();
+        credential.setId(id);
+        credential.setType(ScoutnetTokenCredentialProvider.CREDENTIAL_TYPE);
+        credential.setSecretData(token);
+        credential.setCredentialData("{\"app_id\":\"scoutid-keycloak-test\"}");
+        return credential;
+    }
+
+    private static KeycloakSession session() {
+        Map<String, Object> attributes = new HashMap<>();
+        return (KeycloakSession) Proxy.newProxyInstance(KeycloakSession.class.getClassLoader(),
+            new Class<?>[] {KeycloakSession.class}, (proxy, method, args) -> switch (method.getName()) {
+                case "getAttribute" -> attributes.get((String) args[0]);
+                case "setAttribute" -> {
+                    attributes.put((String) args[0], args[1]);
+                    yield null;
+                }
+                default -> throw new UnsupportedOperationException(method.getName());
+            });
+    }
+
+    private UserModel user() {
+        SubjectCredentialManager credentialManager = (SubjectCredentialManager) Proxy.newProxyInstance(
+            SubjectCredentialManager.class.getClassLoader(), new Class<?>[] {SubjectCredentialManager.class},
+            (proxy, method, args) -> {
+                calls.add(method.getName());
+                switch (method.getName()) {
+                    case "getStoredCredentialsByTypeStream":
+                        return new ArrayList<>(credentials).stream();
+                    case "createStoredCredential":
+                        CredentialModel created = (CredentialModel) args[0];
+                        created.setId("created-" + credentials.size());
+                        credentials.add(created);
+                        return created;
+                    case "updateStoredCredential":
+                        CredentialModel updated = (CredentialModel) args[0];
+                        credentials.replaceAll(c -> c.getId().equals(updated.getId()) ? updated : c);
+                        return null;
+                    case "removeStoredCredentialById":
+                        return credentials.removeIf(c -> c.getId().equals(args[0]));
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            });
+        return (UserModel) Proxy.newProxyInstance(UserModel.class.getClassLoader(), new Class<?>[] {UserModel.class},
+            (proxy, method, args) -> switch (method.getName()) {
+                case "getId" -> "user-1";
+                case "getUsername" -> "scoutnet|3000001";
+                case "credentialManager" -> credentialManager;
+                default -> throw new UnsupportedOperationException(method.getName());
+            });
+    }
+}
@@ -0,0 +1,200 @@
+package se.scouterna.keycloak.admin;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.TypedQuery;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import se.scouterna.keycloak.ScoutnetProfileSync;
+import se.scouterna.keycloak.testkit.InMemoryKeycloak;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs resync jobs over users without stored tokens, which are counted as skipped, with the
+ * user page query answered from the in-memory users.
+ */
+class BulkResyncJobTest {
+
+    private final InMemoryKeycloak keycloak = new InMemoryKeycloak("resync");
+    private final ScoutnetProfileSync profileSync = new ScoutnetProfileSync(null, null);
+    private final List<String> userIds = new ArrayList<>();
+    private final ExecutorService executor = Executors.newFixedThreadPool(BulkResyncJob.MAX_CONCURRENCY);
+
+    @BeforeEach
+    void setUp() {
+        keycloak.putProvider(JpaConnectionProvider.class, pageQueryProvider());
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void run_visitsEveryUserAndClearsCursor() throws InterruptedException {
+        addUsers(150);
+        BulkResyncJob job = job(null, 0);
+
+        job.start();
+
+        assertTrue(job.awaitTermination(10, TimeUnit.SECONDS));
+        BulkResyncJob.Status status = job.status();
+        assertEquals(BulkResyncJob.State.COMPLETED, status.state());
+        assertEquals(150, status.processed());
+        assertEquals(150, status.skipped());
+        assertNull(savedCursor());
+    }
+
+    @Test
+    void cancel_savesLastCompletedPageAndNextRunResumesAfterIt() throws InterruptedException {
+        addUsers(150);
+        BulkResyncJob cancelled = job(null, 200);
+        cancelled.start();
+        while (cancelled.status().cursor() == null) {
+            Thread.sleep(5);
+        }
+        cancelled.cancel();
+        assertTrue(cancelled.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(BulkResyncJob.State.CANCELLED, cancelled.status().state());
+        assertEquals("u100", savedCursor());
+
+        BulkResyncJob resumed = job(savedCursor(), 0);
+        resumed.start();
+
+        assertTrue(resumed.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(BulkResyncJob.State.COMPLETED, resumed.status().state());
+        assertEquals(50, resumed.status().processed());
+        assertNull(savedCursor());
+    }
+
+    @Test
+    void run_pacesUsersToTheMaximumRate() throws InterruptedException {
+        addUsers(6);
+        BulkResyncJob job = job(null, 20);
+        long start = System.nanoTime();
+
+        job.start();
+
+        assertTrue(job.awaitTermination(10, TimeUnit.SECONDS));
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        // Six users at 20 per second: five 50 ms gaps, whatever the worker count
+        assertTrue(elapsedMillis >= 240, "finished after " + elapsedMillis + " ms");
+        assertEquals(6, job.status().processed());
+    }
+
+    @Test
+    void run_leavesRoomOnTheSharedExecutorForOtherWork() throws Exception {
+        addUsers(20);
+        ExecutorService shared = Executors.newFixedThreadPool(4);
+        try {
+            // As many workers as threads, 20 users at 40 per second: about half a second
+            BulkResyncJob job = new BulkResyncJob(keycloak.newSession().getKeycloakSessionFactory(), shared, profileSync,
+                keycloak.realm().getId(), null, 4, 40);
+            job.start();
+
+            // Workers resubmit themselves after every user, so other work is not queued behind the whole job
+            shared.submit(() -> { }).get(5, TimeUnit.SECONDS);
+            assertTrue(job.isActive());
+
+            assertTrue(job.awaitTermination(10, TimeUnit.SECONDS));
+            assertEquals(20, job.status().processed());
+        } finally {
+            shared.shutdown();
+        }
+    }
+
+    @Test
+    void start_cancelsWhenExecutorIsClosed() throws InterruptedException {
+        addUsers(5);
+        executor.shutdown();
+        BulkResyncJob job = job(null, 0);
+
+        job.start();
+
+        assertTrue(job.awaitTermination(1, TimeUnit.SECONDS));
+        assertEquals(BulkResyncJob.State.CANCELLED, job.status().state());
+        assertEquals(0, job.status().processed());
+    }
+
+    private BulkResyncJob job(String startCursor, double maxUsersPerSecond) {
+        KeycloakSession session = keycloak.newSession();
+        return new BulkResyncJob(session.getKeycloakSessionFactory(), executor, profileSync, keycloak.realm().getId(),
+            startCursor, 4, maxUsersPerSecond);
+    }
+
+    private String savedCursor() {
+        return BulkResyncJob.savedCursor(keycloak.newSession(), keycloak.realm());
+    }
+
+    private void addUsers(int count) {
+        KeycloakSession session = keycloak.newSession();
+        for (int i = 1; i <= count; i++) {
+            String id = String.format("u%03d", i);
+            session.users().addUser(keycloak.realm(), id, "scoutnet|" + i, true, true);
+            userIds.add(id);
+        }
+    }
+
+    /**
+     * Answers the job's user page query: IDs after {@code :after} in order, up to the max results.
+     */
+    private JpaConnectionProvider pageQueryProvider() {
+        EntityManager em = proxy(EntityManager.class, (method, args) -> switch (method) {
+            case "createQuery" -> pageQuery(new HashMap<>(), new int[] {Integer.MAX_VALUE});
+            default -> throw new UnsupportedOperationException("EntityManager." + method);
+        });
+        return proxy(JpaConnectionProvider.class, (method, args) -> switch (method) {
+            case "getEntityManager" -> em;
+            case "close" -> null;
+            default -> throw new UnsupportedOperationException("JpaConnectionProvider." + method);
+        });
+    }
+
+    private TypedQuery<?> pageQuery(Map<String, Object> params, int[] maxResults) {
+        TypedQuery<?>[] self = new TypedQuery<?>[1];
+        self[0] = proxy(TypedQuery.class, (method, args) -> switch (method) {
+            case "setParameter" -> {
+                params.put((String) args[0], args[1]);
+                yield self[0];
+            }
+            case "setMaxResults" -> {
+                maxResults[0] = (int) args[0];
+                yield self[0];
+            }
+            case "getResultList" -> userIds.stream().sorted()
+                .filter(id -> id.compareTo((String) params.get("after")) > 0)
+                .limit(maxResults[0])
+                .toList();
+            default -> throw new UnsupportedOperationException("TypedQuery." + method);
+        });
+        return self[0];
+    }
+
+    @FunctionalInterface
+    private interface Handler {
+        Object handle(String method, Object[] args);
+    }
+
+    private static <T> T proxy(Class<T> type, Handler handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+            (p, method, args) -> switch (method.getName()) {
+                case "equals" -> p == args[0];
+                case "hashCode" -> System.identityHashCode(p);
+                case "toString" -> type.getSimpleName();
+                default -> handler.handle(method.getName(), args != null ? args : new Object[0]);
+            }));
+    }
+}
@@ -40,10 +40,8 @@ public class ScoutnetClientIT {
             return; 
         }
 
-        String correlationId = "test-" + System.currentTimeMillis();
-
         // Step 1: Authenticate and get a token
-        AuthResult authResult = scoutnetClient.authenticate(username, password, username, correlationId);
+        AuthResult authResult = scoutnetClient.authenticate(username, password, username);
 
         assertNotNull(authResult, "Authentication result should not be null");
         assertTrue(authResult.isSuccess(), "Authentication should succeed");
@@ -58,7 +56,7 @@ public class ScoutnetClientIT {
         System.out.println("Authentication successful for member no: " + authResponse.getMember().getMemberNo());
 
         // Step 2: Use the token to fetch the profile
-        Profile profile = scoutnetClient.getProfile(authResponse.getToken(), correlationId);
+        Profile profile = scoutnetClient.getProfile(authResponse.getToken());
 
         assertNotNull(profile, "Profile response should not be null");
         assertEquals(authResponse.getMember().getMemberNo(), profile.getMemberNo(), "Member number in profile should match member number in auth response");
@@ -76,7 +74,7 @@ public class ScoutnetClientIT {
         }
 
         // Step 4: Fetch roles
-        Roles roles = scoutnetClient.getRoles(authResponse.getToken(), correlationId);
+        Roles roles = scoutnetClient.getRoles(authResponse.getToken());
         
         assertNotNull(roles, "Roles response should not be null");
         
@@ -103,16 +101,14 @@ public class ScoutnetClientIT {
             return;
         }
 
-        String correlationId = "test-hash-" + System.currentTimeMillis();
-
         // Authenticate and get profile data
-        AuthResult authResult = scoutnetClient.authenticate(username, password, username, correlationId);
+        AuthResult authResult = scoutnetClient.authenticate(username, password, username);
         assertTrue(authResult.isSuccess(), "Authentication should succeed");
         
         String token = authResult.getAuthResponse().getToken();
-        String profileJson1 = scoutnetClient.getProfileJson(token, correlationId);
-        String profileJson2 = scoutnetClient.getProfileJson(token, correlationId + "-2");
-        String rolesJson = scoutnetClient.getRolesJson(token, correlationId);
+        String profileJson1 = scoutnetClient.getProfileJson(token);
+        String profileJson2 = scoutnetClient.getProfileJson(token);
+        String rolesJson = scoutnetClient.getRolesJson(token);
         
         assertNotNull(profileJson1, "First profile JSON should not be null");
         assertNotNull(profileJson2, "Second profile JSON should not be null");
@@ -177,13 +173,10 @@ public class ScoutnetClientIT {
             return;
         }
 
-        String correlationId = "test-persistent-" + System.currentTimeMillis();
-
         // Authenticate with app_id to get a persistent (non-expiring) token
         AuthResult authResult = scoutnetClient.authenticate(
             username, password, username,
-            "scoutid-keycloak-test", "ScoutID", "Integration Test",
-            correlationId);
+            "scoutid-keycloak-test", "ScoutID", "Integration Test");
 
         assertNotNull(authResult, "Authentication result should not be null");
         assertTrue(authResult.isSuccess(), "Persistent token authentication should succeed");
@@ -193,7 +186,7 @@ public class ScoutnetClientIT {
         assertFalse(authResponse.getToken().isEmpty(), "Persistent token should not be empty");
 
         // Verify the persistent token works for profile fetch
-        Profile profile = scoutnetClient.getProfile(authResponse.getToken(), correlationId);
+        Profile profile = scoutnetClient.getProfile(authResponse.getToken());
         assertNotNull(profile, "Profile fetch with persistent token should succeed");
         assertTrue(profile.getMemberNo() > 0, "Member number should be positive");
 
@@ -206,24 +199,23 @@ public class ScoutnetClientIT {
             return;
         }
 
-        String correlationId = "test-refresh-" + System.currentTimeMillis();
-
         // Get a persistent token first
         AuthResult authResult = scoutnetClient.authenticate(
             username, password, username,
-            "scoutid-keycloak-test", "ScoutID", "Integration Test",
-            correlationId);
+            "scoutid-keycloak-test", "ScoutID", "Integration Test");
         assertTrue(authResult.isSuccess(), "Initial authentication should succeed");
 
         String originalToken = authResult.getAuthResponse().getToken();
 
         // Refresh the token
-        String refreshedToken = scoutnetClient.refreshToken(originalToken, correlationId);
+        AuthResult refreshResult = scoutnetClient.refreshToken(originalToken);
+        assertTrue(refreshResult.isSuccess(), "Token refresh should succeed");
+        String refreshedToken = refreshResult.getAuthResponse().getToken();
         assertNotNull(refreshedToken, "Refreshed token should not be null");
         assertFalse(refreshedToken.isEmpty(), "Refreshed token should not be empty");
 
         // Verify the refreshed token works
-        Profile profile = scoutnetClient.getProfile(refreshedToken, correlationId);
+        Profile profile = scoutnetClient.getProfile(refreshedToken);
         assertNotNull(profile, "Profile fetch with refreshed token should succeed");
 
         System.out.println("Token refresh successful. Original and refreshed tokens are " +
@@ -236,17 +228,15 @@ public class ScoutnetClientIT {
             return;
         }
 
-        String correlationId = "test-temp-" + System.currentTimeMillis();
-
         // Authenticate without app_id — should get a temporary (10 min) token
-        AuthResult authResult = scoutnetClient.authenticate(username, password, username, correlationId);
+        AuthResult authResult = scoutnetClient.authenticate(username, password, username);
         assertTrue(authResult.isSuccess(), "Temporary token authentication should succeed");
 
         String tempToken = authResult.getAuthResponse().getToken();
         assertNotNull(tempToken, "Temporary token should not be null");
 
         // Verify it works for profile fetch
-        Profile profile = scoutnetClient.getProfile(tempToken, correlationId);
+        Profile profile = scoutnetClient.getProfile(tempToken);
         assertNotNull(profile, "Profile fetch with temporary token should succeed");
 
         System.out.println("Temporary token (no app_id) works for profile fetch.");
@@ -254,7 +244,7 @@ public class ScoutnetClientIT {
 
     @Test
     void testFailedAuthentication() {
-        AuthResult result = scoutnetClient.authenticate("invalid-username", "bad-password", "invalid-username", "test-fail");
+        AuthResult result = scoutnetClient.authenticate("invalid-username", "bad-password", "invalid-username");
         assertNotNull(result, "Authentication result should not be null");
         assertFalse(result.isSuccess(), "Authentication with invalid credentials should fail");
         assertEquals(AuthResult.AuthError.INVALID_CREDENTIALS, result.getError(), "Should return invalid credentials error");
@@ -0,0 +1,237 @@
+package se.scouterna.keycloak.jpa;
+
+import jakarta.persistence.EntityExistsException;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceException;
+import jakarta.persistence.TypedQuery;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.UserModel;
+import se.scouterna.keycloak.testkit.InMemoryKeycloak;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GroupEmailReservationStoreTest {
+
+    private final InMemoryKeycloak keycloak = new InMemoryKeycloak("reservations");
+    private final ReservationTable table = new ReservationTable();
+    private KeycloakSession session;
+    private UserModel anna;
+    private UserModel other;
+
+    @BeforeEach
+    void setUp() {
+        keycloak.putProvider(JpaConnectionProvider.class, table.provider());
+        session = keycloak.newSession();
+        anna = session.users().addUser(keycloak.realm(), "anna");
+        other = session.users().addUser(keycloak.realm(), "other");
+    }
+
+    @Test
+    void isCandidate_baseAddress() {
+        assertTrue(GroupEmailReservationStore.isCandidate("anna.svensson@karen.se", "anna.svensson", "karen.se"));
+    }
+
+    @Test
+    void isCandidate_numberedAddress() {
+        assertTrue(GroupEmailReservationStore.isCandidate("anna.svensson12@karen.se", "anna.svensson", "karen.se"));
+    }
+
+    @Test
+    void isCandidate_ignoresCase() {
+        assertTrue(GroupEmailReservationStore.isCandidate("anna.svensson1@Karen.SE", "anna.svensson", "karen.se"));
+    }
+
+    @Test
+    void notCandidate_longerName() {
+        assertFalse(GroupEmailReservationStore.isCandidate("anna.svenssonberg@karen.se", "anna.svensson", "karen.se"));
+    }
+
+    @Test
+    void notCandidate_otherDomain() {
+        assertFalse(GroupEmailReservationStore.isCandidate("anna.svensson@annan.se", "anna.svensson", "karen.se"));
+    }
+
+    @Test
+    void reserve_firstFreeAddressThenKeepsIt() {
+        table.insert("anna.svensson@karen.se", other.getId(), "766");
+
+        assertEquals("anna.svensson1@karen.se", reserve(anna, null));
+        assertEquals("anna.svensson1@karen.se", reserve(anna, null));
+        assertEquals(2, table.rows.size());
+    }
+
+    @Test
+    void reserve_prefersCurrentAddressWhenFree() {
+        assertEquals("anna.svensson7@karen.se", reserve(anna, "anna.svensson7@karen.se"));
+    }
+
+    @Test
+    void reserve_collisionRetriesWithNextAddress() {
+        table.beforeFlush = rows -> {
+            table.beforeFlush = null;
+            table.insert("anna.svensson@karen.se", other.getId(), "766");
+        };
+
+        assertEquals("anna.svensson1@karen.se", reserve(anna, null));
+        assertEquals(2, table.flushes.get());
+    }
+
+    @Test
+    void reserve_givesUpAfterRepeatedCollisions() {
+        AtomicInteger racer = new AtomicInteger();
+        table.beforeFlush = rows -> table.insert("anna.svensson" + suffix(racer.getAndIncrement()) + "@karen.se",
+            other.getId(), "766");
+
+        assertNull(reserve(anna, null));
+        assertEquals(5, table.flushes.get());
+    }
+
+    @Test
+    void reserve_databaseFailureIsNotRetried() {
+        table.beforeFlush = rows -> {
+            throw new PersistenceException("connection refused");
+        };
+
+        assertNull(reserve(anna, null));
+        assertEquals(1, table.flushes.get());
+    }
+
+    @Test
+    void release_freesAddressForTheNextReservation() {
+        assertEquals("anna.svensson@karen.se", reserve(anna, null));
+
+        new GroupEmailReservationStore(session).release(keycloak.realm(), anna, List.of("766"));
+
+        assertTrue(table.rows.isEmpty());
+        assertEquals("anna.svensson@karen.se", new GroupEmailReservationStore(session)
+            .reserve(keycloak.realm(), other, "766", "anna.svensson", "karen.se", null));
+    }
+
+    @Test
+    void isConstraintViolation_walksCauses() {
+        assertTrue(GroupEmailReservationStore.isConstraintViolation(
+            new RuntimeException(new EntityExistsException("UK_SCOUTNET_GROUP_EMAIL"))));
+        assertFalse(GroupEmailReservationStore.isConstraintViolation(new PersistenceException("timeout")));
+    }
+
+    private String reserve(UserModel user, String currentEmail) {
+        return new GroupEmailReservationStore(session)
+            .reserve(keycloak.realm(), user, "766", "anna.svensson", "karen.se", currentEmail);
+    }
+
+    private static String suffix(int counter) {
+        return counter == 0 ? "" : String.valueOf(counter);
+    }
+
+    /**
+     * The SCOUTNET_GROUP_EMAIL table for the named queries the store uses, with the unique key
+     * on (realm, email) checked on flush.
+     */
+    private static final class ReservationTable {
+        final List<GroupEmailReservationEntity> rows = new CopyOnWriteArrayList<>();
+        final List<GroupEmailReservationEntity> pending = new CopyOnWriteArrayList<>();
+        final AtomicInteger flushes = new AtomicInteger();
+        volatile Consumer<List<GroupEmailReservationEntity>> beforeFlush;
+
+        void insert(String email, String userId, String groupId) {
+            GroupEmailReservationEntity entity = new GroupEmailReservationEntity();
+            entity.setRealmId("realm-reservations");
+            entity.setEmail(email);
+            entity.setUserId(userId);
+            entity.setGroupId(groupId);
+            rows.add(entity);
+        }
+
+        JpaConnectionProvider provider() {
+            EntityManager em = proxy(EntityManager.class, (method, args) -> switch (method) {
+                case "createNamedQuery" -> query((String) args[0], new HashMap<>());
+                case "persist" -> pending.add((GroupEmailReservationEntity) args[0]);
+                case "flush" -> {
+                    flushes.incrementAndGet();
+                    try {
+                        if (beforeFlush != null) beforeFlush.accept(rows);
+                        for (GroupEmailReservationEntity entity : pending) {
+                            if (rows.stream().anyMatch(row -> row.getRealmId().equals(entity.getRealmId())
+                                    && row.getEmail().equals(entity.getEmail()))) {
+                                throw new EntityExistsException("UK_SCOUTNET_GROUP_EMAIL");
+                            }
+                            rows.add(entity);
+                        }
+                    } finally {
+                        pending.clear();
+                    }
+                    yield null;
+                }
+                default -> throw new UnsupportedOperationException("EntityManager." + method);
+            });
+            return proxy(JpaConnectionProvider.class, (method, args) -> switch (method) {
+                case "getEntityManager" -> em;
+                case "close" -> null;
+                default -> throw new UnsupportedOperationException("JpaConnectionProvider." + method);
+            });
+        }
+
+        private TypedQuery<?> query(String name, Map<String, Object> params) {
+            TypedQuery<?>[] self = new TypedQuery<?>[1];
+            self[0] = proxy(TypedQuery.class, (method, args) -> switch (method) {
+                case "setParameter" -> {
+                    params.put((String) args[0], args[1]);
+                    yield self[0];
+                }
+                case "getResultStream" -> select(name, params).stream();
+                case "getResultList" -> select(name, params);
+                case "executeUpdate" -> {
+                    List<GroupEmailReservationEntity> matches = rows.stream().filter(byUserAndGroup(params)).toList();
+                    rows.removeAll(matches);
+                    yield matches.size();
+                }
+                default -> throw new UnsupportedOperationException("TypedQuery." + method);
+            });
+            return self[0];
+        }
+
+        private List<?> select(String name, Map<String, Object> params) {
+            return switch (name) {
+                case "scoutnetGroupEmailByUserAndGroup" -> rows.stream().filter(byUserAndGroup(params)).toList();
+                case "scoutnetGroupEmailsLike" -> {
+                    String pattern = ((String) params.get("pattern")).replace("!", "");
+                    String prefix = pattern.substring(0, pattern.indexOf('%'));
+                    String suffix = pattern.substring(pattern.indexOf('%') + 1);
+                    yield rows.stream()
+                        .map(GroupEmailReservationEntity::getEmail)
+                        .filter(email -> email.startsWith(prefix) && email.endsWith(suffix))
+                        .toList();
+                }
+                default -> throw new UnsupportedOperationException(name);
+            };
+        }
+
+        private static Predicate<GroupEmailReservationEntity> byUserAndGroup(Map<String, Object> params) {
+            return row -> row.getRealmId().equals(params.get("realmId")) && row.getUserId().equals(params.get("userId"))
+                && row.getGroupId().equals(params.get("groupId"));
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> T proxy(Class<T> type, Handler handler) {
+            return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+                (proxy, method, args) -> handler.handle(method.getName(), args != null ? args : new Object[0]));
+        }
+    }
+
+    @FunctionalInterface
+    private interface Handler {
+        Object handle(String method, Object[] args);
+    }
+}
@@ -0,0 +1,42 @@
+package se.scouterna.keycloak.testkit;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Bytes allocated by the current thread while a block runs, from the HotSpot
+ * {@code com.sun.management.ThreadMXBean}.
+ */
+public final class AllocationMeter {
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private AllocationMeter() {
+    }
+
+    public static boolean isSupported() {
+        return THREADS.isThreadAllocatedMemorySupported() && THREADS.isThreadAllocatedMemoryEnabled();
+    }
+
+    /**
+     * The lowest allocation of {@code runs} executions of the block, after {@code warmups}
+     * unmeasured ones; the minimum filters out one-off class loading and JIT allocations.
+     */
+    public static long minBytes(int warmups, int runs, Runnable block) {
+        for (int i = 0; i < warmups; i++) {
+            block.run();
+        }
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < runs; i++) {
+            min = Math.min(min, bytes(block));
+        }
+        return min;
+    }
+
+    public static long bytes(Runnable block) {
+        long threadId = Thread.currentThread().threadId();
+        long before = THREADS.getThreadAllocatedBytes(threadId);
+        block.run();
+        return THREADS.getThreadAllocatedBytes(threadId) - before;
+    }
+}
@@ -0,0 +1,529 @@
+package se.scouterna.keycloak.testkit;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.TypedQuery;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.credential.CredentialModel;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.GroupProvider;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransaction;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.models.SingleUseObjectProvider;
+import org.keycloak.models.SubjectCredentialManager;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.provider.Provider;
+import org.keycloak.tracing.NoopTracingProvider;
+import org.keycloak.tracing.TracingProvider;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Stream;
+
+/**
+ * Thread-safe in-memory stand-in for the parts of the Keycloak model the provider touches
+ * during a login: one realm with its groups (also through the group provider) and users,
+ * user credentials, the single-use object store and a JPA entity manager whose queries return
+ * nothing. Committing or rolling back a session's transaction completes the transactions
+ * enlisted after completion.
+ *
+ * Model objects are {@link Proxy} instances with one proxy per user and group, so identity
+ * comparisons work. Default interface methods run as declared; any other method the
+ * provider starts using fails with UnsupportedOperationException naming it. Calls on the
+ * model types are recorded by {@link ModelCallCounter} while it counts on the calling thread.
+ */
+public class InMemoryKeycloak {
+
+    private static final Object UNHANDLED = new Object();
+
+    /** The model types whose calls {@link ModelCallCounter} records. */
+    private static final Set<Class<?>> COUNTED_TYPES = Set.of(KeycloakSession.class, RealmModel.class, UserModel.class,
+        GroupModel.class, SubjectCredentialManager.class, UserProvider.class, RealmProvider.class, GroupProvider.class,
+        SingleUseObjectProvider.class, EntityManager.class);
+
+    private final String realmName;
+    private final RealmModel realm;
+    private final Map<String, UserState> usersById = new ConcurrentHashMap<>();
+    private final Map<String, UserState> usersByName = new ConcurrentHashMap<>();
+    private final Map<String, GroupState> groupsById = new ConcurrentHashMap<>();
+    private final Map<String, String> realmAttributes = new ConcurrentHashMap<>();
+    private final Map<String, SingleUseEntry> singleUseObjects = new ConcurrentHashMap<>();
+    private final UserProvider userProvider;
+    private final RealmProvider realmProvider;
+    private final GroupProvider groupProvider;
+    private final SingleUseObjectProvider singleUseObjectProvider;
+    private final JpaConnectionProvider jpaConnectionProvider;
+    private final KeycloakSessionFactory sessionFactory;
+    private final Map<Class<?>, Object> providers = new ConcurrentHashMap<>();
+
+    private record SingleUseEntry(Map<String, String> notes, long expiresAt) {
+    }
+
+    @FunctionalInterface
+    private interface Handler {
+        /**
+         * @return the result, or {@link #UNHANDLED} to fall back to the default method
+         */
+        Object handle(String method, Object[] args) throws Throwable;
+    }
+
+    public InMemoryKeycloak(String realmName) {
+        this.realmName = realmName;
+        this.realm = proxy(RealmModel.class, this::handleRealm);
+        this.userProvider = proxy(UserProvider.class, this::handleUsers);
+        this.realmProvider = proxy(RealmProvider.class, (method, args) -> switch (method) {
+            case "getRealm", "getRealmByName" -> realm;
+            case "getRealmsStream" -> Stream.of(realm);
+            default -> UNHANDLED;
+        });
+        this.groupProvider = proxy(GroupProvider.class, this::handleGroups);
+        this.singleUseObjectProvider = proxy(SingleUseObjectProvider.class, this::handleSingleUseObjects);
+        EntityManager entityManager = proxy(EntityManager.class, (method, args) -> switch (method) {
+            case "createQuery", "createNamedQuery", "createNativeQuery" -> emptyQuery();
+            case "flush", "persist" -> null;
+            case "find" -> null;
+            default -> UNHANDLED;
+        });
+        this.jpaConnectionProvider = proxy(JpaConnectionProvider.class, (method, args) -> switch (method) {
+            case "getEntityManager" -> entityManager;
+            case "close" -> null;
+            default -> UNHANDLED;
+        });
+        providers.put(JpaConnectionProvider.class, jpaConnectionProvider);
+        providers.put(TracingProvider.class, new NoopTracingProvider());
+        this.sessionFactory = proxy(KeycloakSessionFactory.class, (method, args) -> switch (method) {
+            case "create" -> newSession();
+            case "getProviderFactoriesStream" -> Stream.empty();
+            default -> UNHANDLED;
+        });
+    }
+
+    public RealmModel realm() {
+        return realm;
+    }
+
+    /**
+     * Replaces the provider sessions return for the type, e.g. a JpaConnectionProvider with real tables.
+     */
+    public <T extends Provider> void putProvider(Class<T> type, T provider) {
+        providers.put(type, provider);
+    }
+
+    /**
+     * A new session over the shared model, with its own session attributes, like one request.
+     */
+    public KeycloakSession newSession() {
+        Map<String, Object> attributes = new HashMap<>();
+        KeycloakContext context = proxy(KeycloakContext.class, (method, args) -> switch (method) {
+            case "getRealm" -> realm;
+            case "getClient", "getAuthenticationSession" -> null;
+            case "setRealm", "setClient", "setAuthenticationSession" -> null;
+            default -> UNHANDLED;
+        });
+        boolean[] rollbackOnly = new boolean[1];
+        List<KeycloakTransaction> afterCompletion = new ArrayList<>();
+        KeycloakTransactionManager transactionManager = proxy(KeycloakTransactionManager.class, (method, args) -> switch (method) {
+            case "begin", "enlist", "enlistPrepare" -> null;
+            case "enlistAfterCompletion" -> {
+                KeycloakTransaction transaction = (KeycloakTransaction) args[0];
+                transaction.begin();
+                afterCompletion.add(transaction);
+                yield null;
+            }
+            case "commit", "rollback" -> {
+                boolean commit = method.equals("commit") && !rollbackOnly[0];
+                List<KeycloakTransaction> completed = List.copyOf(afterCompletion);
+                afterCompletion.clear();
+                completed.forEach(commit ? KeycloakTransaction::commit : KeycloakTransaction::rollback);
+                yield null;
+            }
+            case "setRollbackOnly" -> rollbackOnly[0] = true;
+            case "getRollbackOnly" -> rollbackOnly[0];
+            case "isActive" -> true;
+            default -> UNHANDLED;
+        });
+        return proxy(KeycloakSession.class, (method, args) -> switch (method) {
+            case "getAttribute" -> attributes.get((String) args[0]);
+            case "setAttribute" -> {
+                attributes.put((String) args[0], args[1]);
+                yield null;
+            }
+            case "removeAttribute" -> attributes.remove((String) args[0]);
+            case "users" -> userProvider;
+            case "realms" -> realmProvider;
+            case "groups" -> groupProvider;
+            case "singleUseObjects" -> singleUseObjectProvider;
+            case "getContext" -> context;
+            case "getTransactionManager" -> transactionManager;
+            case "getKeycloakSessionFactory" -> sessionFactory;
+            case "getProvider" -> args.length == 1 ? providers.get((Class<?>) args[0]) : null;
+            case "close" -> null;
+            default -> UNHANDLED;
+        });
+    }
+
+    public UserModel getUserByUsername(String username) {
+        UserState state = usersByName.get(username.toLowerCase(Locale.ROOT));
+        return state != null ? state.model : null;
+    }
+
+    public int userCount() {
+        return usersById.size();
+    }
+
+    public int groupCount() {
+        return groupsById.size();
+    }
+
+    private Object handleRealm(String method, Object[] args) {
+        return switch (method) {
+            case "getId" -> "realm-" + realmName;
+            case "getName", "getDisplayName" -> realmName;
+            case "isRememberMe" -> true;
+            case "isLoginWithEmailAllowed", "isDuplicateEmailsAllowed", "isEventsEnabled", "isAdminEventsEnabled" -> false;
+            case "getEventsListenersStream", "getEnabledEventTypesStream", "getAuthenticatorConfigsStream",
+                 "getAuthenticationFlowsStream" -> Stream.empty();
+            case "getSsoSessionIdleTimeout", "getSsoSessionIdleTimeoutRememberMe" -> 1800;
+            case "getAttribute" -> args.length == 1 ? realmAttributes.get((String) args[0]) : UNHANDLED;
+            case "getAttributes" -> Map.copyOf(realmAttributes);
+            case "setAttribute" -> {
+                if (args[1] == null) realmAttributes.remove((String) args[0]);
+                else realmAttributes.put((String) args[0], String.valueOf(args[1]));
+                yield null;
+            }
+            case "removeAttribute" -> {
+                realmAttributes.remove((String) args[0]);
+                yield null;
+            }
+            case "getGroupsStream" -> args.length == 0 ? groupsById.values().stream().map(g -> g.model) : UNHANDLED;
+            case "getTopLevelGroupsStream" -> args.length == 0
+                ? groupsById.values().stream().filter(g -> g.parentId == null).map(g -> g.model) : UNHANDLED;
+            case "getGroupById" -> {
+                GroupState group = groupsById.get((String) args[0]);
+                yield group != null ? group.model : null;
+            }
+            case "createGroup" -> createGroup(args);
+            case "removeGroup" -> groupsById.remove(((GroupModel) args[0]).getId()) != null;
+            default -> UNHANDLED;
+        };
+    }
+
+    /**
+     * Like the unique sibling-name constraint in the database, a concurrent create of the same
+     * group returns the one that won.
+     */
+    private synchronized GroupModel createGroup(Object[] args) {
+        String id = null;
+        String name;
+        GroupModel parent = null;
+        if (args.length == 3) {
+            id = (String) args[0];
+            name = (String) args[1];
+            parent = (GroupModel) args[2];
+        } else if (args.length == 2 && args[1] instanceof GroupModel toParent) {
+            name = (String) args[0];
+            parent = toParent;
+        } else if (args.length == 2) {
+            id = (String) args[0];
+            name = (String) args[1];
+        } else {
+            name = (String) args[0];
+        }
+        String parentId = parent != null ? parent.getId() : null;
+        for (GroupState existing : groupsById.values()) {
+            if (name.equals(existing.name) && Objects.equals(parentId, existing.parentId)) {
+                return existing.model;
+            }
+        }
+        GroupState group = new GroupState(id != null ? id : UUID.randomUUID().toString(), name, parentId);
+        groupsById.put(group.id, group);
+        return group.model;
+    }
+
+    private Object handleGroups(String method, Object[] args) {
+        return switch (method) {
+            case "getGroupById" -> {
+                GroupState group = groupsById.get((String) args[1]);
+                yield group != null ? group.model : null;
+            }
+            case "getTopLevelGroupsStream" -> {
+                // The shorter overloads are default methods that end up here
+                if (args.length != 5) yield UNHANDLED;
+                if (args[1] != null && !((String) args[1]).isEmpty()) throw new UnsupportedOperationException("group search");
+                Stream<GroupModel> groups = groupsById.values().stream().filter(g -> g.parentId == null).map(g -> g.model);
+                yield page(groups, (Integer) args[3], (Integer) args[4]);
+            }
+            case "removeGroup" -> groupsById.remove(((GroupModel) args[1]).getId()) != null;
+            case "close" -> null;
+            default -> UNHANDLED;
+        };
+    }
+
+    private Object handleUsers(String method, Object[] args) {
+        return switch (method) {
+            case "getUserByUsername" -> getUserByUsername((String) args[1]);
+            case "getUserByEmail" -> usersById.values().stream()
+                .filter(u -> args[1].equals(u.email)).map(u -> u.model).findFirst().orElse(null);
+            case "getUserById" -> {
+                UserState user = usersById.get((String) args[1]);
+                yield user != null ? user.model : null;
+            }
+            case "addUser" -> {
+                String username = (String) (args.length == 2 ? args[1] : args[2]);
+                String id = args.length > 2 && args[1] != null ? (String) args[1] : UUID.randomUUID().toString();
+                UserState user = new UserState(id, username);
+                UserState existing = usersByName.putIfAbsent(user.username, user);
+                if (existing != null) yield existing.model;
+                usersById.put(id, user);
+                yield user.model;
+            }
+            case "getGroupMembersStream" -> {
+                String groupId = ((GroupModel) args[1]).getId();
+                Stream<UserModel> members = usersById.values().stream().filter(u -> u.groupIds.contains(groupId)).map(u -> u.model);
+                yield args.length == 4 ? page(members, (Integer) args[2], (Integer) args[3]) : members;
+            }
+            case "close" -> null;
+            default -> UNHANDLED;
+        };
+    }
+
+    private Object handleSingleUseObjects(String method, Object[] args) {
+        String key = (String) args[0];
+        long now = System.currentTimeMillis();
+        SingleUseEntry entry = singleUseObjects.get(key);
+        if (entry != null && entry.expiresAt() <= now) {
+            singleUseObjects.remove(key, entry);
+            entry = null;
+        }
+        return switch (method) {
+            case "put" -> {
+                singleUseObjects.put(key, new SingleUseEntry(notes(args[2]), now + (long) args[1] * 1000));
+                yield null;
+            }
+            case "get" -> entry != null ? entry.notes() : null;
+            case "remove" -> {
+                SingleUseEntry removed = singleUseObjects.remove(key);
+                yield removed != null ? removed.notes() : null;
+            }
+            case "replace" -> entry != null && singleUseObjects.replace(key, entry,
+                new SingleUseEntry(notes(args[1]), entry.expiresAt()));
+            case "putIfAbsent" -> entry == null
+                && singleUseObjects.putIfAbsent(key, new SingleUseEntry(Map.of(), now + (long) args[1] * 1000)) == null;
+            case "contains" -> entry != null;
+            default -> UNHANDLED;
+        };
+    }
+
+    private static <T> Stream<T> page(Stream<T> stream, Integer first, Integer max) {
+        if (first != null && first > 0) stream = stream.skip(first);
+        return max != null && max >= 0 ? stream.limit(max) : stream;
+    }
+
+    private static Map<String, String> notes(Object notes) {
+        Map<String, String> copy = new HashMap<>();
+        ((Map<?, ?>) notes).forEach((key, value) -> copy.put((String) key, (String) value));
+        return Map.copyOf(copy);
+    }
+
+    private TypedQuery<?> emptyQuery() {
+        TypedQuery<?>[] self = new TypedQuery<?>[1];
+        self[0] = proxy(TypedQuery.class, (method, args) -> switch (method) {
+            case "setParameter", "setMaxResults", "setFirstResult", "setHint", "setLockMode", "setFlushMode" -> self[0];
+            case "executeUpdate" -> 0;
+            case "getResultList" -> List.of();
+            case "getResultStream" -> Stream.empty();
+            default -> UNHANDLED;
+        });
+        return self[0];
+    }
+
+    private final class GroupState {
+        final String id;
+        final String parentId;
+        final Map<String, List<String>> attributes = new ConcurrentHashMap<>();
+        final GroupModel model;
+        volatile String name;
+
+        GroupState(String id, String name, String parentId) {
+            this.id = id;
+            this.name = name;
+            this.parentId = parentId;
+            this.model = proxy(GroupModel.class, this::handle);
+        }
+
+        private Object handle(String method, Object[] args) {
+            return switch (method) {
+                case "getId" -> id;
+                case "getName" -> name;
+                case "setName" -> {
+                    name = (String) args[0];
+                    yield null;
+                }
+                case "getParentId" -> parentId;
+                case "getParent" -> {
+                    GroupState parent = parentId != null ? groupsById.get(parentId) : null;
+                    yield parent != null ? parent.model : null;
+                }
+                case "getSubGroupsStream" -> args.length == 0
+                    ? groupsById.values().stream().filter(g -> id.equals(g.parentId)).map(g -> g.model) : UNHANDLED;
+                default -> handleAttributes(attributes, method, args);
+            };
+        }
+    }
+
+    private final class UserState {
+        final String id;
+        final String username;
+        final long createdTimestamp = System.currentTimeMillis();
+        final Map<String, List<String>> attributes = new ConcurrentHashMap<>();
+        final Set<String> groupIds = ConcurrentHashMap.newKeySet();
+        final List<CredentialModel> credentials = new CopyOnWriteArrayList<>();
+        final UserModel model;
+        final SubjectCredentialManager credentialManager;
+        volatile String firstName;
+        volatile String lastName;
+        volatile String email;
+        volatile boolean emailVerified;
+        volatile boolean enabled;
+
+        UserState(String id, String username) {
+            this.id = id;
+            this.username = username.toLowerCase(Locale.ROOT);
+            this.model = proxy(UserModel.class, this::handle);
+            this.credentialManager = proxy(SubjectCredentialManager.class, this::handleCredentials);
+        }
+
+        private Object handle(String method, Object[] args) {
+            return switch (method) {
+                case "getId" -> id;
+                case "getUsername" -> username;
+                case "getCreatedTimestamp" -> createdTimestamp;
+                case "isEnabled" -> enabled;
+                case "setEnabled" -> {
+                    enabled = (boolean) args[0];
+                    yield null;
+                }
+                case "getFirstName" -> firstName;
+                case "setFirstName" -> {
+                    firstName = (String) args[0];
+                    yield null;
+                }
+                case "getLastName" -> lastName;
+                case "setLastName" -> {
+                    lastName = (String) args[0];
+                    yield null;
+                }
+                case "getEmail" -> email;
+                case "setEmail" -> {
+                    email = (String) args[0];
+                    yield null;
+                }
+                case "isEmailVerified" -> emailVerified;
+                case "setEmailVerified" -> {
+                    emailVerified = (boolean) args[0];
+                    yield null;
+                }
+                case "getGroupsStream" -> args.length == 0 ? groupIds.stream()
+                    .map(groupsById::get).filter(g -> g != null).map(g -> g.model) : UNHANDLED;
+                case "isMemberOf" -> groupIds.contains(((GroupModel) args[0]).getId());
+                case "joinGroup" -> {
+                    groupIds.add(((GroupModel) args[0]).getId());
+                    yield null;
+                }
+                case "leaveGroup" -> {
+                    groupIds.remove(((GroupModel) args[0]).getId());
+                    yield null;
+                }
+                case "credentialManager" -> credentialManager;
+                default -> handleAttributes(attributes, method, args);
+            };
+        }
+
+        private Object handleCredentials(String method, Object[] args) {
+            return switch (method) {
+                case "getStoredCredentialsByTypeStream" -> credentials.stream()
+                    .filter(c -> args[0].equals(c.getType()));
+                case "createStoredCredential" -> {
+                    CredentialModel created = (CredentialModel) args[0];
+                    created.setId(UUID.randomUUID().toString());
+                    credentials.add(created);
+                    yield created;
+                }
+                case "updateStoredCredential" -> {
+                    CredentialModel updated = (CredentialModel) args[0];
+                    credentials.replaceAll(c -> c.getId().equals(updated.getId()) ? updated : c);
+                    yield null;
+                }
+                case "removeStoredCredentialById" -> credentials.removeIf(c -> c.getId().equals(args[0]));
+                default -> UNHANDLED;
+            };
+        }
+    }
+
+    private static Object handleAttributes(Map<String, List<String>> attributes, String method, Object[] args) {
+        return switch (method) {
+            case "getFirstAttribute" -> {
+                List<String> values = attributes.get((String) args[0]);
+                yield values != null && !values.isEmpty() ? values.get(0) : null;
+            }
+            case "getAttributeStream" -> attributes.getOrDefault((String) args[0], List.of()).stream();
+            case "getAttributes" -> new HashMap<>(attributes);
+            case "setSingleAttribute" -> {
+                attributes.put((String) args[0], List.of((String) args[1]));
+                yield null;
+            }
+            case "setAttribute" -> {
+                attributes.put((String) args[0], ((List<?>) args[1]).stream().map(String.class::cast).toList());
+                yield null;
+            }
+            case "removeAttribute" -> {
+                attributes.remove((String) args[0]);
+                yield null;
+            }
+            default -> UNHANDLED;
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, Handler handler) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> {
+            Object[] arguments = args != null ? args : new Object[0];
+            switch (method.getName()) {
+                case "equals":
+                    if (arguments.length == 1) return proxy == arguments[0];
+                    break;
+                case "hashCode":
+                    if (arguments.length == 0) return System.identityHashCode(proxy);
+                    break;
+                case "toString":
+                    if (arguments.length == 0) return type.getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+                    break;
+                default:
+            }
+            boolean counted = COUNTED_TYPES.contains(type) && ModelCallCounter.enter(type, method.getName());
+            try {
+                Object result = handler.handle(method.getName(), arguments);
+                if (result != UNHANDLED) return result;
+                if (method.isDefault()) return InvocationHandler.invokeDefault(proxy, method, args);
+                throw new UnsupportedOperationException(type.getSimpleName() + "." + method.getName());
+            } finally {
+                if (counted) ModelCallCounter.exit();
+            }
+        });
+    }
+}
@@ -0,0 +1,215 @@
+package se.scouterna.keycloak.testkit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import se.scouterna.keycloak.client.ScoutnetJson;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+
+/**
+ * Local stand-in for the Scoutnet API endpoints the provider calls, on
+ * {@code com.sun.net.httpserver.HttpServer} as described in docs/e2e-test-plan.md.
+ *
+ * Usernames are member numbers; the password {@value #WRONG_PASSWORD} is rejected. Tokens
+ * encode the member number, so profile and roles requests are answered for the right member.
+ * Every request is delayed by a sample from the configured latency model, fails with a 500 at
+ * the configured error rate and is answered with 429 while a rate-limit burst is active.
+ */
+public class MockScoutnetServer implements AutoCloseable {
+
+    public static final String WRONG_PASSWORD = "wrong";
+
+    /**
+     * The raw profile and roles responses for one member.
+     */
+    public record Responses(String profileJson, String rolesJson) {
+    }
+
+    /**
+     * @param latency         response delay model, see {@link Latency#parse}
+     * @param errorRate       share of requests answered with 500, 0-1
+     * @param burstEveryMillis how often a 429 burst starts, 0 for none
+     * @param burstLengthMillis how long each 429 burst lasts
+     */
+    public record Behaviour(Latency latency, double errorRate, long burstEveryMillis, long burstLengthMillis) {
+
+        public static Behaviour healthy() {
+            return new Behaviour(Latency.parse("fixed:0"), 0, 0, 0);
+        }
+
+        boolean inBurst(long elapsedMillis) {
+            return burstEveryMillis > 0 && elapsedMillis % burstEveryMillis < burstLengthMillis;
+        }
+    }
+
+    /**
+     * Response delay in milliseconds: {@code fixed:<ms>}, {@code uniform:<min>-<max>} or
+     * {@code lognormal:<median>,<p99>}.
+     */
+    public record Latency(String kind, double a, double b) {
+
+        public static Latency parse(String spec) {
+            String[] parts = spec.split(":", 2);
+            String[] values = parts.length > 1 ? parts[1].split("[-,]") : new String[] {"0"};
+            double a = Double.parseDouble(values[0].trim());
+            double b = values.length > 1 ? Double.parseDouble(values[1].trim()) : a;
+            return switch (parts[0]) {
+                case "fixed", "uniform", "lognormal" -> new Latency(parts[0], a, b);
+                default -> throw new IllegalArgumentException("Unknown latency model: " + spec);
+            };
+        }
+
+        long sampleMillis() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            return switch (kind) {
+                case "uniform" -> (long) (a + random.nextDouble() * (b - a));
+                // 2.326 is the standard normal 99th percentile
+                case "lognormal" -> (long) (a * Math.exp(random.nextGaussian() * Math.log(b / a) / 2.326));
+                default -> (long) a;
+            };
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final IntFunction<Responses> responses;
+    private final Map<Integer, Responses> responseCache = new ConcurrentHashMap<>();
+    private final long startedAt = System.currentTimeMillis();
+    private final AtomicLong tokenCounter = new AtomicLong();
+    private final Map<String, LongAdder> requestCounts = new ConcurrentHashMap<>();
+    private final Map<Integer, LongAdder> statusCounts = new ConcurrentHashMap<>();
+    private volatile Behaviour behaviour;
+
+    public MockScoutnetServer(IntFunction<Responses> responses, Behaviour behaviour) throws IOException {
+        this.responses = responses;
+        this.behaviour = behaviour;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        server.setExecutor(executor);
+        server.createContext("/api/authenticate", exchange -> handle(exchange, this::authenticate));
+        server.createContext("/api/refresh_token", exchange -> handle(exchange, this::refreshToken));
+        server.createContext("/api/get/profile", exchange -> handle(exchange, e -> withMember(e, r -> r.profileJson())));
+        server.createContext("/api/get/user_roles", exchange -> handle(exchange, e -> withMember(e, r -> r.rolesJson())));
+        server.start();
+    }
+
+    public String baseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public void setBehaviour(Behaviour behaviour) {
+        this.behaviour = behaviour;
+    }
+
+    /**
+     * Requests received per path, e.g. {@code /api/get/profile}.
+     */
+    public Map<String, Long> requestCounts() {
+        Map<String, Long> counts = new java.util.TreeMap<>();
+        requestCounts.forEach((path, count) -> counts.put(path, count.sum()));
+        return counts;
+    }
+
+    public Map<Integer, Long> statusCounts() {
+        Map<Integer, Long> counts = new java.util.TreeMap<>();
+        statusCounts.forEach((status, count) -> counts.put(status, count.sum()));
+        return counts;
+    }
+
+    public long totalRequests() {
+        return requestCounts.values().stream().mapToLong(LongAdder::sum).sum();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private record Reply(int status, String body) {
+    }
+
+    @FunctionalInterface
+    private interface Endpoint {
+        Reply handle(HttpExchange exchange) throws IOException;
+    }
+
+    private void handle(HttpExchange exchange, Endpoint endpoint) throws IOException {
+        requestCounts.computeIfAbsent(exchange.getRequestURI().getPath(), path -> new LongAdder()).increment();
+        Behaviour current = behaviour;
+        try {
+            long delay = current.latency().sampleMillis();
+            if (delay > 0) Thread.sleep(delay);
+
+            Reply reply;
+            if (current.inBurst(System.currentTimeMillis() - startedAt)) {
+                reply = new Reply(429, "{\"error\":\"Too many requests\"}");
+            } else if (current.errorRate() > 0 && ThreadLocalRandom.current().nextDouble() < current.errorRate()) {
+                reply = new Reply(500, "{\"error\":\"Internal error\"}");
+            } else {
+                reply = endpoint.handle(exchange);
+            }
+            send(exchange, reply);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            exchange.close();
+        }
+    }
+
+    private void send(HttpExchange exchange, Reply reply) throws IOException {
+        statusCounts.computeIfAbsent(reply.status(), status -> new LongAdder()).increment();
+        byte[] body = reply.body().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(reply.status(), body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private Reply authenticate(HttpExchange exchange) throws IOException {
+        Map<?, ?> payload = ScoutnetJson.TREE_READER.forType(Map.class).readValue(exchange.getRequestBody());
+        Object username = payload.get("username");
+        if (username == null || WRONG_PASSWORD.equals(payload.get("password")) || !String.valueOf(username).matches("\\d+")) {
+            return new Reply(401, "{\"error\":\"Invalid username or password\"}");
+        }
+        return new Reply(200, tokenResponse(Integer.parseInt(String.valueOf(username))));
+    }
+
+    private Reply refreshToken(HttpExchange exchange) {
+        Integer memberNo = memberNo(exchange);
+        return memberNo != null ? new Reply(200, tokenResponse(memberNo)) : new Reply(401, "{\"error\":\"Invalid token\"}");
+    }
+
+    private Reply withMember(HttpExchange exchange, java.util.function.Function<Responses, String> body) {
+        Integer memberNo = memberNo(exchange);
+        if (memberNo == null) return new Reply(401, "{\"error\":\"Invalid token\"}");
+        return new Reply(200, body.apply(responseCache.computeIfAbsent(memberNo, responses::apply)));
+    }
+
+    private String tokenResponse(int memberNo) {
+        return "{\"token\":\"token-" + memberNo + "-" + tokenCounter.incrementAndGet()
+            + "\",\"member\":{\"member_no\":" + memberNo + "}}";
+    }
+
+    private static Integer memberNo(HttpExchange exchange) {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null || !authorization.startsWith("Bearer token-")) return null;
+        String token = authorization.substring("Bearer token-".length());
+        int dash = token.indexOf('-');
+        try {
+            return Integer.parseInt(dash > 0 ? token.substring(0, dash) : token);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package se.scouterna.keycloak.testkit;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+/**
+ * Counts the calls the provider makes on {@link InMemoryKeycloak} model objects while a block
+ * runs on the current thread, grouped by {@link Kind} and by {@code Interface.method}.
+ *
+ * Only the outermost call is counted: a default method such as
+ * {@code UserModel.getFirstAttribute} is one read, not one plus the calls it delegates to.
+ */
+public final class ModelCallCounter {
+
+    public enum Kind {
+        /** Single lookups: getters, {@code getUserById}, {@code isMemberOf}, session attributes. */
+        READ,
+        /** Anything that changes the model: setters, joins, creates, removes, credential updates. */
+        WRITE,
+        /** Methods returning a stream of model objects, e.g. {@code getGroupsStream}, {@code getSubGroupsStream}. */
+        STREAM_SCAN,
+        /** {@code searchFor...Attribute...} lookups, which are indexed queries in the database. */
+        ATTRIBUTE_SEARCH,
+        /** JPA queries created through the entity manager. */
+        QUERY
+    }
+
+    /**
+     * Calls made during one measured block.
+     */
+    public record Counts(Map<Kind, Long> byKind, Map<String, Long> byMethod) {
+
+        public long get(Kind kind) {
+            return byKind.getOrDefault(kind, 0L);
+        }
+
+        public long calls(String method) {
+            return byMethod.getOrDefault(method, 0L);
+        }
+
+        @Override
+        public String toString() {
+            return byKind + " " + byMethod;
+        }
+    }
+
+    /**
+     * A measured block's result together with the calls it made.
+     */
+    public record Measured<T>(T result, Counts counts) {
+    }
+
+    private static final ThreadLocal<Recording> CURRENT = new ThreadLocal<>();
+
+    private static final class Recording {
+        final Map<String, long[]> calls = new TreeMap<>();
+        int depth;
+    }
+
+    private ModelCallCounter() {
+    }
+
+    public static Counts count(Runnable block) {
+        return count(() -> {
+            block.run();
+            return null;
+        }).counts();
+    }
+
+    public static <T> Measured<T> count(Supplier<T> block) {
+        Recording previous = CURRENT.get();
+        Recording recording = new Recording();
+        CURRENT.set(recording);
+        try {
+            T result = block.get();
+            return new Measured<>(result, toCounts(recording));
+        } finally {
+            if (previous != null) CURRENT.set(previous); else CURRENT.remove();
+        }
+    }
+
+    /**
+     * Called by the proxy dispatch on entry; returns whether {@link #exit()} must be called.
+     */
+    static boolean enter(Class<?> type, String method) {
+        Recording recording = CURRENT.get();
+        if (recording == null) return false;
+        if (recording.depth++ == 0) {
+            recording.calls.computeIfAbsent(type.getSimpleName() + "." + method, key -> new long[1])[0]++;
+        }
+        return true;
+    }
+
+    static void exit() {
+        CURRENT.get().depth--;
+    }
+
+    static Kind classify(String type, String method) {
+        if (type.equals("EntityManager") && method.startsWith("create") && method.endsWith("Query")) return Kind.QUERY;
+        if (method.startsWith("searchFor") && method.contains("Attribute")) return Kind.ATTRIBUTE_SEARCH;
+        if (method.endsWith("Stream") && !method.equals("getAttributeStream")) return Kind.STREAM_SCAN;
+        for (String prefix : new String[] {"set", "add", "remove", "join", "leave", "create", "grant", "delete",
+                "update", "persist", "merge", "put", "replace", "move"}) {
+            if (method.startsWith(prefix)) return Kind.WRITE;
+        }
+        return Kind.READ;
+    }
+
+    private static Counts toCounts(Recording recording) {
+        Map<Kind, Long> byKind = new EnumMap<>(Kind.class);
+        Map<String, Long> byMethod = new TreeMap<>();
+        recording.calls.forEach((key, count) -> {
+            int dot = key.indexOf('.');
+            byKind.merge(classify(key.substring(0, dot), key.substring(dot + 1)), count[0], Long::sum);
+            byMethod.put(key, count[0]);
+        });
+        return new Counts(byKind, byMethod);
+    }
+}
@@ -0,0 +1,214 @@
+package se.scouterna.keycloak.testkit;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.SplittableRandom;
+
+/**
+ * Deterministic generator of Scoutnet profile and roles responses with a configurable
+ * population shape: most members have one group membership and a role or two, while a long
+ * tail of leaders carries dozens of groups, troops, patrols and district, region and project
+ * roles.
+ *
+ * A member's responses depend only on the seed, the shape and the member number, so the same
+ * member looks the same however often and in whichever order it is generated. Group, troop
+ * and patrol names depend only on their id, so members of the same group agree on its name.
+ */
+public final class ScoutnetCorpus {
+
+    private static final String ASCII_LETTERS = "abcdefghijklmnopqrstuvwxyz";
+    private static final String NON_ASCII_LETTERS = "åäöéüøæñßłžçÅÄÖÉÜ";
+    private static final String[] ROLE_CATEGORIES = {"organisation", "region", "district", "corps", "network", "project"};
+
+    /**
+     * Integers from {@code min} to {@code max}; a {@code skew} above 1 puts most samples near
+     * {@code min} with a long tail towards {@code max}, 1 is uniform.
+     */
+    public record IntDistribution(int min, int max, double skew) {
+
+        public static IntDistribution fixed(int value) {
+            return new IntDistribution(value, value, 1);
+        }
+
+        /**
+         * {@code <n>}, {@code <min>-<max>} or {@code <min>-<max>^<skew>}, e.g. {@code 1-40^6}.
+         */
+        public static IntDistribution parse(String spec) {
+            String[] skewParts = spec.trim().split("\\^", 2);
+            String[] bounds = skewParts[0].split("-", 2);
+            int min = Integer.parseInt(bounds[0].trim());
+            int max = bounds.length > 1 ? Integer.parseInt(bounds[1].trim()) : min;
+            double skew = skewParts.length > 1 ? Double.parseDouble(skewParts[1].trim()) : 1;
+            if (max < min || skew <= 0) throw new IllegalArgumentException("Invalid distribution: " + spec);
+            return new IntDistribution(min, max, skew);
+        }
+
+        int sample(SplittableRandom random) {
+            return min + (int) (Math.pow(random.nextDouble(), skew) * (max - min + 1));
+        }
+    }
+
+    /**
+     * The population shape.
+     *
+     * @param memberships     group memberships per member
+     * @param groupRoles      roles per group membership
+     * @param otherRoles      organisation, region, district, corps, network and project roles per member
+     * @param troopShare      share of memberships with a troop; each troop membership carries a troop role
+     * @param patrolShare     share of troop memberships that also have a patrol with a patrol role
+     * @param nameLength      length of person, group, troop and patrol names
+     * @param nonAsciiShare   share of names containing non-ASCII letters
+     * @param groupPool       number of distinct groups members are drawn from
+     */
+    public record Shape(IntDistribution memberships, IntDistribution groupRoles, IntDistribution otherRoles,
+                        double troopShare, double patrolShare, IntDistribution nameLength, double nonAsciiShare,
+                        int groupPool) {
+
+        /**
+         * A shape close to the real member population.
+         */
+        public static Shape realistic() {
+            return new Shape(IntDistribution.parse("1-40^6"), IntDistribution.parse("0-6^2"),
+                IntDistribution.parse("0-8^6"), 0.6, 0.5, IntDistribution.parse("3-40^2"), 0.3, 2000);
+        }
+
+        /**
+         * {@link #realistic()} with any of {@code corpus.memberships}, {@code corpus.groupRoles},
+         * {@code corpus.otherRoles}, {@code corpus.troopShare}, {@code corpus.patrolShare},
+         * {@code corpus.nameLength}, {@code corpus.nonAsciiShare} and {@code corpus.groupPool}
+         * overridden from system properties.
+         */
+        public static Shape fromSystemProperties() {
+            Shape defaults = realistic();
+            return new Shape(
+                distribution("corpus.memberships", defaults.memberships()),
+                distribution("corpus.groupRoles", defaults.groupRoles()),
+                distribution("corpus.otherRoles", defaults.otherRoles()),
+                Double.parseDouble(System.getProperty("corpus.troopShare", String.valueOf(defaults.troopShare()))),
+                Double.parseDouble(System.getProperty("corpus.patrolShare", String.valueOf(defaults.patrolShare()))),
+                distribution("corpus.nameLength", defaults.nameLength()),
+                Double.parseDouble(System.getProperty("corpus.nonAsciiShare", String.valueOf(defaults.nonAsciiShare()))),
+                Integer.getInteger("corpus.groupPool", defaults.groupPool()));
+        }
+
+        private static IntDistribution distribution(String property, IntDistribution defaultValue) {
+            String spec = System.getProperty(property);
+            return spec != null ? IntDistribution.parse(spec) : defaultValue;
+        }
+    }
+
+    private final long seed;
+    private final Shape shape;
+
+    public ScoutnetCorpus(long seed, Shape shape) {
+        this.seed = seed;
+        this.shape = shape;
+    }
+
+    public Shape shape() {
+        return shape;
+    }
+
+    /**
+     * The profile and roles responses for a member, as Scoutnet would send them.
+     */
+    public MockScoutnetServer.Responses responses(int memberNo) {
+        SplittableRandom random = random(memberNo);
+        JsonNodeFactory json = JsonNodeFactory.instance;
+
+        ObjectNode profile = json.objectNode()
+            .put("member_no", memberNo)
+            .put("first_name", name(random))
+            .put("last_name", name(random))
+            .put("email", "member" + memberNo + "@example.com")
+            .put("dob", String.format("%d-%02d-%02d", 1950 + random.nextInt(65), 1 + random.nextInt(12), 1 + random.nextInt(28)))
+            .put("language", random.nextInt(10) == 0 ? "en" : "sv");
+        ObjectNode groups = profile.putObject("memberships").putObject("group");
+        ObjectNode roleSummary = profile.putObject("role_summary");
+
+        ObjectNode roles = json.objectNode();
+        for (String category : ROLE_CATEGORIES) {
+            roles.putObject(category);
+        }
+        ObjectNode groupRoles = roles.putObject("group");
+        ObjectNode troopRoles = roles.putObject("troop");
+        ObjectNode patrolRoles = roles.putObject("patrol");
+
+        int memberships = Math.min(shape.memberships().sample(random), shape.groupPool());
+        int firstGroup = random.nextInt(shape.groupPool());
+        for (int i = 0; i < memberships; i++) {
+            // Consecutive pool slots keep a member's groups distinct
+            int groupNo = 1000 + (firstGroup + i) % shape.groupPool();
+            String groupId = String.valueOf(groupNo);
+            ObjectNode membership = groups.putObject(groupId).put("is_primary", i == 0);
+            membership.putObject("group").put("name", name(random(groupNo))).put("group_no", groupNo);
+
+            ObjectNode membershipRoles = membership.putObject("roles");
+            int roleCount = shape.groupRoles().sample(random);
+            if (roleCount > 0) {
+                ObjectNode groupRoleMap = groupRoles.putObject(groupId);
+                for (int r = 0; r < roleCount; r++) {
+                    int roleId = 100 + random.nextInt(60);
+                    String roleKey = addRole(roleSummary, roleId);
+                    membershipRoles.put(String.valueOf(roleId), roleKey);
+                    groupRoleMap.put(String.valueOf(roleId), roleKey);
+                }
+            }
+
+            if (random.nextDouble() < shape.troopShare()) {
+                int troopId = 20_000 + groupNo * 4 + random.nextInt(4);
+                membership.putObject("troop").put("name", name(random(troopId))).put("id", troopId);
+                troopRoles.putObject(String.valueOf(troopId)).put("11", addRole(roleSummary, 11));
+                if (random.nextDouble() < shape.patrolShare()) {
+                    int patrolId = 200_000 + troopId * 4 + random.nextInt(4);
+                    membership.putObject("patrol").put("name", name(random(patrolId))).put("id", patrolId);
+                    patrolRoles.putObject(String.valueOf(patrolId)).put("7", addRole(roleSummary, 7));
+                }
+            } else {
+                membership.putNull("troop");
+                membership.putNull("patrol");
+            }
+        }
+
+        int otherRoles = shape.otherRoles().sample(random);
+        for (int i = 0; i < otherRoles; i++) {
+            ObjectNode category = (ObjectNode) roles.get(ROLE_CATEGORIES[random.nextInt(ROLE_CATEGORIES.length)]);
+            int roleId = 200 + random.nextInt(40);
+            String unitId = String.valueOf(100 + random.nextInt(50));
+            ObjectNode unit = category.has(unitId) ? (ObjectNode) category.get(unitId) : category.putObject(unitId);
+            unit.put(String.valueOf(roleId), addRole(roleSummary, roleId));
+        }
+        return new MockScoutnetServer.Responses(profile.toString(), roles.toString());
+    }
+
+    private String addRole(ObjectNode roleSummary, int roleId) {
+        String roleKey = "role_" + roleId;
+        String id = String.valueOf(roleId);
+        if (!roleSummary.has(id)) {
+            roleSummary.putObject(id).put("role_key", roleKey).put("role_name", name(random(-roleId)));
+        }
+        return roleKey;
+    }
+
+    private String name(SplittableRandom random) {
+        int length = Math.max(1, shape.nameLength().sample(random));
+        boolean nonAscii = random.nextDouble() < shape.nonAsciiShare();
+        StringBuilder name = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            if (i > 0 && i < length - 1 && random.nextInt(8) == 0 && name.charAt(i - 1) != ' ') {
+                name.append(' ');
+            } else if (nonAscii && random.nextInt(4) == 0) {
+                name.append(NON_ASCII_LETTERS.charAt(random.nextInt(NON_ASCII_LETTERS.length())));
+            } else {
+                char letter = ASCII_LETTERS.charAt(random.nextInt(ASCII_LETTERS.length()));
+                name.append(i == 0 || name.charAt(i - 1) == ' ' ? Character.toUpperCase(letter) : letter);
+            }
+        }
+        return name.toString();
+    }
+
+    private SplittableRandom random(long key) {
+        return new SplittableRandom(seed * 0x9E3779B97F4A7C15L + key);
+    }
+}
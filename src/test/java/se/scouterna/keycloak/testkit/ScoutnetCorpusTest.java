@@ -0,0 +1,70 @@
+package se.scouterna.keycloak.testkit;
+
+import org.junit.jupiter.api.Test;
+import se.scouterna.keycloak.client.ScoutnetJson;
+import se.scouterna.keycloak.client.dto.GroupMembership;
+import se.scouterna.keycloak.client.dto.Profile;
+import se.scouterna.keycloak.client.dto.Roles;
+import se.scouterna.keycloak.testkit.ScoutnetCorpus.IntDistribution;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScoutnetCorpusTest {
+
+    @Test
+    void sameSeedAndMember_sameResponses() {
+        ScoutnetCorpus corpus = new ScoutnetCorpus(7, ScoutnetCorpus.Shape.realistic());
+        MockScoutnetServer.Responses first = corpus.responses(3_000_123);
+        corpus.responses(3_000_124);
+
+        assertEquals(first, corpus.responses(3_000_123));
+        assertEquals(first, new ScoutnetCorpus(7, ScoutnetCorpus.Shape.realistic()).responses(3_000_123));
+        assertNotEquals(first, new ScoutnetCorpus(8, ScoutnetCorpus.Shape.realistic()).responses(3_000_123));
+    }
+
+    @Test
+    void responses_parseAndFollowShape() throws Exception {
+        ScoutnetCorpus.Shape shape = new ScoutnetCorpus.Shape(IntDistribution.fixed(5), IntDistribution.fixed(2),
+            IntDistribution.fixed(0), 1, 1, IntDistribution.fixed(10), 1, 100);
+        MockScoutnetServer.Responses responses = new ScoutnetCorpus(1, shape).responses(3_000_001);
+
+        Profile profile = ScoutnetJson.PROFILE_READER.readValue(responses.profileJson());
+        Roles roles = ScoutnetJson.ROLES_READER.readValue(responses.rolesJson());
+
+        Map<String, GroupMembership> groups = profile.getMemberships().getGroup();
+        assertEquals(5, groups.size());
+        assertEquals(1, groups.values().stream().filter(GroupMembership::isPrimary).count());
+        assertEquals(5, roles.getTroop().size());
+        assertEquals(5, roles.getPatrol().size());
+        groups.values().forEach(membership -> {
+            assertNotNull(membership.getTroop());
+            assertEquals(10, membership.getGroup().getName().length());
+        });
+        assertTrue(profile.getFirstName().chars().anyMatch(c -> c > 127) || profile.getLastName().chars().anyMatch(c -> c > 127)
+            || groups.values().stream().anyMatch(m -> m.getGroup().getName().chars().anyMatch(c -> c > 127)));
+    }
+
+    @Test
+    void groupNames_sharedAcrossMembers() throws Exception {
+        ScoutnetCorpus.Shape shape = new ScoutnetCorpus.Shape(IntDistribution.fixed(3), IntDistribution.fixed(0),
+            IntDistribution.fixed(0), 0, 0, IntDistribution.parse("3-30"), 0.5, 4);
+        ScoutnetCorpus corpus = new ScoutnetCorpus(1, shape);
+
+        Map<String, GroupMembership> a = ScoutnetJson.PROFILE_READER.<Profile>readValue(corpus.responses(1).profileJson())
+            .getMemberships().getGroup();
+        Map<String, GroupMembership> b = ScoutnetJson.PROFILE_READER.<Profile>readValue(corpus.responses(2).profileJson())
+            .getMemberships().getGroup();
+
+        a.keySet().stream().filter(b::containsKey).forEach(id ->
+            assertEquals(a.get(id).getGroup().getName(), b.get(id).getGroup().getName()));
+    }
+
+    @Test
+    void distribution_parse() {
+        assertEquals(new IntDistribution(1, 40, 6), IntDistribution.parse("1-40^6"));
+        assertEquals(new IntDistribution(3, 3, 1), IntDistribution.parse("3"));
+        assertThrows(IllegalArgumentException.class, () -> IntDistribution.parse("5-1"));
+    }
+}